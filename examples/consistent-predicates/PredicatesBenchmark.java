@@ -0,0 +1,108 @@
+import jvstm.Transaction;
+import jvstm.VBoxInt;
+
+import jvstm.util.VLinkedSet;
+
+import jvstm.cps.ConsistencyPredicate;
+import jvstm.cps.ConsistencyPredicateSystem;
+
+// Measures the commit of transactions that must recheck many consistency predicates, when the predicates are
+// checked sequentially and in parallel.
+// args: #bags, #numbers-per-bag, #txs, [parallel-checks-threshold (default 8)]
+public class PredicatesBenchmark {
+
+    // the parallel run needs a finite threshold, as the checks are only made in parallel on request
+    private static final int DEFAULT_THRESHOLD = 8;
+
+    private final Bag[] bags;
+    private final int txs;
+
+    public static void main(String[] args) {
+        ConsistencyPredicateSystem.initialize();
+
+        PredicatesBenchmark benchmark = new PredicatesBenchmark(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        int threshold = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_THRESHOLD;
+
+        // warm up both ways, then measure them
+        benchmark.execute(Integer.MAX_VALUE);
+        benchmark.execute(threshold);
+        System.out.println("sequential: " + benchmark.execute(Integer.MAX_VALUE));
+        System.out.println("parallel:   " + benchmark.execute(threshold));
+        System.exit(0);
+    }
+
+    public PredicatesBenchmark(int numBags, int numbersPerBag, int txs) {
+        this.bags = new Bag[numBags];
+        this.txs = txs;
+
+        Transaction.begin();
+        for (int i = 0; i < bags.length; i++) {
+            bags[i] = new Bag();
+            for (int j = 0; j < numbersPerBag; j++) {
+                bags[i].add(new Number(j));
+            }
+        }
+        Transaction.commit();
+    }
+
+    public long execute(int threshold) {
+        ConsistencyPredicateSystem.setParallelChecksThreshold(threshold);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < txs; i++) {
+            // every number changes, so every predicate must be rechecked
+            int delta = ((i % 2) == 0) ? 1 : -1;
+            Transaction.begin();
+            for (Bag bag : bags) {
+                for (Number num : bag.numbers) {
+                    num.update(delta);
+                }
+            }
+            Transaction.commit();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    static class Number {
+        private final VBoxInt value = new VBoxInt(0);
+
+        public Number(int value) {
+            ConsistencyPredicateSystem.registerNewObject(this);
+            this.value.putInt(value);
+        }
+
+        public void update(int delta) {
+            this.value.inc(delta);
+        }
+
+        public int getValue() {
+            return this.value.getInt();
+        }
+
+        @ConsistencyPredicate
+        public boolean greaterThanMinus1000() {
+            return (getValue() > -1000);
+        }
+    }
+
+    static class Bag {
+        private final VLinkedSet<Number> numbers = new VLinkedSet<Number>();
+
+        public Bag() {
+            ConsistencyPredicateSystem.registerNewObject(this);
+        }
+
+        public void add(Number num) {
+            numbers.add(num);
+        }
+
+        @ConsistencyPredicate
+        public boolean nonNegative() {
+            int total = 0;
+            for (Number num : numbers) {
+                total += num.getValue();
+            }
+            return (total >= 0);
+        }
+    }
+}
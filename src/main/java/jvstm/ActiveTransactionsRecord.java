@@ -25,6 +25,8 @@
  */
 package jvstm;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
@@ -271,6 +273,46 @@ public class ActiveTransactionsRecord {
         notifyListeners(transactionNumber);
     }
 
+    /**
+     * Compacts the logs of the VArrays written by the records after oldestInUse, up to (and
+     * including) mostRecent.  See VArray.compactLog for the meaning of versionsInUse.
+     */
+    public static void compactArrayLogs(ActiveTransactionsRecord oldestInUse, ActiveTransactionsRecord mostRecent, int[] versionsInUse) {
+        Map<VArray<?>, Boolean> arrays = null;
+        Map<VPrimitiveArray, Boolean> primitiveArrays = null;
+        ActiveTransactionsRecord rec = oldestInUse;
+        while (rec != mostRecent) {
+            rec = rec.getNext();
+            WriteSet ws = rec.writeSet;
+            if (ws == null) {
+                // the record was cleaned concurrently
+                continue;
+            }
+            for (WriteSet.VArrayCommitState cs : ws.arrayCommitState) {
+                if (arrays == null) {
+                    arrays = new IdentityHashMap<VArray<?>, Boolean>();
+                }
+                arrays.put(cs.array, Boolean.TRUE);
+            }
+            for (WriteSet.PrimitiveArrayCommitState cs : ws.primitiveArrayCommitState) {
+                if (primitiveArrays == null) {
+                    primitiveArrays = new IdentityHashMap<VPrimitiveArray, Boolean>();
+                }
+                primitiveArrays.put(cs.array, Boolean.TRUE);
+            }
+        }
+        if (arrays != null) {
+            for (VArray<?> array : arrays.keySet()) {
+                array.compactLog(versionsInUse);
+            }
+        }
+        if (primitiveArrays != null) {
+            for (VPrimitiveArray array : primitiveArrays.keySet()) {
+                array.compactLog(versionsInUse);
+            }
+        }
+    }
+
     /*===========================================================================*
      *~~~~~~~~~~~~~     REVERSION part of the AOM approach  ~~~~~~~~~~~~~~~~~~~~~*
      *===========================================================================*/
@@ -347,6 +389,10 @@ public class ActiveTransactionsRecord {
      *
      */
     private <T extends VBox<T>> boolean tryRevert(VBox<T> vbox, GarbageCollectable body){
+        if (!(vbox instanceof VBoxAom)) {
+            // only the objects of the AOM approach have a compact layout
+            return false;
+        }
         synchronized (vbox){
             if(vbox.body == body /* (1) step one of the reversion */
                     // && (Transaction.mostRecentRecord.transactionNumber - body.version) >= 8
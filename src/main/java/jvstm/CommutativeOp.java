@@ -0,0 +1,207 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An update of a CommutativeVBox that commutes with the other updates of the same kind (e.g.,
+ * adding to a counter), so that it does not need to read the box when it is requested.  The
+ * updates made by a transaction are combined, and applied only when it commits, to the most
+ * recent value of the box (see CommutativeVBox.update).
+ *
+ * Instances are immutable.
+ */
+public abstract class CommutativeOp<E> {
+
+    /* Stands for no pending update at all */
+    static final CommutativeOp IDENTITY = new CommutativeOp<Object>() {
+        @Override
+        public Object applyTo(Object value) {
+            return value;
+        }
+
+        @Override
+        protected CommutativeOp<Object> andThen(CommutativeOp<Object> next) {
+            return next;
+        }
+    };
+
+    public abstract E applyTo(E value);
+
+    /* Returns an update with the effect of this one followed by next, or null if they cannot be combined (e.g.,
+     * because they are of different kinds). */
+    protected abstract CommutativeOp<E> andThen(CommutativeOp<E> next);
+
+    /* Invoked when a parallel nested transaction, which changed the pending update of a box from base to this one,
+     * commits, but some sibling already changed the update pending in their parent to parentOp.  Returns the update
+     * that combines both changes, or null if they cannot be combined, in which case the nested transaction restarts.
+     * By default, they cannot. */
+    protected CommutativeOp<E> mergeNested(CommutativeOp<E> base, CommutativeOp<E> parentOp) {
+        return null;
+    }
+
+    public static CommutativeOp<Integer> addInt(int delta) {
+        return new AddInt(delta);
+    }
+
+    public static CommutativeOp<Long> addLong(long delta) {
+        return new AddLong(delta);
+    }
+
+    public static <E extends Comparable<? super E>> CommutativeOp<E> max(E value) {
+        return new Extreme<E>(value, true);
+    }
+
+    public static <E extends Comparable<? super E>> CommutativeOp<E> min(E value) {
+        return new Extreme<E>(value, false);
+    }
+
+    /* The sets in the box are never changed: each union makes a new one. */
+    public static <E> CommutativeOp<Set<E>> union(Collection<? extends E> elements) {
+        return new Union<E>(Collections.unmodifiableSet(new HashSet<E>(elements)));
+    }
+
+    /* Updates that may be applied more than once with the same effect merge with those of the siblings by just
+     * applying both. */
+    private static abstract class Idempotent<E> extends CommutativeOp<E> {
+        @Override
+        protected CommutativeOp<E> mergeNested(CommutativeOp<E> base, CommutativeOp<E> parentOp) {
+            return (parentOp == IDENTITY) ? null : parentOp.andThen(this);
+        }
+    }
+
+    private static final class AddInt extends CommutativeOp<Integer> {
+        private final int delta;
+
+        AddInt(int delta) {
+            this.delta = delta;
+        }
+
+        @Override
+        public Integer applyTo(Integer value) {
+            return (value == null) ? delta : value + delta;
+        }
+
+        @Override
+        protected CommutativeOp<Integer> andThen(CommutativeOp<Integer> next) {
+            return (next instanceof AddInt) ? new AddInt(delta + ((AddInt) next).delta) : null;
+        }
+
+        @Override
+        protected CommutativeOp<Integer> mergeNested(CommutativeOp<Integer> base, CommutativeOp<Integer> parentOp) {
+            if ((base != IDENTITY && !(base instanceof AddInt)) || !(parentOp instanceof AddInt)) {
+                return null;
+            }
+            int baseDelta = (base == IDENTITY) ? 0 : ((AddInt) base).delta;
+            return new AddInt(((AddInt) parentOp).delta + delta - baseDelta);
+        }
+    }
+
+    private static final class AddLong extends CommutativeOp<Long> {
+        private final long delta;
+
+        AddLong(long delta) {
+            this.delta = delta;
+        }
+
+        @Override
+        public Long applyTo(Long value) {
+            return (value == null) ? delta : value + delta;
+        }
+
+        @Override
+        protected CommutativeOp<Long> andThen(CommutativeOp<Long> next) {
+            return (next instanceof AddLong) ? new AddLong(delta + ((AddLong) next).delta) : null;
+        }
+
+        @Override
+        protected CommutativeOp<Long> mergeNested(CommutativeOp<Long> base, CommutativeOp<Long> parentOp) {
+            if ((base != IDENTITY && !(base instanceof AddLong)) || !(parentOp instanceof AddLong)) {
+                return null;
+            }
+            long baseDelta = (base == IDENTITY) ? 0 : ((AddLong) base).delta;
+            return new AddLong(((AddLong) parentOp).delta + delta - baseDelta);
+        }
+    }
+
+    /* Either max or min */
+    private static final class Extreme<E extends Comparable<? super E>> extends Idempotent<E> {
+        private final E value;
+        private final boolean max;
+
+        Extreme(E value, boolean max) {
+            this.value = value;
+            this.max = max;
+        }
+
+        @Override
+        public E applyTo(E current) {
+            if (current == null) {
+                return value;
+            }
+            int cmp = value.compareTo(current);
+            return (max ? cmp > 0 : cmp < 0) ? value : current;
+        }
+
+        @Override
+        protected CommutativeOp<E> andThen(CommutativeOp<E> next) {
+            if (!(next instanceof Extreme) || ((Extreme<E>) next).max != max) {
+                return null;
+            }
+            return new Extreme<E>(applyTo(((Extreme<E>) next).value), max);
+        }
+    }
+
+    private static final class Union<E> extends Idempotent<Set<E>> {
+        private final Set<E> elements;
+
+        Union(Set<E> elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public Set<E> applyTo(Set<E> current) {
+            if (current == null) {
+                return elements;
+            }
+            if (current.containsAll(elements)) {
+                return current;
+            }
+            Set<E> result = new HashSet<E>(current);
+            result.addAll(elements);
+            return Collections.unmodifiableSet(result);
+        }
+
+        @Override
+        protected CommutativeOp<Set<E>> andThen(CommutativeOp<Set<E>> next) {
+            return (next instanceof Union) ? new Union<E>(applyTo(((Union<E>) next).elements)) : null;
+        }
+    }
+}
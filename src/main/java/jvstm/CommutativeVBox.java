@@ -0,0 +1,152 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm;
+
+import static jvstm.UtilUnsafe.UNSAFE;
+
+/**
+ * A VBox that also accepts commutative updates (see CommutativeOp), such as adding to a
+ * counter.  An update registers no read, so concurrent transactions that only update the
+ * box never conflict with each other.  Instead, the updates made by a transaction are kept
+ * as a PerTxBox value and they are applied to the most recent value of the box when the
+ * transaction commits, like the other PerTxBoxes.
+ *
+ * Reading the box within a transaction that has updates pending for it applies them first,
+ * and reads the box as usual.  Writing the box discards them.
+ */
+public class CommutativeVBox<E> extends VBox<E> {
+
+    private static class Offsets {
+        private static final long pendingOffset = UtilUnsafe.objectFieldOffset(CommutativeVBox.class, "pending");
+    }
+
+    /* Created when the box is first updated, so that plain reads and writes need not look for pending updates */
+    private volatile PendingOps<E> pending;
+
+    public CommutativeVBox() {
+        super();
+    }
+
+    public CommutativeVBox(E initial) {
+        super(initial);
+    }
+
+    public void update(CommutativeOp<E> op) {
+        Transaction tx = Transaction.current();
+        if (tx == null) {
+            tx = Transaction.begin();
+            update(tx, op);
+            tx.commit();
+        } else {
+            update(tx, op);
+        }
+    }
+
+    private void update(Transaction tx, CommutativeOp<E> op) {
+        if (!tx.defersCommutativeOps()) {
+            super.put(op.applyTo(super.get()));
+            return;
+        }
+
+        PendingOps<E> ops = pendingOps();
+        CommutativeOp<E> current = ops.get();
+        CommutativeOp<E> combined = current.andThen(op);
+        if (combined == null) {
+            // not of the same kind, so the pending ones cannot wait any longer
+            super.put(current.applyTo(super.get()));
+            combined = op;
+        }
+        ops.put(combined);
+    }
+
+    @Override
+    public E get() {
+        PendingOps<E> ops = pending;
+        if (ops != null) {
+            Transaction tx = Transaction.current();
+            if (tx != null && tx.defersCommutativeOps()) {
+                CommutativeOp<E> current = ops.get();
+                if (current != CommutativeOp.IDENTITY) {
+                    ops.put(CommutativeOp.IDENTITY);
+                    E value = current.applyTo(super.get());
+                    super.put(value);
+                    return value;
+                }
+            }
+        }
+        return super.get();
+    }
+
+    @Override
+    public void put(E newE) {
+        PendingOps<E> ops = pending;
+        if (ops != null) {
+            Transaction tx = Transaction.current();
+            if (tx != null && tx.defersCommutativeOps() && ops.get() != CommutativeOp.IDENTITY) {
+                ops.put(CommutativeOp.IDENTITY);
+            }
+        }
+        super.put(newE);
+    }
+
+    private PendingOps<E> pendingOps() {
+        PendingOps<E> ops = pending;
+        if (ops == null) {
+            ops = new PendingOps<E>(this);
+            if (!UNSAFE.compareAndSwapObject(this, Offsets.pendingOffset, null, ops)) {
+                ops = pending;
+            }
+        }
+        return ops;
+    }
+
+    /* Invoked at commit time, within the transaction that processes the PerTxBoxes of the committer */
+    void applyAtCommit(CommutativeOp<E> op) {
+        super.put(op.applyTo(super.get()));
+    }
+
+    private static final class PendingOps<E> extends PerTxBox<CommutativeOp<E>> {
+
+        private final CommutativeVBox<E> box;
+
+        PendingOps(CommutativeVBox<E> box) {
+            super(CommutativeOp.IDENTITY);
+            this.box = box;
+        }
+
+        @Override
+        public void commit(CommutativeOp<E> op) {
+            if (op != CommutativeOp.IDENTITY) {
+                box.applyAtCommit(op);
+            }
+        }
+
+        @Override
+        public CommutativeOp<E> mergeNested(CommutativeOp<E> base, CommutativeOp<E> parentOp, CommutativeOp<E> childOp) {
+            return childOp.mergeNested(base, parentOp);
+        }
+    }
+}
@@ -25,8 +25,38 @@
  */
 package jvstm;
 
+/* Thrown by a parallel nested transaction that cannot write to a box, because some transaction that is not one of
+ * its ancestors (usually a sibling) is writing to it.  The box and its owner, when known, let
+ * Transaction.manageNestedParallelTxs re-execute together only the children that conflicted with each other. */
 public class ExecuteParallelNestedTxSequentiallyException extends RuntimeException {
 
     private static final long serialVersionUID = -793914613173147551L;
 
+    private final transient VBox<?> conflictingBox;
+    private final transient Transaction conflictingOwner;
+
+    public ExecuteParallelNestedTxSequentiallyException() {
+        this(null, null);
+    }
+
+    public ExecuteParallelNestedTxSequentiallyException(VBox<?> conflictingBox, Transaction conflictingOwner) {
+        this.conflictingBox = conflictingBox;
+        this.conflictingOwner = conflictingOwner;
+    }
+
+    /** The box whose write caused the conflict, or null if unknown. */
+    public VBox<?> getConflictingBox() {
+        return conflictingBox;
+    }
+
+    /** The transaction that owned the write to the conflicting box, or null if unknown. */
+    public Transaction getConflictingOwner() {
+        return conflictingOwner;
+    }
+
+    // it is part of the control flow of parallel nesting, so there is no point in filling in the stack trace
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
 }
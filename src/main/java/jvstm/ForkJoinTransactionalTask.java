@@ -0,0 +1,63 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.RecursiveAction;
+
+/* Runs a group of TransactionalTasks (see NestedTaskGroup) in a ForkJoinPool (see
+ * Transaction.manageNestedParallelTxs).
+ *
+ * A worker that joins other tasks may run them while it is waiting, on top of the task that it was
+ * already running.  The tasks run here are always nested in some transaction, so they do not
+ * change the thread's TxContext, but they leave the thread's current transaction set to their
+ * parent: it is restored when they finish.  The outcome of the task is kept, rather than thrown,
+ * so that all the tasks are joined before any failure is handled.
+ */
+final class ForkJoinTransactionalTask<T> extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Callable<T> task;
+    T result;
+    Throwable failure;
+
+    ForkJoinTransactionalTask(Callable<T> task) {
+        this.task = task;
+    }
+
+    @Override
+    protected void compute() {
+        Transaction previous = Transaction.current.get();
+        try {
+            result = task.call();
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            Transaction.current.set(previous);
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package jvstm;
 
-/* Classes implementing this interface (currently VBoxBody and VArrayLogNode) can be cleaned
- * by the JVSTM garbage collection algorithm, when passed to an ActiveTransactionsRecord.
+/* Classes implementing this interface (currently VBoxBody, VArrayLogNode and PrimitiveArrayLogNode)
+ * can be cleaned by the JVSTM garbage collection algorithm, when passed to an ActiveTransactionsRecord.
  */
 public interface GarbageCollectable {
     public void clearPrevious();
@@ -143,6 +143,11 @@ public class InevitableTransaction extends TopLevelTransaction {
         throw new Error(getClass().getSimpleName() + " doesn't support PerTxBoxes yet");
     }
 
+    @Override
+    protected boolean defersCommutativeOps() {
+        return false;
+    }
+
     @Override
     public WriteSet makeWriteSet() {
         return new WriteSet(vboxesWrittenBack);
@@ -162,7 +167,7 @@ public class InevitableTransaction extends TopLevelTransaction {
     @Override
     public <T> T getArrayValue(VArrayEntry<T> entry) {
         // Read directly from array
-        return entry.array.values.get(entry.index);
+        return entry.array.readValue(entry.index);
     }
 
     @Override
@@ -170,4 +175,28 @@ public class InevitableTransaction extends TopLevelTransaction {
         throw new Error(getClass().getSimpleName() + " doesn't support writing to VArrays yet");
     }
 
+    @Override
+    public long getPrimitiveArrayValue(VPrimitiveArray array, int index) {
+        // Read directly from array
+        return array.readRaw(index);
+    }
+
+    @Override
+    public void setPrimitiveArrayValue(VPrimitiveArray array, int index, long value) {
+        throw new Error(getClass().getSimpleName() + " doesn't support writing to VArrays yet");
+    }
+
+    @Override
+    public <T> void getArrayRange(VArray<T> array, int from, int to, T[] dest) {
+        // Read directly from array
+        for (int i = from; i < to; i++) {
+            dest[i - from] = array.readValue(i);
+        }
+    }
+
+    @Override
+    public <T> void setArrayRange(VArray<T> array, int from, int to, T[] src) {
+        throw new Error(getClass().getSimpleName() + " doesn't support writing to VArrays yet");
+    }
+
 }
@@ -35,9 +35,8 @@ public class NestedCommitRecord {
     private final ParallelNestedTransaction committer;
     private final Cons<ParallelNestedTransaction> childrenToPropagate;
     private final Cons<ParallelNestedTransaction> expectedParentOrecs;
-    private final Cons<VArrayEntry<?>> varrayReadsToPropagate;
-    private final Map<VArrayEntry<?>, VArrayEntry<?>> arrayWritesToPropagate;
-    private final Map<VArray<?>, Integer> arrayWritesCount;
+    // the values of the PerTxBoxes of the committer, merged with those already in the parent
+    private final Map<PerTxBox, Object> perTxValues;
     protected final AtomicReference<NestedCommitRecord> next = new AtomicReference<NestedCommitRecord>(null);
     protected final int commitNumber;
     protected volatile boolean recordCommitted = false;
@@ -46,23 +45,18 @@ public class NestedCommitRecord {
         this.committer = null;
         this.childrenToPropagate = Cons.empty();
         this.expectedParentOrecs = Cons.empty();
-        this.varrayReadsToPropagate = Cons.empty();
-        this.arrayWritesToPropagate = ReadWriteTransaction.EMPTY_MAP;
-        this.arrayWritesCount = ReadWriteTransaction.EMPTY_MAP;
+        this.perTxValues = ReadWriteTransaction.EMPTY_MAP;
         this.commitNumber = 0;
         this.recordCommitted = true;
     }
 
     public NestedCommitRecord(ParallelNestedTransaction committer, Cons<ParallelNestedTransaction> children,
-            Cons<ParallelNestedTransaction> parentOrecs, Cons<VArrayEntry<?>> varrayReadsToPropagate,
-            Map<VArrayEntry<?>, VArrayEntry<?>> arrayWrites, Map<VArray<?>, Integer> arrayWritesCount, int commitNumber) {
+            Cons<ParallelNestedTransaction> parentOrecs, Map<PerTxBox, Object> perTxValues, int commitNumber) {
         this.committer = committer;
         this.childrenToPropagate = children;
-        this.varrayReadsToPropagate = varrayReadsToPropagate;
-        this.arrayWritesToPropagate = arrayWrites;
-        this.arrayWritesCount = arrayWritesCount;
         this.commitNumber = commitNumber;
         this.expectedParentOrecs = parentOrecs;
+        this.perTxValues = perTxValues;
     }
 
     public void helpCommit() {
@@ -79,49 +73,16 @@ public class NestedCommitRecord {
                 currentParentOrecs = currentParentOrecs.cons(childrenCommit);
             }
 
-            propagateVArraysFootprint();
+            // The array writes and reads stay in the committer, which becomes visible to the parent (and to its
+            // other children) with the CAS below (see ReadWriteTransaction.getVisibleArrayWrite)
+            for (VArrayEntry<?> entry : committer.arrayWrites.values()) {
+                entry.nestedVersion = commitNumber;
+            }
+            // likewise for the PerTxBoxes (see ReadWriteTransaction.getVisiblePerTxValue)
+            committer.perTxValues = perTxValues;
             parent.CASmergedTxs(expectedParentOrecs, currentParentOrecs);
         }
 
     }
 
-    // VArrays' support introduces locking in this commit procedure
-    private void propagateVArraysFootprint() {
-        if (this.arrayWritesToPropagate == ReadWriteTransaction.EMPTY_MAP && this.varrayReadsToPropagate.isEmpty()) {
-            // nothing to propagate
-            return;
-        }
-
-        ReadWriteTransaction parent = committer.getRWParent();
-
-        synchronized (parent) {
-            if (!this.varrayReadsToPropagate.isEmpty()) {
-                parent.arraysRead = this.varrayReadsToPropagate.reverseInto(parent.arraysRead);
-            }
-            if (parent.arrayWrites == ReadWriteTransaction.EMPTY_MAP) {
-                parent.arrayWrites = this.arrayWritesToPropagate;
-                parent.arrayWritesCount = this.arrayWritesCount;
-                for (VArrayEntry<?> entry : this.arrayWritesToPropagate.values()) {
-                    entry.nestedVersion = this.commitNumber;
-                }
-            } else {
-                // Propagate arrayWrites and correctly update the parent's
-                // arrayWritebacks counter
-                for (VArrayEntry<?> entry : this.arrayWritesToPropagate.values()) {
-                    // Update the array write entry nested version
-                    entry.nestedVersion = this.commitNumber;
-
-                    if (parent.arrayWrites.put(entry, entry) != null)
-                        continue;
-
-                    // Count number of writes to the array
-                    Integer writeCount = parent.arrayWritesCount.get(entry.array);
-                    if (writeCount == null)
-                        writeCount = 0;
-                    parent.arrayWritesCount.put(entry.array, writeCount + 1);
-                }
-            }
-        }
-    }
-
 }
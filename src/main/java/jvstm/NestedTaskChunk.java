@@ -0,0 +1,79 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Consecutive children given to Transaction.manageNestedParallelTxs that are too fine-grained to pay for a parallel
+ * nested transaction each (see TransactionalTask.getMinBatch).  They run one after the other, in the order in which
+ * they were given, within a single parallel nested transaction, which re-executes all of them if it has to. */
+final class NestedTaskChunk<T> extends ParallelTask<List<T>> {
+
+    private final List<? extends TransactionalTask<T>> members;
+
+    NestedTaskChunk(List<? extends TransactionalTask<T>> members) {
+        this.members = members;
+    }
+
+    @Override
+    public List<T> execute() throws Throwable {
+        return executeAll(members);
+    }
+
+    @Override
+    protected boolean isReadOnly() {
+        for (TransactionalTask<T> member : members) {
+            if (!member.isReadOnly()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static <T> List<T> executeAll(List<? extends TransactionalTask<T>> members) throws Throwable {
+        List<T> results = new ArrayList<T>(members.size());
+        for (TransactionalTask<T> member : members) {
+            results.add(member.execute());
+        }
+        return results;
+    }
+
+    /* The same, for children that are unsafe parallel transactions */
+    static final class Unsafe<T> extends UnsafeParallelTask<List<T>> {
+
+        private final List<? extends TransactionalTask<T>> members;
+
+        Unsafe(List<? extends TransactionalTask<T>> members) {
+            this.members = members;
+        }
+
+        @Override
+        public List<T> execute() throws Throwable {
+            return executeAll(members);
+        }
+    }
+}
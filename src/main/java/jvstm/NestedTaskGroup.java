@@ -0,0 +1,75 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/* Some of the children given to Transaction.manageNestedParallelTxs, which run one after the other, in the order
+ * in which they were given, as a single parallel task.  Each child belongs to a single group, and the group stores
+ * its outcome (the result or the failure) in the arrays shared by all the groups of the same call, so that a group
+ * never fails as a whole.
+ *
+ * A failure that is not retried cancels the remaining children of the same parent (see Transaction.nestedFailure).
+ */
+final class NestedTaskGroup<T> implements Callable<Void> {
+
+    private final Transaction owner;
+    private final List<? extends TransactionalTask<T>> tasks;
+    private final int[] indexes;
+    private final Object[] results;
+    private final Throwable[] failures;
+
+    NestedTaskGroup(Transaction owner, List<? extends TransactionalTask<T>> tasks, int[] indexes, Object[] results,
+            Throwable[] failures) {
+        this.owner = owner;
+        this.tasks = tasks;
+        this.indexes = indexes;
+        this.results = results;
+        this.failures = failures;
+    }
+
+    @Override
+    public Void call() {
+        for (int i : indexes) {
+            Throwable cancelled = owner.nestedFailure;
+            if (cancelled != null) {
+                failures[i] = cancelled;
+                continue;
+            }
+            try {
+                results[i] = tasks.get(i).call();
+                failures[i] = null;
+            } catch (Throwable t) {
+                failures[i] = t;
+                if (!(t instanceof ExecuteParallelNestedTxSequentiallyException)) {
+                    owner.cancelNested(t);
+                }
+            }
+        }
+        return null;
+    }
+}
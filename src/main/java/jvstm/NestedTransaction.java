@@ -55,6 +55,12 @@ public class NestedTransaction extends ReadWriteTransaction {
         super.ancVersions = ReadWriteTransaction.EMPTY_VERSIONS;
     }
 
+    @Override
+    protected boolean supportsArrayRangeEntries() {
+        // the read-set is shared with the parent
+        return getRWParent().supportsArrayRangeEntries();
+    }
+
     @Override
     public Transaction makeUnsafeMultithreaded() {
         throw new Error("An Unsafe Parallel Transaction may only be spawned by another Unsafe or a Top-Level transaction");
@@ -176,6 +182,7 @@ public class NestedTransaction extends ReadWriteTransaction {
 
     @Override
     protected void tryCommit() {
+        collapseNestedFootprint();
         ReadWriteTransaction parent = getRWParent();
         // update parent's read-set
         parent.bodiesRead = this.bodiesRead;
@@ -229,18 +236,36 @@ public class NestedTransaction extends ReadWriteTransaction {
             parent.perTxValues.putAll(perTxValues);
         }
         parent.arraysRead = this.arraysRead;
-        if (parent.arrayWrites == EMPTY_MAP) {
+        if (parent.arrayWrites == EMPTY_MAP && parent.arrayRangeWrites.isEmpty()) {
             parent.arrayWrites = arrayWrites;
             parent.arrayWritesCount = arrayWritesCount;
+            parent.arrayRangeWrites = arrayRangeWrites;
         } else {
             // Propagate arrayWrites and correctly update the parent's arrayWritebacks counter
-            for (VArrayEntry<?> entry : arrayWrites.values()) {
-                if (parent.arrayWrites.put(entry, entry) != null) continue;
+            if (parent.arrayRangeWrites.isEmpty()) {
+                for (VArrayEntry<?> entry : arrayWrites.values()) {
+                    if (parent.arrayWrites.put(entry, entry) != null) continue;
 
-                // Count number of writes to the array
-                Integer writeCount = parent.arrayWritesCount.get(entry.array);
-                if (writeCount == null) writeCount = 0;
-                parent.arrayWritesCount.put(entry.array, writeCount + 1);
+                    // Count number of writes to the array
+                    Integer writeCount = parent.arrayWritesCount.get(entry.array);
+                    if (writeCount == null) writeCount = 0;
+                    parent.arrayWritesCount.put(entry.array, writeCount + 1);
+                }
+            } else {
+                // some of the entries may fall into a range written by the parent
+                for (VArrayEntry<?> entry : arrayWrites.values()) {
+                    parent.addArrayWrite(entry);
+                }
+            }
+            for (VArrayRangeWrite<?> rangeWrite : arrayRangeWrites) {
+                parent.addArrayRangeWrite(rangeWrite);
+            }
+        }
+        if (parent.primitiveArrayAccesses == EMPTY_MAP) {
+            parent.primitiveArrayAccesses = primitiveArrayAccesses;
+        } else {
+            for (PrimitiveArrayAccesses accesses : primitiveArrayAccesses.values()) {
+                parent.getPrimitiveArrayAccesses(accesses.array).addAll(accesses);
             }
         }
     }
@@ -59,6 +59,9 @@ public class ParallelNestedReadOnlyTransaction extends ParallelNestedTransaction
         Cons<ParallelNestedTransaction> currentOrecs;
         Cons<ParallelNestedTransaction> modifiedOrecs;
 
+        // the array reads are collapsed by the parent, once it sees this transaction in its mergedTxs
+        collapseNestedFootprint();
+        this.propagatedArrayReads = this.arraysRead;
         do {
             currentOrecs = parent.mergedTxs;
             modifiedOrecs = currentOrecs.cons(this);
@@ -66,16 +69,11 @@ public class ParallelNestedReadOnlyTransaction extends ParallelNestedTransaction
                 modifiedOrecs = modifiedOrecs.cons(child);
             }
         } while (!parent.CASmergedTxs(currentOrecs, modifiedOrecs));
-
-        if (!this.arraysRead.isEmpty()) {
-            synchronized (parent) {
-                parent.arraysRead = this.arraysRead.reverseInto(parent.arraysRead);
-            }
-        }
     }
 
     @Override
     public <T> T getBoxValue(VBox<T> vbox) {
+        checkNestedCancelled();
         InplaceWrite<T> inplaceWrite = vbox.inplace;
         T value = inplaceWrite.tempValue;
         OwnershipRecord inplaceOrec = inplaceWrite.orec;
@@ -115,16 +113,9 @@ public class ParallelNestedReadOnlyTransaction extends ParallelNestedTransaction
     protected <T> T getLocalArrayValue(VArrayEntry<T> entry) {
         ReadWriteTransaction iter = getRWParent();
         while (iter != null) {
-            if (iter.arrayWrites != EMPTY_MAP) {
-                VArrayEntry<T> wsEntry = (VArrayEntry<T>) iter.arrayWrites.get(entry);
-                if (wsEntry == null) {
-                    iter = iter.getRWParent();
-                    continue;
-                }
-
-                if (wsEntry.nestedVersion <= retrieveAncestorVersion(iter)) {
-                    return (wsEntry.getWriteValue() == null ? (T) NULL_VALUE : wsEntry.getWriteValue());
-                }
+            VArrayEntry<T> wsEntry = (VArrayEntry<T>) iter.getVisibleArrayWrite(entry);
+            if (wsEntry != null && wsEntry.nestedVersion <= retrieveAncestorVersion(iter)) {
+                return (wsEntry.getWriteValue() == null ? (T) NULL_VALUE : wsEntry.getWriteValue());
             }
             iter = iter.getRWParent();
         }
@@ -138,13 +129,13 @@ public class ParallelNestedReadOnlyTransaction extends ParallelNestedTransaction
     }
 
     @Override
-    public <T> void setBoxValue(jvstm.VBox<T> vbox, T value) {
+    public void setPrimitiveArrayValue(VPrimitiveArray array, int index, long value) {
         throw new WriteOnReadException();
     }
 
     @Override
-    protected <T> T getPerTxValue(PerTxBox<T> box) {
-        throw new RuntimeException("Not implemented for NestedReadOnlyTransactions");
+    public <T> void setBoxValue(jvstm.VBox<T> vbox, T value) {
+        throw new WriteOnReadException();
     }
 
     @Override
@@ -25,9 +25,11 @@
  */
 package jvstm;
 
+import static jvstm.UtilUnsafe.UNSAFE;
+
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import jvstm.util.Cons;
 
@@ -46,24 +48,16 @@ import jvstm.util.Cons;
  */
 public class ParallelNestedTransaction extends ReadWriteTransaction {
 
-    protected static final ExecuteParallelNestedTxSequentiallyException EXECUTE_SEQUENTIALLY_EXCEPTION = new ExecuteParallelNestedTxSequentiallyException();
-
-    protected ThreadLocal<AtomicInteger> blocksFree = new ThreadLocal<AtomicInteger>() {
-        @Override
-        protected AtomicInteger initialValue() {
-            return new AtomicInteger(0);
-        }
-    };
-
-    protected ThreadLocal<Cons<ReadBlock>> blocksPool = new ThreadLocal<Cons<ReadBlock>>() {
-        @Override
-        protected Cons<ReadBlock> initialValue() {
-            return Cons.empty();
-        }
-    };
-
     protected Cons<ReadBlock> globalReads;
     protected Map<VBox, InplaceWrite> nestedReads;
+    // the values of the PerTxBoxes read from the ancestors (see getPerTxBase).  The children of this transaction
+    // may add to it concurrently, so it is never changed, but replaced by a copy (see CASperTxBases)
+    protected volatile Map<PerTxBox, Object> perTxBases = EMPTY_MAP;
+
+    private static class Offsets {
+        // --- Setup to use Unsafe
+        private static final long perTxBasesOffset = UtilUnsafe.objectFieldOffset(ParallelNestedTransaction.class, "perTxBases");
+    }
 
     public ParallelNestedTransaction(ReadWriteTransaction parent) {
         super(parent);
@@ -93,9 +87,17 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
     }
 
     @Override
+    protected boolean supportsArrayRangeEntries() {
+        return false;
+    }
+
+    @Override
+    /* A linear NestedTransaction assumes that the writes of its parent are not concurrent with anyone else's, which
+     * does not hold here.  Instead, the nested transaction is a parallel nested one that runs in this same thread, so
+     * that the inplace writes, the ancestor versions, and the validation against its siblings are handled just as for
+     * any other child: it may abort and restart on its own, while this transaction is kept. */
     public Transaction makeNestedTransaction(boolean readOnly) {
-        throw new Error(
-                "A Parallel Nested Transaction cannot spawn a Linear Nested Transaction yet. Consider using a single Parallel Nested Transaction instead.");
+        return makeParallelNestedTransaction(readOnly);
     }
 
     @Override
@@ -162,18 +164,19 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
         }
         super.boxesWritten = null;
 
-        int i = 0;
-        for (ReadBlock block : globalReads) {
-            block.free = true;
-            i++;
-        }
-        blocksFree.get().addAndGet(i);
+        releaseBlocks(globalReads);
 
         this.globalReads = null;
         this.nestedReads = null;
         super.mergedTxs = null;
     }
 
+    protected static void releaseBlocks(Cons<ReadBlock> blocks) {
+        for (ReadBlock block : blocks) {
+            block.release();
+        }
+    }
+
     protected void revertOverwrite(VBox vboxWritten) {
         InplaceWrite write = vboxWritten.inplace;
         if (write.orec.owner != this) {
@@ -193,26 +196,24 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
         }
     }
 
+    /* Aborts this transaction if some sibling of it (or of one of its ancestors) failed, because then its work
+     * would be discarded anyway. */
+    protected void checkNestedCancelled() {
+        if (isNestedCancelled()) {
+            TransactionSignaller.SIGNALLER.signalEarlyAbort();
+        }
+    }
+
     protected <T> T readGlobal(VBox<T> vbox) {
+        checkNestedCancelled();
         VBoxBody<T> body = vbox.body;
         if (body.version > number) {
             TransactionSignaller.SIGNALLER.signalEarlyAbort();
         }
 
-        ReadBlock readBlock = null;
+        ReadBlock readBlock;
         if (next < 0) {
-            if (blocksFree.get().get() > 0) {
-                for (ReadBlock poolBlock : blocksPool.get()) {
-                    if (poolBlock.free) {
-                        poolBlock.free = false;
-                        readBlock = poolBlock;
-                        blocksFree.get().decrementAndGet();
-                        break;
-                    }
-                }
-            } else {
-                readBlock = new ReadBlock(blocksFree.get());
-            }
+            readBlock = ReadBlock.acquire();
             next = 999;
             globalReads = globalReads.cons(readBlock);
         } else {
@@ -224,6 +225,7 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
 
     @Override
     public <T> T getBoxValue(VBox<T> vbox) {
+        checkNestedCancelled();
         InplaceWrite<T> inplaceWrite = vbox.inplace;
         T value = inplaceWrite.tempValue;
         OwnershipRecord inplaceOrec = inplaceWrite.orec;
@@ -270,6 +272,7 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
 
     @Override
     public <T> void setBoxValue(jvstm.VBox<T> vbox, T value) {
+        checkNestedCancelled();
         InplaceWrite<T> inplaceWrite = vbox.inplace;
         OwnershipRecord currentOwner = inplaceWrite.orec;
         if (currentOwner.owner == this) { // we are already the current writer
@@ -305,16 +308,17 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
         }
 
         manualAbort();
-        throw EXECUTE_SEQUENTIALLY_EXCEPTION;
+        throw new ExecuteParallelNestedTxSequentiallyException(vbox, currentOwner.owner);
     }
 
     /*
      * VArrays:
      * Here we ensure that the local array read over ancestors is consistent with concurrent nested commits
-     * This procedure is blocking, accordingly to the support provided to VArrays.
+     * (see ReadWriteTransaction.getVisibleArrayWrite).
      */
     @Override
     protected <T> T getLocalArrayValue(VArrayEntry<T> entry) {
+        collapseNestedFootprint();
         if (this.arrayWrites != EMPTY_MAP) {
             VArrayEntry<T> wsEntry = (VArrayEntry<T>) this.arrayWrites.get(entry);
             if (wsEntry != null) {
@@ -324,21 +328,14 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
 
         ReadWriteTransaction iter = getRWParent();
         while (iter != null) {
-            synchronized (iter) {
-                if (iter.arrayWrites != EMPTY_MAP) {
-                    VArrayEntry<T> wsEntry = (VArrayEntry<T>) iter.arrayWrites.get(entry);
-                    if (wsEntry == null) {
-                        iter = iter.getRWParent();
-                        continue;
-                    }
-
-                    if (wsEntry.nestedVersion <= retrieveAncestorVersion(iter)) {
-                        this.arraysRead = this.arraysRead.cons(entry);
-                        entry.setReadOwner(iter);
-                        return (wsEntry.getWriteValue() == null ? (T) NULL_VALUE : wsEntry.getWriteValue());
-                    } else {
-                        TransactionSignaller.SIGNALLER.signalCommitFail(iter);
-                    }
+            VArrayEntry<T> wsEntry = (VArrayEntry<T>) iter.getVisibleArrayWrite(entry);
+            if (wsEntry != null) {
+                if (wsEntry.nestedVersion <= retrieveAncestorVersion(iter)) {
+                    this.arraysRead = this.arraysRead.cons(entry);
+                    entry.setReadOwner(iter);
+                    return (wsEntry.getWriteValue() == null ? (T) NULL_VALUE : wsEntry.getWriteValue());
+                } else {
+                    TransactionSignaller.SIGNALLER.signalCommitFail(iter);
                 }
             }
             iter = iter.getRWParent();
@@ -348,27 +345,119 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
     }
 
     /*
-     * Both parallel nested transactions and perTxBoxes may be seen as alternatives to work
-     * around inherently-conflicting workloads. An important question may be posed if we put
-     * them together: when should a perTxBox be committed, if write by a parallel nested
-     * transaction? Is it solving a conflict at top-level, or nested level of parallelism?
-     *
-     * Should the need for perTxBoxes arise in parNesting, that question shall have to be addressed.
+     * VPrimitiveArrays: the writes are kept in this transaction, and are seen by its parent (and by its other
+     * children) once it commits, as for VArrays.  Every position read is recorded, so that it is validated against
+     * the siblings that commit meanwhile (see validateNestedPrimitiveArrayReads) and, once collapsed into the parent,
+     * by the ancestors.
+     */
+    @Override
+    public long getPrimitiveArrayValue(VPrimitiveArray array, int index) {
+        checkNestedCancelled();
+        collapseNestedFootprint();
+        PrimitiveArrayAccesses accesses = getPrimitiveArrayAccesses(array);
+        int slot = accesses.findWrite(index);
+        if (slot >= 0) {
+            return accesses.getWrite(slot);
+        }
+        accesses.addRead(index);
+
+        ReadWriteTransaction iter = getRWParent();
+        while (iter != null) {
+            ReadWriteTransaction writer = iter.getVisiblePrimitiveArrayWriter(array, index);
+            if (writer != null) {
+                if (writer != iter && writer.orec.nestedVersion > retrieveAncestorVersion(iter)) {
+                    TransactionSignaller.SIGNALLER.signalCommitFail(iter);
+                }
+                PrimitiveArrayAccesses writes = writer.primitiveArrayAccesses.get(array);
+                return writes.getWrite(writes.findWrite(index));
+            }
+            iter = iter.getRWParent();
+        }
+
+        return array.readRaw(index, number);
+    }
+
+    @Override
+    public void setPrimitiveArrayValue(VPrimitiveArray array, int index, long value) {
+        checkNestedCancelled();
+        super.setPrimitiveArrayValue(array, index, value);
+    }
+
+    /*
+     * PerTxBoxes: a parallel nested transaction reads the value of a PerTxBox from its ancestors once, and keeps
+     * it as the base of its own changes.  When it commits, its values are merged with those that the parent makes
+     * visible: if the parent still has the base value, the value of the child simply replaces it; otherwise, a
+     * sibling changed it in the meantime, and the PerTxBox decides how to combine both changes (see
+     * PerTxBox.mergeNested), or the child restarts.  The merged values are published by the nested commit record,
+     * along with the rest of the footprint of the child, and collapsed by the parent once it resumes.  The
+     * PerTxBoxes are committed (PerTxBox.commit) only by the top-level transaction, as usual.
      */
     @Override
-    public <T> T getPerTxValue(PerTxBox<T> box, T initial) {
-        throw new RuntimeException("Parallel Nested Transactions do not support PerTxBoxes");
+    protected <T> T getPerTxValue(PerTxBox<T> box) {
+        if (perTxValues != EMPTY_MAP) {
+            T value = (T) perTxValues.get(box);
+            if (value != null) {
+                return value;
+            }
+        }
+        return getPerTxBase(box);
     }
 
     @Override
     public <T> void setPerTxValue(PerTxBox<T> box, T value) {
-        throw new RuntimeException("Parallel Nested Transactions do not support PerTxBoxes");
+        getPerTxBase(box);
+        super.setPerTxValue(box, value);
+    }
+
+    /* May be invoked concurrently by the children of this transaction (see getVisiblePerTxValue), in which case
+     * the first base read is the one kept. */
+    protected <T> T getPerTxBase(PerTxBox<T> box) {
+        while (true) {
+            Map<PerTxBox, Object> bases = perTxBases;
+            if (bases.containsKey(box)) {
+                return (T) bases.get(box);
+            }
+            T value = getRWParent().getVisiblePerTxValue(box);
+            Map<PerTxBox, Object> newBases = new IdentityHashMap<PerTxBox, Object>(bases);
+            newBases.put(box, value);
+            if (CASperTxBases(bases, newBases)) {
+                return value;
+            }
+        }
+    }
+
+    private boolean CASperTxBases(Map<PerTxBox, Object> expectedBases, Map<PerTxBox, Object> newBases) {
+        return UNSAFE.compareAndSwapObject(this, Offsets.perTxBasesOffset, expectedBases, newBases);
+    }
+
+    /* Computes the values that this transaction leaves in the parent, given the values that the parent makes
+     * visible, without changing it, because the commit may still fail. */
+    protected Map<PerTxBox, Object> mergePerTxValues(ReadWriteTransaction parent) {
+        if (perTxValues == EMPTY_MAP || perTxValues.isEmpty()) {
+            return EMPTY_MAP;
+        }
+        Map<PerTxBox, Object> merged = new IdentityHashMap<PerTxBox, Object>();
+        for (Map.Entry<PerTxBox, Object> entry : perTxValues.entrySet()) {
+            PerTxBox box = entry.getKey();
+            Object base = perTxBases.get(box);
+            Object parentValue = parent.getVisiblePerTxValue(box);
+            Object value = entry.getValue();
+            if (parentValue != base) {
+                value = box.mergeNested(box.valueOrInitial(base), box.valueOrInitial(parentValue), box.valueOrInitial(value));
+                if (value == null) {
+                    TransactionSignaller.SIGNALLER.signalCommitFail(parent);
+                }
+            }
+            merged.put(box, value);
+        }
+        return merged;
     }
 
     @Override
     protected void finish() {
+        // the perTxValues are kept, until the parent collapses them
         boxesWritten = null;
-        perTxValues = null;
+        perTxBases = null;
         mergedTxs = null;
     }
 
@@ -376,7 +465,7 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
     protected void doCommit() {
         tryCommit();
         boxesWritten = null;
-        perTxValues = EMPTY_MAP;
+        perTxBases = EMPTY_MAP;
         mergedTxs = null;
     }
 
@@ -384,10 +473,7 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
     protected void cleanUp() {
         boxesWrittenInPlace = null;
         nestedReads = null;
-        for (ReadBlock block : globalReads) {
-            block.free = true;
-            block.freeBlocks.incrementAndGet();
-        }
+        releaseBlocks(globalReads);
         globalReads = null;
 
     }
@@ -407,15 +493,22 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
 
     @Override
     protected void tryCommit() {
+        commitNested();
+    }
+
+    protected void commitNested() {
         ReadWriteTransaction parent = getRWParent();
         NestedCommitRecord lastSeen;
         NestedCommitRecord newCommit;
 
+        collapseNestedFootprint();
         do {
             lastSeen = helpCommitAll(parent.nestedCommitQueue);
             snapshotValidation(lastSeen.commitNumber);
-            Cons<VArrayEntry<?>> varrayReadsToPropagate = validateNestedArrayReads();
-            newCommit = new NestedCommitRecord(this, this.mergedTxs, parent.mergedTxs, varrayReadsToPropagate, arrayWrites, arrayWritesCount, lastSeen.commitNumber + 1);
+            this.propagatedArrayReads = validateNestedArrayReads();
+            validateNestedPrimitiveArrayReads();
+            newCommit = new NestedCommitRecord(this, this.mergedTxs, parent.mergedTxs, mergePerTxValues(parent),
+                    lastSeen.commitNumber + 1);
         } while (!lastSeen.next.compareAndSet(null, newCommit));
 
         lastSeen = parent.nestedCommitQueue;
@@ -515,33 +608,52 @@ public class ParallelNestedTransaction extends ReadWriteTransaction {
         }
     }
 
+    /* Returns the array reads that must be validated by the ancestors of the parent */
     protected Cons<VArrayEntry<?>> validateNestedArrayReads() {
-        Map<VArrayEntry<?>, VArrayEntry<?>> parentArrayWrites = getRWParent().arrayWrites;
-        Cons<VArrayEntry<?>> parentArrayReads = getRWParent().arraysRead;
+        ReadWriteTransaction parent = getRWParent();
+        Cons<VArrayEntry<?>> readsToPropagate = Cons.empty();
         int maxVersionOnParent = retrieveAncestorVersion(parent);
         for (VArrayEntry<?> entry : arraysRead) {
 
             // If the read was performed on an ancestor of the parent, then
             // propagate it for further validation
             if (entry.owner != parent) {
-                parentArrayReads = parentArrayReads.cons(entry);
+                readsToPropagate = readsToPropagate.cons(entry);
             }
 
-            synchronized (parent) {
-                if (parentArrayWrites != EMPTY_MAP) {
-                    // Verify if the parent contains a more recent write for the
-                    // read that we performed somewhere in our ancestors
-                    VArrayEntry<?> parentWrite = parentArrayWrites.get(entry);
-                    if (parentWrite == null) {
-                        continue;
-                    }
-                    if (parentWrite.nestedVersion > maxVersionOnParent) {
-                        TransactionSignaller.SIGNALLER.signalCommitFail(parent);
-                    }
-                }
+            // Verify if the parent contains a more recent write for the
+            // read that we performed somewhere in our ancestors
+            VArrayEntry<?> parentWrite = parent.getVisibleArrayWrite(entry);
+            if (parentWrite != null && parentWrite.nestedVersion > maxVersionOnParent) {
+                TransactionSignaller.SIGNALLER.signalCommitFail(parent);
             }
         }
 
-        return parentArrayReads;
+        return readsToPropagate;
+    }
+
+    /* Verifies that no sibling that committed after this transaction started wrote to a position of a
+     * VPrimitiveArray that it read.  The reads themselves are collapsed into the parent, which validates them
+     * against its own ancestors. */
+    protected void validateNestedPrimitiveArrayReads() {
+        if (primitiveArrayAccesses == EMPTY_MAP) {
+            return;
+        }
+        ReadWriteTransaction parent = getRWParent();
+        int maxVersionOnParent = retrieveAncestorVersion(parent);
+        Cons<ParallelNestedTransaction> collapsed = parent.collapsedMergedTxs;
+        for (Cons<ParallelNestedTransaction> iter = parent.mergedTxs; iter != collapsed && !iter.isEmpty(); iter = iter.rest()) {
+            ParallelNestedTransaction sibling = iter.first();
+            if (sibling.parent != parent || sibling.orec.nestedVersion <= maxVersionOnParent
+                    || sibling.primitiveArrayAccesses == EMPTY_MAP) {
+                continue;
+            }
+            for (PrimitiveArrayAccesses accesses : primitiveArrayAccesses.values()) {
+                PrimitiveArrayAccesses siblingWrites = sibling.primitiveArrayAccesses.get(accesses.array);
+                if (siblingWrites != null && accesses.readsAnyWrittenBy(siblingWrites)) {
+                    TransactionSignaller.SIGNALLER.signalCommitFail(parent);
+                }
+            }
+        }
     }
 }
@@ -57,4 +57,16 @@ public class PerTxBox<E> {
 
     public void commit(E value) {
     }
+
+    /* Invoked when a parallel nested transaction that changed the value of this box from base to childValue
+     * commits, but some sibling already changed the value in their parent from base to parentValue.  Returns the
+     * value that combines both changes (e.g., parentValue + childValue - base, for a counter), or null if they
+     * cannot be combined, in which case the nested transaction restarts.  By default, they cannot. */
+    public E mergeNested(E base, E parentValue, E childValue) {
+        return null;
+    }
+
+    E valueOrInitial(E value) {
+        return (value == null) ? initial : value;
+    }
 }
@@ -25,8 +25,13 @@
  */
 package jvstm;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import jvstm.util.Cons;
 
@@ -37,6 +42,12 @@ import jvstm.util.Cons;
  * and setBoxValue to be hooked, so that they correctly handle a situation in
  * which there are potential multiple helpers going through the same PerTxBoxes.
  *
+ * When the committer fails to enqueue its commit, because other transactions
+ * got ahead of it, the PerTxBoxes are speculated again, on top of the more
+ * recent version (see respeculate).  Only the commits of the PerTxBoxes that
+ * read some box written in the meantime run again; the others keep what they
+ * wrote.
+ *
  * @author nmld
  *
  */
@@ -48,6 +59,24 @@ public class ProcessPerTxBoxesTransaction extends Transaction {
     protected Map<VBox, Object> specWriteSet = ReadWriteTransaction.EMPTY_MAP;
     private TopLevelTransaction committer;
 
+    /* What the commit of each PerTxBox read and wrote, in the order in which they ran */
+    private List<Speculation> speculations;
+    private Speculation running;
+    // set once some commit reads or writes the speculative values of PerTxBoxes, which are not tracked separately
+    private boolean perTxBoxesShared = false;
+
+    private static final class Speculation {
+        final PerTxBox box;
+        final Object value;
+        Set<VBox> reads;
+        Map<VBox, Object> writes;
+
+        Speculation(PerTxBox box, Object value) {
+            this.box = box;
+            this.value = value;
+        }
+    }
+
     public ProcessPerTxBoxesTransaction() {
         super(0);
     }
@@ -63,6 +92,98 @@ public class ProcessPerTxBoxesTransaction extends Transaction {
         this.committer = null;
     }
 
+    /* Runs the commit of each of the committer's PerTxBoxes, for the first time.  Must be followed by
+     * finishExecution. */
+    protected void speculate(Map<PerTxBox, Object> perTxValues) {
+        speculations = new ArrayList<Speculation>(perTxValues.size());
+        for (Map.Entry<PerTxBox, Object> entry : perTxValues.entrySet()) {
+            Speculation speculation = new Speculation(entry.getKey(), entry.getValue());
+            speculations.add(speculation);
+            run(speculation);
+        }
+    }
+
+    /*
+     * Speculates again, on top of the more recent version maxVersion, after some transactions committed in the
+     * meantime (and were helped to write back).  The commit of a PerTxBox runs again only if it read a box written by
+     * one of those transactions, or by a commit that ran again before it with a different outcome.  Otherwise, what it
+     * wrote the previous time is kept.  Returns the transaction with the new outcome, which may be a new one.
+     */
+    protected ProcessPerTxBoxesTransaction respeculate(int maxVersion, TopLevelTransaction committer) {
+        if (perTxBoxesShared) {
+            ProcessPerTxBoxesTransaction fresh = new ProcessPerTxBoxesTransaction(maxVersion, committer);
+            fresh.speculate(committer.perTxValues);
+            return fresh;
+        }
+
+        int previousVersion = this.number;
+        setNumber(maxVersion);
+        this.committer = committer;
+        Transaction.current.set(this);
+
+        Set<VBox> changed = null;
+        specWriteSet = ReadWriteTransaction.EMPTY_MAP;
+        for (Speculation speculation : speculations) {
+            if (!isStale(speculation, previousVersion, changed)) {
+                if (!speculation.writes.isEmpty()) {
+                    if (specWriteSet == ReadWriteTransaction.EMPTY_MAP) {
+                        specWriteSet = new HashMap<VBox, Object>();
+                    }
+                    specWriteSet.putAll(speculation.writes);
+                }
+                continue;
+            }
+            Map<VBox, Object> previousWrites = speculation.writes;
+            run(speculation);
+            changed = addChangedWrites(previousWrites, speculation.writes, changed);
+        }
+        return this;
+    }
+
+    private void run(Speculation speculation) {
+        speculation.reads = Collections.newSetFromMap(new IdentityHashMap<VBox, Boolean>());
+        speculation.writes = new HashMap<VBox, Object>();
+        running = speculation;
+        try {
+            speculation.box.commit(speculation.value);
+        } finally {
+            running = null;
+        }
+    }
+
+    private static boolean isStale(Speculation speculation, int previousVersion, Set<VBox> changed) {
+        for (VBox vbox : speculation.reads) {
+            VBoxBody body = vbox.body;
+            if ((body != null && body.version > previousVersion) || (changed != null && changed.contains(vbox))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<VBox> addChangedWrites(Map<VBox, Object> previous, Map<VBox, Object> current, Set<VBox> changed) {
+        for (Map.Entry<VBox, Object> entry : previous.entrySet()) {
+            Object value = current.get(entry.getKey());
+            if (value == null || !value.equals(entry.getValue())) {
+                changed = addTo(changed, entry.getKey());
+            }
+        }
+        for (VBox vbox : current.keySet()) {
+            if (!previous.containsKey(vbox)) {
+                changed = addTo(changed, vbox);
+            }
+        }
+        return changed;
+    }
+
+    private static Set<VBox> addTo(Set<VBox> set, VBox vbox) {
+        if (set == null) {
+            set = Collections.newSetFromMap(new IdentityHashMap<VBox, Boolean>());
+        }
+        set.add(vbox);
+        return set;
+    }
+
     protected <T> T getLocalValue(VBox<T> vbox) {
         InplaceWrite<T> inplace = vbox.inplace;
         if (inplace.orec.owner == this.committer) {
@@ -76,6 +197,9 @@ public class ProcessPerTxBoxesTransaction extends Transaction {
 
     @Override
     public <T> T getBoxValue(VBox<T> vbox) {
+        if (running != null) {
+            running.reads.add(vbox);
+        }
         T value = null;
         if (specWriteSet != ReadWriteTransaction.EMPTY_MAP) {
             value = (T) specWriteSet.get(vbox);
@@ -103,12 +227,16 @@ public class ProcessPerTxBoxesTransaction extends Transaction {
             specWriteSet = new HashMap<VBox, Object>();
         }
         specWriteSet.put(vbox, value == null ? ReadWriteTransaction.NULL_VALUE : value);
+        if (running != null) {
+            running.writes.put(vbox, value == null ? ReadWriteTransaction.NULL_VALUE : value);
+        }
     }
 
     @Override
     public <T> T getPerTxValue(PerTxBox<T> box, T initial) {
         T value = null;
         if (specPerTxBoxes != ReadWriteTransaction.EMPTY_MAP) {
+            perTxBoxesShared = true;
             value = (T) specPerTxBoxes.get(box);
         }
         if (value == null && committer.perTxValues != ReadWriteTransaction.EMPTY_MAP) {
@@ -123,12 +251,19 @@ public class ProcessPerTxBoxesTransaction extends Transaction {
 
     @Override
     public <T> void setPerTxValue(PerTxBox<T> box, T value) {
+        perTxBoxesShared = true;
         if (specPerTxBoxes == ReadWriteTransaction.EMPTY_MAP) {
             specPerTxBoxes = new HashMap<PerTxBox, Object>();
         }
         specPerTxBoxes.put(box, value);
     }
 
+    // the committer's own updates are applied by their PerTxBoxes
+    @Override
+    protected boolean defersCommutativeOps() {
+        return false;
+    }
+
     private static final String NOT_YET_SUPPORTED_MESSAGE = "The CommitTimeTransaction does not YET implement this operation";
 
     // TODO to work out later with Ivo
@@ -142,6 +277,16 @@ public class ProcessPerTxBoxesTransaction extends Transaction {
         throw new UnsupportedOperationException(NOT_YET_SUPPORTED_MESSAGE);
     }
 
+    @Override
+    public long getPrimitiveArrayValue(VPrimitiveArray array, int index) {
+        throw new UnsupportedOperationException(NOT_YET_SUPPORTED_MESSAGE);
+    }
+
+    @Override
+    public void setPrimitiveArrayValue(VPrimitiveArray array, int index, long value) {
+        throw new UnsupportedOperationException(NOT_YET_SUPPORTED_MESSAGE);
+    }
+
     private static final String UNSUPPORTED_MESSAGE = "The CommitTimeTransaction does not implement this operation";
 
     @Override
@@ -26,18 +26,75 @@
 package jvstm;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-
+/* A block of the global reads of a ParallelNestedTransaction.  Blocks are kept in a per-thread pool, shared by all the
+ * parallel nested transactions that run in that thread.  A block is released when the transaction that used it is
+ * no longer validated (which may happen in another thread, e.g. when the top-level transaction finishes), and it
+ * goes back to the pool of the thread that allocated it.  The pool is a lock-free stack: any thread may push to it,
+ * but only its thread pops from it, so it does not suffer from the ABA problem.
+ */
 public class ReadBlock {
 
-    protected boolean free;
-    protected VBox[] entries;
-    protected AtomicInteger freeBlocks;
+    // the number of blocks kept by the pool of each thread; any blocks released above it are left to the GC
+    protected static final int MAX_POOLED_BLOCKS = 64;
+
+    private static final ThreadLocal<Pool> threadPool = new ThreadLocal<Pool>() {
+        @Override
+        protected Pool initialValue() {
+            return new Pool();
+        }
+    };
 
-    public ReadBlock(AtomicInteger freeBlocks) {
-        this.free = false;
+    protected final VBox[] entries;
+    private final Pool pool;
+    private ReadBlock nextFree;
+
+    private ReadBlock(Pool pool) {
         this.entries = new VBox[1000];
-        this.freeBlocks = freeBlocks;
+        this.pool = pool;
+    }
+
+    /* Takes a block from the pool of the current thread, or allocates a new one if the pool is empty */
+    public static ReadBlock acquire() {
+        return threadPool.get().pop();
     }
 
+    /* May be invoked from any thread, but at most once after each acquire */
+    public void release() {
+        pool.push(this);
+    }
+
+    private static final class Pool {
+        private final AtomicReference<ReadBlock> top = new AtomicReference<ReadBlock>();
+        private final AtomicInteger size = new AtomicInteger(0);
+
+        ReadBlock pop() {
+            while (true) {
+                ReadBlock block = top.get();
+                if (block == null) {
+                    return new ReadBlock(this);
+                }
+                if (top.compareAndSet(block, block.nextFree)) {
+                    size.decrementAndGet();
+                    block.nextFree = null;
+                    return block;
+                }
+            }
+        }
+
+        void push(ReadBlock block) {
+            if (size.incrementAndGet() > MAX_POOLED_BLOCKS) {
+                size.decrementAndGet();
+                return;
+            }
+            while (true) {
+                ReadBlock current = top.get();
+                block.nextFree = current;
+                if (top.compareAndSet(current, block)) {
+                    return;
+                }
+            }
+        }
+    }
 }
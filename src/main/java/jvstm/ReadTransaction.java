@@ -82,6 +82,25 @@ public class ReadTransaction extends Transaction {
         throw WRITE_ON_READ_EXCEPTION;
     }
 
+    public long getPrimitiveArrayValue(VPrimitiveArray array, int index) {
+        return array.readRaw(index, number);
+    }
+
+    public void setPrimitiveArrayValue(VPrimitiveArray array, int index, long value) {
+        throw WRITE_ON_READ_EXCEPTION;
+    }
+
+    @Override
+    public <T> void getArrayRange(VArray<T> array, int from, int to, T[] dest) {
+        // read-only transactions need no read-set
+        array.readRange(from, to, dest, number);
+    }
+
+    @Override
+    public <T> void setArrayRange(VArray<T> array, int from, int to, T[] src) {
+        throw WRITE_ON_READ_EXCEPTION;
+    }
+
     protected void doCommit() {
     }
 
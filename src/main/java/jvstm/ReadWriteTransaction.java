@@ -28,9 +28,11 @@ package jvstm;
 import static jvstm.UtilUnsafe.UNSAFE;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Map;
 
+import jvstm.gc.TxContext;
 import jvstm.util.Cons;
 
 public abstract class ReadWriteTransaction extends Transaction {
@@ -41,25 +43,28 @@ public abstract class ReadWriteTransaction extends Transaction {
     protected static final VBox[] EMPTY_WRITE_SET = new VBox[0];
     protected static final Map EMPTY_MAP = Collections.emptyMap();
 
-    protected static final ThreadLocal<Cons<VBox[]>> pool = new ThreadLocal<Cons<VBox[]>>() {
-        @Override
-        public Cons<VBox[]> initialValue() {
-            return Cons.empty();
-        }
-    };
+    /* The read-set arrays are reused through the TxContext of the top-level transaction, which
+     * keeps at most this many of them. */
+    protected static final int MAX_POOLED_READ_SETS = 16;
 
     protected static void returnToPool(VBox[] array) {
-        pool.set(pool.get().cons(array));
+        TxContext ctx = Transaction.boundContext();
+        if (ctx != null && ctx.readSetPoolSize < MAX_POOLED_READ_SETS) {
+            ctx.readSetPool = ctx.readSetPool.cons(array);
+            ctx.readSetPoolSize++;
+        }
     }
 
     private static VBox[] borrowFromPool() {
-        Cons<VBox[]> available = pool.get();
-        if (available.isEmpty()) {
+        TxContext ctx = Transaction.boundContext();
+        if (ctx == null || ctx.readSetPool.isEmpty()) {
             VBox[] newArray = new VBox[1000];
             return newArray;
         } else {
-            pool.set(available.rest());
-            return available.first();
+            VBox[] array = ctx.readSetPool.first();
+            ctx.readSetPool = ctx.readSetPool.rest();
+            ctx.readSetPoolSize--;
+            return array;
         }
     }
 
@@ -71,8 +76,17 @@ public abstract class ReadWriteTransaction extends Transaction {
     protected Map<PerTxBox, Object> perTxValues = EMPTY_MAP;
     protected Map<VArrayEntry<?>, VArrayEntry<?>> arrayWrites = EMPTY_MAP;
     protected Map<VArray<?>, Integer> arrayWritesCount = EMPTY_MAP;
+    // Writes of whole ranges, made with setArrayRange.  No position is ever written both here and in
+    // arrayWrites, nor in two different range writes.
+    protected Cons<VArrayRangeWrite<?>> arrayRangeWrites = Cons.empty();
+    protected Map<VPrimitiveArray, PrimitiveArrayAccesses> primitiveArrayAccesses = EMPTY_MAP;
     protected OwnershipRecord orec = new OwnershipRecord(this);
-    public Cons<ParallelNestedTransaction> mergedTxs = Cons.empty();
+    public volatile Cons<ParallelNestedTransaction> mergedTxs = Cons.empty();
+    // The value of mergedTxs when the footprint of the children was last collapsed (see
+    // collapseNestedFootprint).  Only used by the thread that runs this transaction.
+    protected Cons<ParallelNestedTransaction> collapsedMergedTxs = Cons.empty();
+    // The array reads of a parallel nested transaction that its parent must still validate
+    protected Cons<VArrayEntry<?>> propagatedArrayReads = Cons.empty();
     protected Cons<OwnershipRecord> linearNestedOrecs = Cons.empty();
     protected int[] ancVersions;
 
@@ -89,12 +103,15 @@ public abstract class ReadWriteTransaction extends Transaction {
 
     @Override
     public Transaction makeNestedTransaction(boolean readOnly) {
+        collapseNestedFootprint();
         // always create a RW nested transaction, because we need its read-set
         return new NestedTransaction(this);
     }
 
     @Override
     public Transaction makeParallelNestedTransaction(boolean readOnly) {
+        // usually already done by prepareParallelNesting, in which case this does nothing
+        expandArrayRangeWrites();
         if (readOnly) {
             return new ParallelNestedReadOnlyTransaction(this);
         } else {
@@ -133,6 +150,8 @@ public abstract class ReadWriteTransaction extends Transaction {
         perTxValues = null;
         arrayWrites = null;
         arrayWritesCount = null;
+        arrayRangeWrites = null;
+        primitiveArrayAccesses = null;
         cleanUp();
     }
 
@@ -160,6 +179,8 @@ public abstract class ReadWriteTransaction extends Transaction {
         perTxValues = EMPTY_MAP;
         arrayWrites = EMPTY_MAP;
         arrayWritesCount = EMPTY_MAP;
+        arrayRangeWrites = Cons.empty();
+        primitiveArrayAccesses = EMPTY_MAP;
     }
 
     protected abstract void tryCommit();
@@ -310,6 +331,7 @@ public abstract class ReadWriteTransaction extends Transaction {
 
     @Override
     public <T> T getPerTxValue(PerTxBox<T> box, T initial) {
+        collapseNestedFootprint();
         T value = getPerTxValue(box);
         if (value == null) {
             value = initial;
@@ -320,6 +342,7 @@ public abstract class ReadWriteTransaction extends Transaction {
 
     @Override
     public <T> void setPerTxValue(PerTxBox<T> box, T value) {
+        collapseNestedFootprint();
         if (perTxValues == EMPTY_MAP) {
             perTxValues = new IdentityHashMap<PerTxBox, Object>();
         }
@@ -327,6 +350,7 @@ public abstract class ReadWriteTransaction extends Transaction {
     }
 
     protected <T> T getLocalArrayValue(VArrayEntry<T> entry) {
+        collapseNestedFootprint();
         T value = null;
         if (arrayWrites != EMPTY_MAP) {
             VArrayEntry<T> wsEntry = (VArrayEntry<T>) arrayWrites.get(entry);
@@ -334,6 +358,17 @@ public abstract class ReadWriteTransaction extends Transaction {
                 value = (wsEntry.getWriteValue() == null ? (T) NULL_VALUE : wsEntry.getWriteValue());
             }
         }
+        if (value == null) {
+            for (VArrayRangeWrite<?> rangeWrite : arrayRangeWrites) {
+                if (rangeWrite.contains(entry.array, entry.index)) {
+                    value = (T) rangeWrite.values[entry.index - rangeWrite.from];
+                    if (value == null) {
+                        value = (T) NULL_VALUE;
+                    }
+                    break;
+                }
+            }
+        }
         if ((value == null) && (parent != null)) {
             value = getRWParent().getLocalArrayValue(entry);
         }
@@ -353,11 +388,25 @@ public abstract class ReadWriteTransaction extends Transaction {
 
     @Override
     public <T> void setArrayValue(VArrayEntry<T> entry, T value) {
+        entry.setWriteValue(value, this.nestedCommitQueue.commitNumber);
+        addArrayWrite(entry);
+    }
+
+    /* Adds an entry, whose write value is already set, to the array write-set. */
+    protected void addArrayWrite(VArrayEntry<?> entry) {
+        collapseNestedFootprint();
+        for (VArrayRangeWrite<?> rangeWrite : arrayRangeWrites) {
+            if (rangeWrite.contains(entry.array, entry.index)) {
+                rangeWrite.values[entry.index - rangeWrite.from] = entry.getWriteValue();
+                rangeWrite.nestedVersion = entry.nestedVersion;
+                return;
+            }
+        }
+
         if (arrayWrites == EMPTY_MAP) {
-            arrayWrites = new IdentityHashMap<VArrayEntry<?>, VArrayEntry<?>>();
+            arrayWrites = new HashMap<VArrayEntry<?>, VArrayEntry<?>>();
             arrayWritesCount = new IdentityHashMap<VArray<?>, Integer>();
         }
-        entry.setWriteValue(value, this.nestedCommitQueue.commitNumber);
         if (arrayWrites.put(entry, entry) != null) {
             return;
         }
@@ -370,6 +419,278 @@ public abstract class ReadWriteTransaction extends Transaction {
         arrayWritesCount.put(entry.array, writeCount + 1);
     }
 
+    @Override
+    public long getPrimitiveArrayValue(VPrimitiveArray array, int index) {
+        collapseNestedFootprint();
+        for (ReadWriteTransaction tx = this; tx != null; tx = tx.getRWParent()) {
+            if (tx.primitiveArrayAccesses != EMPTY_MAP) {
+                PrimitiveArrayAccesses accesses = tx.primitiveArrayAccesses.get(array);
+                if (accesses != null) {
+                    int slot = accesses.findWrite(index);
+                    if (slot >= 0) {
+                        return accesses.getWrite(slot);
+                    }
+                }
+            }
+        }
+
+        getPrimitiveArrayAccesses(array).addRead(index);
+        return array.readRaw(index, number);
+    }
+
+    @Override
+    public void setPrimitiveArrayValue(VPrimitiveArray array, int index, long value) {
+        collapseNestedFootprint();
+        getPrimitiveArrayAccesses(array).putWrite(index, value);
+    }
+
+    protected PrimitiveArrayAccesses getPrimitiveArrayAccesses(VPrimitiveArray array) {
+        if (primitiveArrayAccesses == EMPTY_MAP) {
+            primitiveArrayAccesses = new IdentityHashMap<VPrimitiveArray, PrimitiveArrayAccesses>();
+        }
+        PrimitiveArrayAccesses accesses = primitiveArrayAccesses.get(array);
+        if (accesses == null) {
+            accesses = new PrimitiveArrayAccesses(array);
+            primitiveArrayAccesses.put(array, accesses);
+        }
+        return accesses;
+    }
+
+    /* Whether the range reads and writes may be kept as single entries.  Parallel nested
+     * transactions validate and look up their array footprint one position at a time, so they
+     * (and their linear nested transactions) use one entry per position instead. */
+    protected boolean supportsArrayRangeEntries() {
+        return true;
+    }
+
+    @Override
+    public <T> void getArrayRange(VArray<T> array, int from, int to, T[] dest) {
+        if (!supportsArrayRangeEntries()) {
+            super.getArrayRange(array, from, to, dest);
+            return;
+        }
+
+        collapseNestedFootprint();
+        array.readRange(from, to, dest, number);
+        arraysRead = arraysRead.cons(new VArrayRangeRead<T>(array, from, to, number));
+
+        // Positions written by this transaction or its ancestors take precedence
+        if (hasLocalArrayWrites(array)) {
+            for (int i = from; i < to; i++) {
+                T value = getLocalArrayValue(new VArrayEntry<T>(array, i));
+                if (value != null) {
+                    dest[i - from] = (value == NULL_VALUE) ? null : value;
+                }
+            }
+        }
+    }
+
+    @Override
+    public <T> void setArrayRange(VArray<T> array, int from, int to, T[] src) {
+        if (!supportsArrayRangeEntries()) {
+            super.setArrayRange(array, from, to, src);
+            return;
+        }
+
+        Object[] values = new Object[to - from];
+        System.arraycopy(src, 0, values, 0, to - from);
+        addArrayRangeWrite(new VArrayRangeWrite<T>(array, from, to, values, this.nestedCommitQueue.commitNumber));
+    }
+
+    /* Adds a range write to the array write-set, replacing the single-position writes that it
+     * covers.  If it overlaps another range write, it is added one position at a time. */
+    @SuppressWarnings("unchecked")
+    protected <T> void addArrayRangeWrite(VArrayRangeWrite<T> rangeWrite) {
+        collapseNestedFootprint();
+        boolean overlaps = !supportsArrayRangeEntries();
+        for (VArrayRangeWrite<?> other : arrayRangeWrites) {
+            if (overlaps) {
+                break;
+            }
+            overlaps = other.overlaps(rangeWrite.array, rangeWrite.from, rangeWrite.to);
+        }
+        if (overlaps) {
+            for (int i = rangeWrite.from; i < rangeWrite.to; i++) {
+                VArrayEntry<T> entry = new VArrayEntry<T>(rangeWrite.array, i);
+                entry.setWriteValue((T) rangeWrite.values[i - rangeWrite.from], rangeWrite.nestedVersion);
+                addArrayWrite(entry);
+            }
+            return;
+        }
+
+        Integer writeCount = arrayWritesCount.get(rangeWrite.array);
+        if (writeCount != null) {
+            for (int i = rangeWrite.from; i < rangeWrite.to && writeCount > 0; i++) {
+                if (arrayWrites.remove(new VArrayEntry<T>(rangeWrite.array, i)) != null) {
+                    writeCount--;
+                }
+            }
+            if (writeCount > 0) {
+                arrayWritesCount.put(rangeWrite.array, writeCount);
+            } else {
+                arrayWritesCount.remove(rangeWrite.array);
+            }
+        }
+        arrayRangeWrites = arrayRangeWrites.cons(rangeWrite);
+    }
+
+    /* Moves the range writes of this transaction and of its ancestors to arrayWrites, so that
+     * parallel nested transactions, which look up the array writes of their ancestors one
+     * position at a time, can see them. */
+    @SuppressWarnings("unchecked")
+    protected void expandArrayRangeWrites() {
+        for (ReadWriteTransaction tx = this; tx != null; tx = tx.getRWParent()) {
+            Cons<VArrayRangeWrite<?>> rangeWrites = tx.arrayRangeWrites;
+            if (rangeWrites.isEmpty()) {
+                continue;
+            }
+            tx.arrayRangeWrites = Cons.empty();
+            for (VArrayRangeWrite<?> rangeWrite : rangeWrites) {
+                for (int i = rangeWrite.from; i < rangeWrite.to; i++) {
+                    VArrayEntry<Object> entry = new VArrayEntry<Object>((VArray<Object>) rangeWrite.array, i);
+                    entry.setWriteValue(rangeWrite.values[i - rangeWrite.from], rangeWrite.nestedVersion);
+                    tx.addArrayWrite(entry);
+                }
+            }
+        }
+    }
+
+    /*
+     * The array footprint of the parallel nested children: a child that commits keeps its array writes and the array
+     * reads that its ancestors must validate, and it is published in mergedTxs by a CAS, just like the rest of its
+     * footprint.  The same goes for the fallback write-set of the unsafe children (see UnsafeParallelTransaction).  Until they are collapsed into this transaction, its children see those writes through
+     * getVisibleArrayWrite, without locking and without changing this transaction.  The collapse is made by the
+     * thread that runs this transaction, when it resumes (i.e., when its children are done, when it accesses arrays,
+     * begins other nested transactions, or commits), so there are no children running at that time.
+     */
+
+    /* The parallel nested transactions are created by the threads that run them, so whatever changes this
+     * transaction must be done here, before they start. */
+    @Override
+    protected void prepareParallelNesting() {
+        collapseNestedFootprint();
+        expandArrayRangeWrites();
+    }
+
+    @Override
+    protected void finishParallelNesting() {
+        collapseNestedFootprint();
+    }
+
+    /* Returns the write to the position of entry that this transaction makes visible to its parallel nested
+     * children: a write of a child that already committed (the most recent first), or else its own. */
+    protected VArrayEntry<?> getVisibleArrayWrite(VArrayEntry<?> entry) {
+        Cons<ParallelNestedTransaction> collapsed = collapsedMergedTxs;
+        for (Cons<ParallelNestedTransaction> iter = mergedTxs; iter != collapsed && !iter.isEmpty(); iter = iter.rest()) {
+            ParallelNestedTransaction child = iter.first();
+            if (child.parent == this && child.arrayWrites != EMPTY_MAP) {
+                VArrayEntry<?> write = child.arrayWrites.get(entry);
+                if (write != null) {
+                    return write;
+                }
+            }
+        }
+        return (arrayWrites != EMPTY_MAP) ? arrayWrites.get(entry) : null;
+    }
+
+    /* Returns the value of the PerTxBox that this transaction makes visible to its parallel nested children: the
+     * value of a child that already committed (the most recent first), or else its own.  Invoked by the children,
+     * concurrently, so it must not change this transaction (other than through ParallelNestedTransaction.getPerTxBase,
+     * which allows it). */
+    protected <T> T getVisiblePerTxValue(PerTxBox<T> box) {
+        Cons<ParallelNestedTransaction> collapsed = collapsedMergedTxs;
+        for (Cons<ParallelNestedTransaction> iter = mergedTxs; iter != collapsed && !iter.isEmpty(); iter = iter.rest()) {
+            ParallelNestedTransaction child = iter.first();
+            if (child.parent == this && child.perTxValues != EMPTY_MAP && child.perTxValues != null) {
+                T value = (T) child.perTxValues.get(box);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return getPerTxValue(box);
+    }
+
+    /* Returns the transaction whose write to the position this transaction makes visible to its parallel nested
+     * children, as getVisibleArrayWrite does for VArrays, or null if there is none. */
+    protected ReadWriteTransaction getVisiblePrimitiveArrayWriter(VPrimitiveArray array, int index) {
+        Cons<ParallelNestedTransaction> collapsed = collapsedMergedTxs;
+        for (Cons<ParallelNestedTransaction> iter = mergedTxs; iter != collapsed && !iter.isEmpty(); iter = iter.rest()) {
+            ParallelNestedTransaction child = iter.first();
+            if (child.parent == this && child.writesToPrimitiveArray(array, index)) {
+                return child;
+            }
+        }
+        return writesToPrimitiveArray(array, index) ? this : null;
+    }
+
+    boolean writesToPrimitiveArray(VPrimitiveArray array, int index) {
+        if (primitiveArrayAccesses == EMPTY_MAP) {
+            return false;
+        }
+        PrimitiveArrayAccesses accesses = primitiveArrayAccesses.get(array);
+        return accesses != null && accesses.findWrite(index) >= 0;
+    }
+
+    protected void collapseNestedFootprint() {
+        Cons<ParallelNestedTransaction> merged = mergedTxs;
+        Cons<ParallelNestedTransaction> collapsed = collapsedMergedTxs;
+        if (merged == collapsed || merged == null) {
+            return;
+        }
+        collapsedMergedTxs = merged;
+
+        // the grandchildren in mergedTxs were already collapsed into their own parents
+        Cons<ParallelNestedTransaction> children = Cons.empty();
+        for (Cons<ParallelNestedTransaction> iter = merged; iter != collapsed && !iter.isEmpty(); iter = iter.rest()) {
+            if (iter.first().parent == this) {
+                children = children.cons(iter.first());
+            }
+        }
+        // oldest first, so that the most recent writes prevail
+        for (ParallelNestedTransaction child : children) {
+            // only the unsafe children have a write-set of their own; the others share this one
+            Map<VBox, Object> childWrites = child.boxesWritten;
+            if (childWrites != boxesWritten && childWrites != EMPTY_MAP && childWrites != null) {
+                if (boxesWritten == EMPTY_MAP) {
+                    boxesWritten = new IdentityHashMap<VBox, Object>();
+                }
+                boxesWritten.putAll(childWrites);
+            }
+            arraysRead = child.propagatedArrayReads.reverseInto(arraysRead);
+            for (VArrayEntry<?> entry : child.arrayWrites.values()) {
+                addArrayWrite(entry);
+            }
+            for (PrimitiveArrayAccesses accesses : child.primitiveArrayAccesses.values()) {
+                getPrimitiveArrayAccesses(accesses.array).addAll(accesses);
+            }
+            // already merged with the values of the siblings that committed before it (see
+            // ParallelNestedTransaction.mergePerTxValues)
+            Map<PerTxBox, Object> childPerTxValues = child.perTxValues;
+            if (childPerTxValues != EMPTY_MAP && childPerTxValues != null) {
+                if (perTxValues == EMPTY_MAP) {
+                    perTxValues = new IdentityHashMap<PerTxBox, Object>();
+                }
+                perTxValues.putAll(childPerTxValues);
+            }
+        }
+    }
+
+    /* Returns true if this transaction or one of its ancestors wrote to the array. */
+    private boolean hasLocalArrayWrites(VArray<?> array) {
+        for (ReadWriteTransaction tx = this; tx != null; tx = tx.getRWParent()) {
+            if (tx.arrayWritesCount.containsKey(array)) {
+                return true;
+            }
+            for (VArrayRangeWrite<?> rangeWrite : tx.arrayRangeWrites) {
+                if (rangeWrite.array == array) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     protected void snapshotValidation(int lastSeenCommittedTxNumber) {
         if (lastSeenCommittedTxNumber == getNumber()) {
             return;
@@ -428,13 +749,28 @@ public abstract class ReadWriteTransaction extends Transaction {
                 TransactionSignaller.SIGNALLER.signalCommitFail();
             }
         }
+        for (PrimitiveArrayAccesses accesses : primitiveArrayAccesses.values()) {
+            if (!accesses.validate(myNumber)) {
+                TransactionSignaller.SIGNALLER.signalCommitFail();
+            }
+        }
     }
 
     @Override
     public boolean isWriteTransaction() {
         Cons<ParallelNestedTransaction> emptyCons = Cons.<ParallelNestedTransaction> empty();
         return (mergedTxs != emptyCons) || (!boxesWritten.isEmpty()) || (!boxesWrittenInPlace.isEmpty())
-                || (!arrayWrites.isEmpty()) || (perTxValues != null && !perTxValues.isEmpty());
+                || (!arrayWrites.isEmpty()) || (!arrayRangeWrites.isEmpty()) || (perTxValues != null && !perTxValues.isEmpty())
+                || writesToPrimitiveArrays();
+    }
+
+    private boolean writesToPrimitiveArrays() {
+        for (PrimitiveArrayAccesses accesses : primitiveArrayAccesses.values()) {
+            if (accesses.hasWrites()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
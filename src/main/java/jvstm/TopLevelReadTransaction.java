@@ -46,8 +46,6 @@ public class TopLevelReadTransaction extends ReadTransaction {
     protected void finish() {
         super.finish();
 
-        if (! context().inCommitAndBegin) {
-            context().oldestRequiredVersion = null;
-        }
+        releaseContext();
     }
 }
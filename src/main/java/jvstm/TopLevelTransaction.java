@@ -25,8 +25,6 @@
  */
 package jvstm;
 
-import java.util.Map;
-
 public class TopLevelTransaction extends ReadWriteTransaction {
 
     protected ActiveTransactionsRecord activeTxRecord;
@@ -36,6 +34,10 @@ public class TopLevelTransaction extends ReadWriteTransaction {
     // commit order in the active transactions queue
     protected ActiveTransactionsRecord commitTxRecord;
 
+    // the last speculative execution of the PerTxBoxes, which each retry of the enqueue updates (see
+    // speculatePerTxBoxes)
+    private ProcessPerTxBoxesTransaction perTxSpeculation;
+
     public TopLevelTransaction(ActiveTransactionsRecord activeRecord) {
         super(activeRecord.transactionNumber);
         this.activeTxRecord = activeRecord;
@@ -55,6 +57,7 @@ public class TopLevelTransaction extends ReadWriteTransaction {
 
     @Override
     public Transaction makeUnsafeMultithreaded() {
+        expandArrayRangeWrites();
         return new UnsafeParallelTransaction(this);
     }
 
@@ -73,9 +76,8 @@ public class TopLevelTransaction extends ReadWriteTransaction {
     @Override
     protected void finish() {
         super.finish();
-        if (!context().inCommitAndBegin) {
-            context().oldestRequiredVersion = null;
-        }
+        perTxSpeculation = null;
+        releaseContext();
     }
 
     /*
@@ -96,11 +98,15 @@ public class TopLevelTransaction extends ReadWriteTransaction {
         if (this.perTxValues == EMPTY_MAP) {
             return ProcessPerTxBoxesTransaction.EMPTY_COMMIT_TX;
         }
-        ProcessPerTxBoxesTransaction commitTx = new ProcessPerTxBoxesTransaction(maxVersion, this);
-        for (Map.Entry<PerTxBox, Object> entry : this.perTxValues.entrySet()) {
-            entry.getKey().commit(entry.getValue());
+        ProcessPerTxBoxesTransaction commitTx = this.perTxSpeculation;
+        if (commitTx == null) {
+            commitTx = new ProcessPerTxBoxesTransaction(maxVersion, this);
+            commitTx.speculate(this.perTxValues);
+        } else {
+            commitTx = commitTx.respeculate(maxVersion, this);
         }
         commitTx.finishExecution();
+        this.perTxSpeculation = commitTx;
         return commitTx;
     }
 
@@ -199,6 +205,7 @@ public class TopLevelTransaction extends ReadWriteTransaction {
 
     @Override
     protected void tryCommit() {
+        collapseNestedFootprint();
         if (isWriteTransaction()) {
             validate();
             ensureCommitStatus();
@@ -25,18 +25,27 @@
  */
 package jvstm;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import jvstm.gc.GCTask;
 import jvstm.gc.TxContext;
+import jvstm.util.Cons;
 
 public abstract class Transaction {
     // static part starts here
@@ -67,12 +76,18 @@ public abstract class Transaction {
 
     protected static final ThreadLocal<Transaction> current = new ThreadLocal<Transaction>();
 
-    // a per thread TxContext
-    private static final ThreadLocal<TxContext> threadTxContext = new ThreadLocal<TxContext>() {
-        @Override protected TxContext initialValue() {
-            return Transaction.allTxContexts.enqueue(new TxContext(Thread.currentThread()));
-        }
-    };
+    /* The TxContext of the top-level transaction running in each thread.  TxContexts are not tied
+     * to threads: a thread acquires one when it begins a top-level transaction, and releases it
+     * when the transaction finishes, so the number of TxContexts (which the GC scans) depends on
+     * the number of concurrent transactions, rather than on the number of threads that ever ran a
+     * transaction.  Released TxContexts are kept in a lock-free free list, and they are owned by
+     * POOLED_CONTEXTS_OWNER, so that the GC never removes them from allTxContexts.  Instead, a
+     * context keeps a weak reference to the thread that holds it, so that the GC can reclaim it if
+     * that thread dies in the middle of a transaction (see reclaimContext).
+     */
+    private static final ThreadLocal<TxContext> threadTxContext = new ThreadLocal<TxContext>();
+    private static final Object POOLED_CONTEXTS_OWNER = new Object();
+    private static final AtomicReference<Cons<TxContext>> freeTxContexts = new AtomicReference<Cons<TxContext>>(Cons.<TxContext>empty());
 
     // List of all tx contexts.  The GC thread will iterate this list to GC any unused ActiveTxRecords.
     public static TxContext allTxContexts = null;
@@ -109,9 +124,63 @@ public abstract class Transaction {
     }
 
     public static TxContext context() {
+        TxContext ctx = Transaction.threadTxContext.get();
+        if (ctx == null) {
+            ctx = acquireContext();
+            Transaction.threadTxContext.set(ctx);
+        }
+        return ctx;
+    }
+
+    /* The TxContext held by the current thread, if any; unlike context(), it never acquires one */
+    static TxContext boundContext() {
         return Transaction.threadTxContext.get();
     }
 
+    private static TxContext acquireContext() {
+        TxContext ctx = null;
+        while (ctx == null) {
+            Cons<TxContext> free = freeTxContexts.get();
+            if (free.isEmpty()) {
+                ctx = Transaction.allTxContexts.enqueue(new TxContext(POOLED_CONTEXTS_OWNER));
+            } else if (freeTxContexts.compareAndSet(free, free.rest())) {
+                ctx = free.first();
+            }
+        }
+        ctx.holder = new WeakReference<Thread>(Thread.currentThread());
+        return ctx;
+    }
+
+    /* Invoked when the top-level transaction running in this thread finishes (or is suspended).
+     * The TxContext is kept during a commitAndBegin, because the next transaction will use the
+     * same record. */
+    protected static void releaseContext() {
+        TxContext ctx = Transaction.threadTxContext.get();
+        if (ctx == null || ctx.inCommitAndBegin) {
+            return;
+        }
+        Transaction.threadTxContext.set(null);
+        freeContext(ctx);
+    }
+
+    /* Used by the GC to put back in the free list a TxContext whose holder died without releasing
+     * it (see TxContext.clearDeadHolder), so that it no longer keeps the records of its transaction. */
+    public static void reclaimContext(TxContext ctx) {
+        ctx.inCommitAndBegin = false;
+        freeContext(ctx);
+    }
+
+    private static void freeContext(TxContext ctx) {
+        ctx.oldestRequiredVersion = null;
+        ctx.holder = null;
+        while (true) {
+            Cons<TxContext> free = freeTxContexts.get();
+            if (freeTxContexts.compareAndSet(free, free.cons(ctx))) {
+                return;
+            }
+        }
+    }
+
     // This method is called during the commit of a write transaction.  Even though it is possible
     // for more than one method to write to this slot at the same time, this could only cause a new
     // transaction to see some record that might not be the most recent one.  However, this is ok,
@@ -131,7 +200,7 @@ public abstract class Transaction {
     public static ActiveTransactionsRecord getRecordForNewTransaction() {
         ActiveTransactionsRecord rec = Transaction.mostRecentCommittedRecord;
 
-        TxContext ctx = threadTxContext.get();
+        TxContext ctx = context();
         ctx.oldestRequiredVersion = rec; // volatile write
 
         while (true) {
@@ -263,15 +332,14 @@ public abstract class Transaction {
         });
     }
 
-    protected static ExecutorService nestedParPool = Executors.newFixedThreadPool(Runtime.getRuntime()
-            .availableProcessors() * 2, new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable r) {
-            Thread t = new Thread(r);
-            t.setDaemon(true);
-            return t;
-        }
-    });
+    /* With a ForkJoinPool, a parallel nested transaction that spawns its own children helps
+     * running them (or other tasks) while it waits, instead of blocking a thread of the pool, so
+     * deep nesting trees need no more threads than the parallelism of the pool. */
+    public static void initForkJoinPool(int parallelism) {
+        nestedParPool = new ForkJoinPool(parallelism);
+    }
+
+    protected static ExecutorService nestedParPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
     public <E> List<E> manageNestedParallelTxs(List<? extends TransactionalTask<E>> callables) {
         return manageNestedParallelTxs(callables, nestedParPool);
@@ -279,6 +347,52 @@ public abstract class Transaction {
 
     protected boolean flattenNested = false;
 
+    /* The first failure of a child of manageNestedParallelTxs that is not retried (and that makes the whole call
+     * fail).  Once it is set, the other children, and their descendants, abort at their next access to a box (see
+     * ParallelNestedTransaction.checkNestedCancelled), and the children that did not start yet are skipped. */
+    protected volatile Throwable nestedFailure = null;
+
+    protected void cancelNested(Throwable failure) {
+        if (nestedFailure == null) {
+            nestedFailure = failure;
+        }
+    }
+
+    protected boolean isNestedCancelled() {
+        for (Transaction tx = parent; tx != null; tx = tx.parent) {
+            if (tx.nestedFailure != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Children that fail with an ExecuteParallelNestedTxSequentiallyException are re-executed as parallel nested
+     * transactions, grouped by the box in which they conflicted, for this many rounds.  Whatever still fails after
+     * that is flattened into the parent, as before. */
+    protected static final int MAX_NESTED_RESCHEDULING_ROUNDS = 2;
+
+    // How the children that had to be re-executed were run (see getNestedRescheduling*)
+    private static final AtomicLong nestedRescheduledInParallel = new AtomicLong();
+    private static final AtomicLong nestedRescheduledSerially = new AtomicLong();
+    private static final AtomicLong nestedRescheduledFlattened = new AtomicLong();
+
+    /** Number of re-executed parallel nested transactions that ran alone, in parallel with others. */
+    public static long getNestedRescheduledInParallel() {
+        return nestedRescheduledInParallel.get();
+    }
+
+    /** Number of re-executed parallel nested transactions that ran one after the other, because they conflicted in
+     * the same box. */
+    public static long getNestedRescheduledSerially() {
+        return nestedRescheduledSerially.get();
+    }
+
+    /** Number of re-executed parallel nested transactions that ended up flattened into their parent. */
+    public static long getNestedRescheduledFlattened() {
+        return nestedRescheduledFlattened.get();
+    }
+
     public <E> List<E> manageNestedParallelTxs(List<? extends TransactionalTask<E>> callables, ExecutorService threadPool) {
         List<E> results = new ArrayList<E>();
         if (flattenNested) {
@@ -298,60 +412,262 @@ public abstract class Transaction {
             return results;
         }
 
-        List<Future<E>> futures = null;
-        List<TransactionalTask<E>> repeatList = null;
-        boolean finishedCorrectly = false;
+        int minBatch = getMinBatch(callables);
+        if (minBatch > 1) {
+            return manageNestedBatches(callables, threadPool, minBatch);
+        }
+
+        prepareParallelNesting();
+        int size = callables.size();
+        Object[] outcomes = new Object[size];
+        Throwable[] failures = new Throwable[size];
+
+        List<NestedTaskGroup<E>> groups = new ArrayList<NestedTaskGroup<E>>(size);
+        for (int i = 0; i < size; i++) {
+            groups.add(new NestedTaskGroup<E>(this, callables, new int[] { i }, outcomes, failures));
+        }
+
+        nestedFailure = null;
         try {
-            futures = threadPool.invokeAll(callables);
-            int futureLength = futures.size();
-            for (int i = 0; i < futureLength; i++) {
-                try {
-                    results.add(futures.get(i).get());
-                } catch (ExecutionException ee) {
-                    Throwable t = ee.getCause();
-                    if (t instanceof ExecuteParallelNestedTxSequentiallyException) {
-                        if (repeatList == null) {
-                            repeatList = new ArrayList<TransactionalTask<E>>();
-                        }
-                        repeatList.add(callables.get(i));
-                    } else if (t instanceof RuntimeException) {
-                        throw (RuntimeException) t;
-                    } else {
-                        throw new RuntimeException(ee);
-                    }
+            runNestedRounds(callables, threadPool, groups, outcomes, failures);
+        } finally {
+            finishParallelNesting();
+        }
+
+        for (int i = 0; i < size; i++) {
+            results.add((E) outcomes[i]);
+        }
+        return results;
+    }
+
+    private <E> void runNestedRounds(List<? extends TransactionalTask<E>> callables, ExecutorService threadPool,
+            List<NestedTaskGroup<E>> groups, Object[] outcomes, Throwable[] failures) {
+        int size = callables.size();
+        int round = 0;
+        while (true) {
+            runNestedTaskGroups(groups, threadPool);
+
+            Throwable failure = nestedFailure;
+            if (failure != null) {
+                nestedFailure = null;
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                } else {
+                    throw new RuntimeException(failure);
                 }
             }
-            finishedCorrectly = true;
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (!finishedCorrectly) {
-                for (Future<E> future : futures) {
-                    try {
-                        future.get();
-                    } catch (InterruptedException e) {
-                    } catch (ExecutionException e) {
+
+            List<Integer> repeatList = null;
+            for (int i = 0; i < size; i++) {
+                Throwable t = failures[i];
+                if (t == null) {
+                    continue;
+                } else if (t instanceof ExecuteParallelNestedTxSequentiallyException) {
+                    if (repeatList == null) {
+                        repeatList = new ArrayList<Integer>();
                     }
+                    repeatList.add(i);
+                } else if (t instanceof RuntimeException) {
+                    throw (RuntimeException) t;
+                } else {
+                    throw new RuntimeException(t);
                 }
-            } else if (repeatList != null) {
-                flattenNested = true;
-                try {
-                    for (TransactionalTask<E> callable : repeatList) {
-                        results.add(callable.execute());
-                    }
-                } catch (Throwable t) {
-                    if (t instanceof RuntimeException) {
-                        throw (RuntimeException) t;
-                    } else {
-                        throw new RuntimeException(t);
-                    }
+            }
+
+            if (repeatList == null) {
+                break;
+            }
+            if (round == MAX_NESTED_RESCHEDULING_ROUNDS) {
+                // the flattened children run in this thread, and must see what their siblings already did
+                finishParallelNesting();
+                flattenNested(callables, repeatList, outcomes);
+                break;
+            }
+            groups = groupByConflict(this, callables, repeatList, outcomes, failures);
+            round++;
+        }
+    }
+
+    /* Children that declare a minimum batch (see TransactionalTask.getMinBatch) are too fine-grained to pay for a
+     * parallel nested transaction each.  When there are no more of them than the largest minimum batch, they run
+     * inline, in this transaction.  Otherwise, consecutive children are grouped in chunks of at least that many
+     * children, and of no more than MAX_CHUNKS_PER_WORKER chunks per worker of the pool, each of which runs as a
+     * single parallel nested transaction. */
+    protected static final int MAX_CHUNKS_PER_WORKER = 4;
+
+    private static int getMinBatch(List<? extends TransactionalTask<?>> callables) {
+        int minBatch = 1;
+        for (TransactionalTask<?> callable : callables) {
+            minBatch = Math.max(minBatch, callable.getMinBatch());
+        }
+        return minBatch;
+    }
+
+    private <E> List<E> manageNestedBatches(List<? extends TransactionalTask<E>> callables, ExecutorService threadPool,
+            int minBatch) {
+        int size = callables.size();
+        List<E> results = new ArrayList<E>(size);
+        if (size <= minBatch) {
+            try {
+                for (TransactionalTask<E> callable : callables) {
+                    results.add(callable.execute());
+                }
+            } catch (Throwable t) {
+                if (t instanceof RuntimeException) {
+                    throw (RuntimeException) t;
+                } else {
+                    throw new RuntimeException(t);
                 }
-                flattenNested = false;
             }
+            return results;
+        }
+
+        int workers = (threadPool instanceof ForkJoinPool) ? ((ForkJoinPool) threadPool).getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        int maxChunks = workers * MAX_CHUNKS_PER_WORKER;
+        int chunkSize = Math.max(minBatch, (size + maxChunks - 1) / maxChunks);
+        boolean unsafe = callables.get(0) instanceof UnsafeParallelTask;
+
+        List<TransactionalTask<List<E>>> chunks = new ArrayList<TransactionalTask<List<E>>>();
+        for (int from = 0; from < size; from += chunkSize) {
+            List<? extends TransactionalTask<E>> members = callables.subList(from, Math.min(size, from + chunkSize));
+            chunks.add(unsafe ? new NestedTaskChunk.Unsafe<E>(members) : new NestedTaskChunk<E>(members));
+        }
+        for (List<E> chunkResults : manageNestedParallelTxs(chunks, threadPool)) {
+            results.addAll(chunkResults);
         }
         return results;
     }
 
+    /* The children that conflicted in the same box would most likely conflict again, so they run one after the
+     * other (in their original order) in a single group, whereas each of the other groups runs in parallel. */
+    private static <E> List<NestedTaskGroup<E>> groupByConflict(Transaction parent,
+            List<? extends TransactionalTask<E>> callables, List<Integer> repeatList, Object[] outcomes,
+            Throwable[] failures) {
+        Map<VBox<?>, List<Integer>> byBox = new IdentityHashMap<VBox<?>, List<Integer>>();
+        for (int i : repeatList) {
+            VBox<?> box = ((ExecuteParallelNestedTxSequentiallyException) failures[i]).getConflictingBox();
+            List<Integer> conflicting = byBox.get(box);
+            if (conflicting == null) {
+                conflicting = new ArrayList<Integer>();
+                byBox.put(box, conflicting);
+            }
+            conflicting.add(i);
+        }
+
+        List<NestedTaskGroup<E>> groups = new ArrayList<NestedTaskGroup<E>>(byBox.size());
+        for (List<Integer> conflicting : byBox.values()) {
+            int[] indexes = new int[conflicting.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = conflicting.get(i);
+            }
+            if (indexes.length == 1) {
+                nestedRescheduledInParallel.incrementAndGet();
+            } else {
+                nestedRescheduledSerially.addAndGet(indexes.length);
+            }
+            groups.add(new NestedTaskGroup<E>(parent, callables, indexes, outcomes, failures));
+        }
+        return groups;
+    }
+
+    private <E> void flattenNested(List<? extends TransactionalTask<E>> callables, List<Integer> repeatList,
+            Object[] outcomes) {
+        nestedRescheduledFlattened.addAndGet(repeatList.size());
+        flattenNested = true;
+        try {
+            for (int i : repeatList) {
+                outcomes[i] = callables.get(i).execute();
+            }
+        } catch (Throwable t) {
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else {
+                throw new RuntimeException(t);
+            }
+        } finally {
+            flattenNested = false;
+        }
+    }
+
+    /* Invoked by the thread running this transaction before its parallel nested transactions start */
+    protected void prepareParallelNesting() {
+        // intentionally empty
+    }
+
+    /* Invoked by the thread running this transaction once its parallel nested transactions are done */
+    protected void finishParallelNesting() {
+        // intentionally empty
+    }
+
+    /* Runs all the groups and waits for them.  The outcomes are stored by the groups themselves. */
+    private static <E> void runNestedTaskGroups(List<NestedTaskGroup<E>> groups, ExecutorService threadPool) {
+        if (threadPool instanceof ForkJoinPool) {
+            ForkJoinPool pool = (ForkJoinPool) threadPool;
+            List<ForkJoinTransactionalTask<Void>> tasks = new ArrayList<ForkJoinTransactionalTask<Void>>(groups.size());
+            for (NestedTaskGroup<E> group : groups) {
+                tasks.add(new ForkJoinTransactionalTask<Void>(group));
+            }
+
+            Thread thread = Thread.currentThread();
+            if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == pool) {
+                // runs the first task in this thread, and helps with the others while joining them
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                for (ForkJoinTransactionalTask<Void> task : tasks) {
+                    pool.execute(task);
+                }
+                for (ForkJoinTransactionalTask<Void> task : tasks) {
+                    task.quietlyJoin();
+                }
+            }
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(groups.size());
+        InterruptedException interrupted = null;
+        for (NestedTaskGroup<E> group : groups) {
+            futures.add(threadPool.submit(group));
+        }
+        for (Future<Void> future : futures) {
+            try {
+                getResult(future);
+            } catch (InterruptedException e) {
+                interrupted = e;
+            } catch (ExecutionException e) {
+                // the group keeps the failures of its tasks
+            }
+        }
+        if (interrupted != null) {
+            throw new RuntimeException(interrupted);
+        }
+    }
+
+    /* A worker of a ForkJoinPool that waits for tasks running on some other pool lets its own pool
+     * compensate for the blocked thread. */
+    private static <E> E getResult(final Future<E> future) throws InterruptedException, ExecutionException {
+        if (future.isDone() || !(Thread.currentThread() instanceof ForkJoinWorkerThread)) {
+            return future.get();
+        }
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // handled by the caller
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return future.isDone();
+            }
+        });
+        return future.get();
+    }
+
     public static void abort() {
         Transaction tx = current.get();
         tx.abortTx();
@@ -485,10 +801,9 @@ public abstract class Transaction {
         // the order is important! We must not let go of the required version, so we set it ahead before clearing it in
         // the current context
         newTxContext.oldestRequiredVersion = currentTxContext.oldestRequiredVersion;
-        currentTxContext.oldestRequiredVersion = null;
+        releaseContext();
 
         return suspendedTx;
-        // the currentTxContext is left to be reused by this thread
     }
 
     protected abstract Transaction commitAndBeginTx(boolean readOnly);
@@ -503,10 +818,37 @@ public abstract class Transaction {
 
     public abstract <T> void setPerTxValue(PerTxBox<T> box, T value);
 
+    /* Whether the commutative updates of a CommutativeVBox may wait for the commit, as PerTxBox values.  Transactions
+     * that do not support PerTxBoxes apply them right away. */
+    protected boolean defersCommutativeOps() {
+        return true;
+    }
+
     public abstract <T> T getArrayValue(VArrayEntry<T> entry);
 
     public abstract <T> void setArrayValue(VArrayEntry<T> entry, T value);
 
+    /* The values of VPrimitiveArrays are passed around as the bits of a long. */
+    public abstract long getPrimitiveArrayValue(VPrimitiveArray array, int index);
+
+    public abstract void setPrimitiveArrayValue(VPrimitiveArray array, int index, long value);
+
+    /* Reads the positions [from, to) of the array into dest.  Subclasses that can keep the whole
+     * range as a single entry of their read-set override this. */
+    public <T> void getArrayRange(VArray<T> array, int from, int to, T[] dest) {
+        for (int i = from; i < to; i++) {
+            dest[i - from] = getArrayValue(new VArrayEntry<T>(array, i));
+        }
+    }
+
+    /* Writes src into the positions [from, to) of the array.  Subclasses that can keep the whole
+     * range as a single entry of their write-set override this. */
+    public <T> void setArrayRange(VArray<T> array, int from, int to, T[] src) {
+        for (int i = from; i < to; i++) {
+            setArrayValue(new VArrayEntry<T>(array, i), src[i - from]);
+        }
+    }
+
     protected abstract void doCommit();
 
     public abstract Transaction makeUnsafeMultithreaded();
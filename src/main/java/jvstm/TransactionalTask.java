@@ -40,4 +40,11 @@ public abstract class TransactionalTask<T> implements Callable<T> {
     protected boolean isReadOnly() {
         return false;
     }
+
+    /* How many tasks like this one are worth a parallel nested transaction (see
+     * Transaction.manageNestedParallelTxs).  Fine-grained tasks override it, so that they run
+     * inline or in chunks, instead of each paying for a transaction of its own. */
+    protected int getMinBatch() {
+        return 1;
+    }
 }
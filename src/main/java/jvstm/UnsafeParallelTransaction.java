@@ -25,7 +25,7 @@
  */
 package jvstm;
 
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 import jvstm.util.Cons;
 
@@ -35,6 +35,11 @@ import jvstm.util.Cons;
  * UnsafeParallelTransaction never aborts because of a conflict with is
  * siblings.
  *
+ * The writes that cannot be made in place go to a write-set private to each
+ * UnsafeParallelTransaction, so that siblings never contend for it.  It is
+ * published along with the transaction when it commits, and collapsed into
+ * the parent's write-set by the parent itself, once it resumes.
+ *
  * @author nmld
  *
  */
@@ -63,12 +68,7 @@ public class UnsafeParallelTransaction extends ParallelNestedTransaction {
         boxesWritten = null;
         perTxValues = null;
 
-        int i = 0;
-        for (ReadBlock block : globalReads) {
-            block.free = true;
-            i++;
-        }
-        blocksFree.get().addAndGet(i);
+        releaseBlocks(globalReads);
 
         globalReads = null;
         boxesWrittenInPlace = null;
@@ -77,7 +77,7 @@ public class UnsafeParallelTransaction extends ParallelNestedTransaction {
 
     @Override
     protected void finish() {
-        boxesWritten = null;
+        // boxesWritten is kept, until the parent collapses it
         perTxValues = null;
         Transaction.current.set(null);
     }
@@ -89,10 +89,7 @@ public class UnsafeParallelTransaction extends ParallelNestedTransaction {
 
     @Override
     protected void cleanUp() {
-        for (ReadBlock block : globalReads) {
-            block.free = true;
-            block.freeBlocks.incrementAndGet();
-        }
+        releaseBlocks(globalReads);
         globalReads = null;
         boxesWrittenInPlace = null;
     }
@@ -102,15 +99,17 @@ public class UnsafeParallelTransaction extends ParallelNestedTransaction {
         InplaceWrite<T> inplace = vbox.inplace;
         if (inplace.orec.owner == parent) {
             return inplace.tempValue;
-        } else {
-            T value = null;
-            synchronized (parent) {
-                if (boxesWritten != EMPTY_MAP) {
-                    value = (T) boxesWritten.get(vbox);
-                }
-            }
-            return value;
         }
+
+        T value = null;
+        if (boxesWritten != EMPTY_MAP) {
+            value = (T) boxesWritten.get(vbox);
+        }
+        if (value == null) {
+            // the parent does not change its write-set while its children run
+            value = getRWParent().getLocalValue(vbox);
+        }
+        return value;
     }
 
     @Override
@@ -155,52 +154,70 @@ public class UnsafeParallelTransaction extends ParallelNestedTransaction {
                     continue;
                 }
             } else {
-                synchronized (parent) {
-                    if (boxesWritten == EMPTY_MAP) {
-                        boxesWritten = new HashMap<VBox, Object>();
-                    }
-                    boxesWritten.put(vbox, (value == null ? (T) NULL_VALUE : value));
-                    return;
+                if (boxesWritten == EMPTY_MAP) {
+                    boxesWritten = new IdentityHashMap<VBox, Object>();
                 }
+                boxesWritten.put(vbox, (value == null ? (T) NULL_VALUE : value));
+                return;
             }
         } while (true);
     }
 
     @Override
     public <T> void setArrayValue(VArrayEntry<T> entry, T value) {
-        ReadWriteTransaction parent = getRWParent();
-        synchronized (parent) {
-            if (parent.arrayWrites == EMPTY_MAP) {
-                parent.arrayWrites = new HashMap<VArrayEntry<?>, VArrayEntry<?>>();
-                parent.arrayWritesCount = new HashMap<VArray<?>, Integer>();
-            }
-            entry.setWriteValue(value, parent.nestedCommitQueue.commitNumber);
-            if (parent.arrayWrites.put(entry, entry) != null)
-                return;
+        // kept in this transaction until it commits, and then collapsed by the parent (see tryCommit)
+        entry.setWriteValue(value, getRWParent().nestedCommitQueue.commitNumber);
+        addArrayWrite(entry);
+    }
 
-            // Count number of writes to the array
-            Integer writeCount = parent.arrayWritesCount.get(entry.array);
-            if (writeCount == null)
-                writeCount = 0;
-            parent.arrayWritesCount.put(entry.array, writeCount + 1);
+    @Override
+    protected <T> T getLocalArrayValue(VArrayEntry<T> entry) {
+        ReadWriteTransaction iter = this;
+        while (iter != null) {
+            VArrayEntry<T> wsEntry = (VArrayEntry<T>) iter.getVisibleArrayWrite(entry);
+            if (wsEntry != null) {
+                return (wsEntry.getWriteValue() == null ? (T) NULL_VALUE : wsEntry.getWriteValue());
+            }
+            iter = iter.getRWParent();
         }
+        return null;
     }
 
     @Override
-    protected <T> T getLocalArrayValue(VArrayEntry<T> entry) {
+    public long getPrimitiveArrayValue(VPrimitiveArray array, int index) {
+        PrimitiveArrayAccesses accesses = getPrimitiveArrayAccesses(array);
+        int slot = accesses.findWrite(index);
+        if (slot >= 0) {
+            return accesses.getWrite(slot);
+        }
+        // collapsed by the parent, which validates it when it commits
+        accesses.addRead(index);
+
         ReadWriteTransaction iter = getRWParent();
         while (iter != null) {
-            synchronized (iter) {
-                if (iter.arrayWrites != EMPTY_MAP) {
-                    VArrayEntry<T> wsEntry = (VArrayEntry<T>) iter.arrayWrites.get(entry);
-                    if (wsEntry != null) {
-                        return (wsEntry.getWriteValue() == null ? (T) NULL_VALUE : wsEntry.getWriteValue());
-                    }
-                }
+            ReadWriteTransaction writer = iter.getVisiblePrimitiveArrayWriter(array, index);
+            if (writer != null) {
+                PrimitiveArrayAccesses writes = writer.primitiveArrayAccesses.get(array);
+                return writes.getWrite(writes.findWrite(index));
             }
             iter = iter.getRWParent();
         }
-        return null;
+        return array.readRaw(index, number);
+    }
+
+    @Override
+    public <T> T getPerTxValue(PerTxBox<T> box, T initial) {
+        throw new RuntimeException("Unsafe Parallel Transactions do not support PerTxBoxes");
+    }
+
+    @Override
+    public <T> void setPerTxValue(PerTxBox<T> box, T value) {
+        throw new RuntimeException("Unsafe Parallel Transactions do not support PerTxBoxes");
+    }
+
+    @Override
+    protected boolean defersCommutativeOps() {
+        return false;
     }
 
     @Override
@@ -209,18 +226,13 @@ public class UnsafeParallelTransaction extends ParallelNestedTransaction {
         Cons<ParallelNestedTransaction> currentOrecs;
         Cons<ParallelNestedTransaction> modifiedOrecs;
 
+        // the fallback writes and the array writes and reads are collapsed by the parent, once it sees this transaction in its mergedTxs
+        this.propagatedArrayReads = this.arraysRead;
         do {
             currentOrecs = parent.mergedTxs;
             modifiedOrecs = currentOrecs.cons(this);
         } while (!parent.CASmergedTxs(currentOrecs, modifiedOrecs));
 
-        if (!this.arraysRead.isEmpty()) {
-            synchronized (parent) {
-                // the possible array writes are already placed in the parent
-                parent.arraysRead = this.arraysRead.reverseInto(parent.arraysRead);
-            }
-        }
-
         Transaction.current.set(null);
     }
 
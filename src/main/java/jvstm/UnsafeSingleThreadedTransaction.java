@@ -77,9 +77,7 @@ public class UnsafeSingleThreadedTransaction extends Transaction {
     @Override
     protected void finish() {
         super.finish();
-        if (!context().inCommitAndBegin) {
-            context().oldestRequiredVersion = null;
-        }
+        releaseContext();
     }
 
     @Override
@@ -153,7 +151,7 @@ public class UnsafeSingleThreadedTransaction extends Transaction {
     @Override
     public <T> T getArrayValue(VArrayEntry<T> entry) {
         // Read directly from array
-        return entry.array.values.get(entry.index);
+        return entry.array.readValue(entry.index);
     }
 
     @Override
@@ -167,9 +165,28 @@ public class UnsafeSingleThreadedTransaction extends Transaction {
         }
 
         // Write directly into array
+        array.raiseVersionHint(entry.index, number);
         array.values.lazySet(entry.index, value);
     }
 
+    @Override
+    public long getPrimitiveArrayValue(VPrimitiveArray array, int index) {
+        // Read directly from array
+        return array.readRaw(index);
+    }
+
+    @Override
+    public void setPrimitiveArrayValue(VPrimitiveArray array, int index, long value) {
+        // Set array to current version, clear log
+        if (array.version != number) {
+            array.version = number;
+            array.log = null;
+        }
+
+        // Write directly into array
+        array.writeRaw(index, value);
+    }
+
     @Override
     public boolean isWriteTransaction() {
         return true;
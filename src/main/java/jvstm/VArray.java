@@ -25,12 +25,14 @@
  */
 package jvstm;
 
-import java.lang.reflect.Field;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
-import java.util.concurrent.locks.ReentrantLock;
 
 import static jvstm.ReadWriteTransaction.NULL_VALUE;
+import static jvstm.UtilUnsafe.UNSAFE;
 
 /** Transactional array implementation for the JVSTM optimized for read-heavy workloads
  *
@@ -38,10 +40,9 @@ import static jvstm.ReadWriteTransaction.NULL_VALUE;
  * For more details, check the notes on the source-code.
  *
  * Note that:
- * - Even on jvstm-lock-free, writing (committing) to a VArray uses locking; no locking is needed
- *   for reading
- * - Under a workload with lots of writes, a simple array of VBoxes might present better performance,
- *   and solves the aforementioned locking issue
+ * - Both reading and writing (committing) to a VArray are lock-free: the write-back of a commit
+ *   may be helped by any other committing thread, just like the write-back of VBoxes
+ * - Under a workload with lots of writes, a simple array of VBoxes might present better performance
  **/
 
 /*
@@ -62,15 +63,27 @@ import static jvstm.ReadWriteTransaction.NULL_VALUE;
  * To commit (see TopLevelTransaction), the writeset is iterated, and the entries are
  * distributed into an array of entries for each VArray that is going to be changed.
  * This array is then sorted, and used to generate the logEntryIndexes.
- * After this operation, commit is called on the array, resulting in the log node
- * being created, and the writeback done.
+ *
+ * The write-back (see WriteSet) is done in three steps, each of which can be performed
+ * concurrently by any number of helping threads:
+ * - The log node for the commit is published with a CAS on VArray.log; the helpers that lose
+ *   the race adopt the node that was published, and the array version is then bumped (also
+ *   with a CAS, so that it never goes backwards)
+ * - The sorted writes are split into ranges, and each helper claims the ranges that are not yet
+ *   done, starting at a random one
+ * - For each written position, the old value is first CASed into its (still null) log slot, and
+ *   only then the new value is installed in the array.  To prevent a helper that was delayed
+ *   from overwriting the value of a more recent commit, the new value is installed through a
+ *   WriteDescriptor: the old value is replaced by a descriptor, which is then replaced by the
+ *   new value only if the log node of the commit is still the head of the log.  Any thread
+ *   that finds a descriptor in the array helps to complete it before proceeding.
  */
 final class VArrayLogNode<E> implements GarbageCollectable {
 
     /* These fields are kept outside the VArrayLogNode to allow the jvstm GC algorithm
      * to unlink the body.
      */
-    static final private class VArrayLogNodeBody<E> {
+    static final class VArrayLogNodeBody<E> {
         final VArrayLogNode<E> next;
         final int[] logEntryIndexes;
         final E[] logEntryValues;
@@ -82,8 +95,19 @@ final class VArrayLogNode<E> implements GarbageCollectable {
         }
     }
 
+    private static final long ARRAY_BASE = UNSAFE.arrayBaseOffset(Object[].class);
+    private static final int ARRAY_SHIFT = 31 - Integer.numberOfLeadingZeros(UNSAFE.arrayIndexScale(Object[].class));
+
+    private static class Offsets {
+        // --- Setup to use Unsafe
+        private static final long bodyOffset = UtilUnsafe.objectFieldOffset(VArrayLogNode.class, "body");
+    }
+
     final int version;
-    final VArrayLogNodeBody<E> body;
+    /* The body is replaced when the GC compacts the log (see VArray.compactLog), and it is set to
+     * null when the GC no longer needs the older nodes (see clearPrevious).
+     */
+    volatile VArrayLogNodeBody<E> body;
 
     VArrayLogNode(int[] logEntryIndexes, E[] logEntryValues, int version, VArrayLogNode<E> next) {
         this.version = version;
@@ -91,72 +115,102 @@ final class VArrayLogNode<E> implements GarbageCollectable {
     }
 
     /* Algorithm:
-     * - Recurse until we find the VArrayLogNode with the SMALLEST version still >= minVersion
-     * - Look for the index we want from that version forward towards the beginning of the list
-     * - Return the first value found; otherwise return null
+     * - Walk the list, up to the VArrayLogNode with the SMALLEST version still >= minVersion
+     * - Keep the value of the last (that is, the oldest) node where the index we want is found
+     * - Return that value, if any; otherwise return null
      */
     public E getLogValue(int index, int minVersion) {
-        if (version < minVersion) return null;
-
         E value = null;
 
-        if (body.next != null) value = body.next.getLogValue(index, minVersion);
-
-        if (value == null) {
-            // If no value was found in previous nodes, try to find it on the current node
-            int pos = Arrays.binarySearch(body.logEntryIndexes, index);
+        VArrayLogNode<E> node = this;
+        while (node != null && node.version >= minVersion) {
+            VArrayLogNodeBody<E> nodeBody = node.body;
+            if (nodeBody == null) {
+                break;
+            }
+            int pos = Arrays.binarySearch(nodeBody.logEntryIndexes, index);
             if (pos >= 0) {
                 // A special case may occur here: we might read NULL_VALUE, meaning that the value
                 // was truly a null, or we might read null, meaning that we are on a partially-initialized
                 // log, and we ignore what we found.
-                value = body.logEntryValues[pos];
+                E logValue = nodeBody.logEntryValues[pos];
+                if (logValue != null) {
+                    value = logValue;
+                }
             }
+            node = nodeBody.next;
         }
 
         return value;
     }
 
-    // this static field is used to change the non-static final field "body"
-    // see the comments on the clearPrevious method
-    private static final Field BODY_FIELD;
+    boolean CASbody(VArrayLogNodeBody<E> expected, VArrayLogNodeBody<E> newBody) {
+        return UNSAFE.compareAndSwapObject(this, Offsets.bodyOffset, expected, newBody);
+    }
+
+    /* Returns a body equal to this node's body, but with a different next node. */
+    static <E> VArrayLogNodeBody<E> relink(VArrayLogNodeBody<E> body, VArrayLogNode<E> next) {
+        return new VArrayLogNodeBody<E>(next, body.logEntryIndexes, body.logEntryValues);
+    }
+
+    /* Merges all the nodes from first to last (inclusive) into a single node, with the version
+     * of last.  For each index, the merged node keeps the value of the oldest node where the index
+     * appears.  Returns null if any of the nodes was already cleared by the GC. */
+    @SuppressWarnings("unchecked")
+    static <E> VArrayLogNode<E> merge(VArrayLogNode<E> first, VArrayLogNode<E> last) {
+        Map<Integer, Object> merged = new HashMap<Integer, Object>();
+        VArrayLogNode<E> node = first;
+        VArrayLogNodeBody<E> nodeBody;
+        while (true) {
+            nodeBody = node.body;
+            if (nodeBody == null) {
+                return null;
+            }
+            for (int i = 0; i < nodeBody.logEntryIndexes.length; i++) {
+                // older nodes come later, so they overwrite the values of newer nodes
+                merged.put(nodeBody.logEntryIndexes[i], nodeBody.logEntryValues[i]);
+            }
+            if (node == last) {
+                break;
+            }
+            node = nodeBody.next;
+        }
 
-    static {
-        try {
-            BODY_FIELD = VArrayLogNode.class.getDeclaredField("body");
-            BODY_FIELD.setAccessible(true);
-        } catch (NoSuchFieldException nsfe) {
-            throw new Error("JVSTM error: couldn't get access to the VArrayLogNode.body field");
+        int[] logEntryIndexes = new int[merged.size()];
+        int pos = 0;
+        for (Integer index : merged.keySet()) {
+            logEntryIndexes[pos++] = index;
         }
+        Arrays.sort(logEntryIndexes);
+        E[] logEntryValues = (E[]) new Object[logEntryIndexes.length];
+        for (int i = 0; i < logEntryIndexes.length; i++) {
+            logEntryValues[i] = (E) merged.get(logEntryIndexes[i]);
+        }
+        return new VArrayLogNode<E>(logEntryIndexes, logEntryValues, last.version, nodeBody.next);
     }
 
-    public void clearPrevious() {
-        // Copied from VBoxBody.clearPrevious()
-
-        // we set the body field to null via reflection because it is
-        // a final field
-
-        // making the field final is crucial to ensure that the field
-        // is properly initialized (and visible to other threads)
-        // after an instance of VArrayLogNode is constructed, as
-        // per the new Java Memory Model (JSR133)
-
-        // also, according to the Java specification, we may change a
-        // final field only via reflection and in some specific cases
-        // (such as object reconstruction after deserialization)
-
-        // even though this use is not the case, the potential
-        // problems that may occur do not affect the correcteness of
-        // the system: we just want to set the field to null to allow
-        // the garbage collector to do its thing...
-        try {
-            BODY_FIELD.set(this, null);
-        } catch (IllegalAccessException iae) {
-            throw new Error("JVSTM error: cannot set the VArrayLogNode.body field to null");
+    /* Returns the old value kept on the given position of the log, or null if it was not yet
+     * copied from the array. */
+    Object getLogEntry(VArrayLogNodeBody<E> body, int pos) {
+        return UNSAFE.getObjectVolatile(body.logEntryValues, ARRAY_BASE + ((long) pos << ARRAY_SHIFT));
+    }
+
+    /* Sets the old value on the given position of the log, unless a concurrent helper already
+     * did it.  Returns the value that ends up in the log. */
+    Object initLogEntry(VArrayLogNodeBody<E> body, int pos, Object oldValue) {
+        long offset = ARRAY_BASE + ((long) pos << ARRAY_SHIFT);
+        if (UNSAFE.compareAndSwapObject(body.logEntryValues, offset, null, oldValue)) {
+            return oldValue;
         }
+        return UNSAFE.getObjectVolatile(body.logEntryValues, offset);
+    }
+
+    public void clearPrevious() {
+        this.body = null;
     }
 }
 
-final class VArrayEntry<E> implements Comparable<VArrayEntry<E>> {
+class VArrayEntry<E> implements Comparable<VArrayEntry<E>> {
     final VArray<E> array;
     final int index;
 
@@ -210,13 +264,16 @@ final class VArrayEntry<E> implements Comparable<VArrayEntry<E>> {
 
     private E getInternalValue(int maxVersion) {
         // Read value from array (volatile read)
-        E value = array.values.get(index);
+        E value = array.readValue(index);
         // Read array version
         int version = array.version;
 
         // If version <= maxVersion, array hasn't changed since we started the current transaction
         if (version <= maxVersion) return value;
 
+        // The array changed, but maybe not on this position
+        if (array.unchangedSince(index, maxVersion)) return value;
+
         // Otherwise, check the log for the value
         E logValue = array.log.getLogValue(index, maxVersion);
 
@@ -227,7 +284,7 @@ final class VArrayEntry<E> implements Comparable<VArrayEntry<E>> {
 
     // Only used when VArrayEntry is part of the read-set
     public boolean validate() {
-        return object == array.values.get(index);
+        return object == array.readValue(index);
     }
 
     public void setReadOwner(ReadWriteTransaction owner) {
@@ -246,17 +303,120 @@ final class VArrayEntry<E> implements Comparable<VArrayEntry<E>> {
     }
 }
 
+/* A read-set entry for the range [from, to) of a VArray, read in the version readVersion.
+ * Instead of comparing the values read, it is validated against the array's version and log: the
+ * range is valid if no commit more recent than readVersion wrote to any of its positions.
+ */
+final class VArrayRangeRead<E> extends VArrayEntry<E> {
+    final int to;
+    final int readVersion;
+
+    VArrayRangeRead(VArray<E> array, int from, int to, int readVersion) {
+        super(array, from);
+        this.to = to;
+        this.readVersion = readVersion;
+    }
+
+    @Override
+    public boolean validate() {
+        return array.unchangedInRange(index, to, readVersion);
+    }
+}
+
+/* A write-set entry for the range [from, to) of a VArray.  A transaction never keeps more than one
+ * write for the same position: a range write is only created when the range does not overlap any
+ * other write of the transaction to the same array, and later writes to its positions change the
+ * values of the range write (see ReadWriteTransaction).
+ */
+final class VArrayRangeWrite<E> implements Comparable<VArrayRangeWrite<?>> {
+    final VArray<E> array;
+    final int from;
+    final int to;
+    final Object[] values;
+    int nestedVersion;
+
+    VArrayRangeWrite(VArray<E> array, int from, int to, Object[] values, int nestedVersion) {
+        this.array = array;
+        this.from = from;
+        this.to = to;
+        this.values = values;
+        this.nestedVersion = nestedVersion;
+    }
+
+    boolean contains(VArray<?> array, int index) {
+        return this.array == array && index >= from && index < to;
+    }
+
+    boolean overlaps(VArray<?> array, int from, int to) {
+        return this.array == array && from < this.to && this.from < to;
+    }
+
+    // Only used to sort the range writes of the same array
+    @Override
+    public int compareTo(VArrayRangeWrite<?> other) {
+        return from - other.from;
+    }
+}
+
+/* A WriteDescriptor is placed on a position of the VArray while a commit is writing back to
+ * that position.  It is replaced either by the new value, if the log node of the commit is still
+ * the most recent log node of the array, or by the old value, if the descriptor was installed by
+ * a helper that was delayed after a more recent commit was already writing back.
+ */
+final class WriteDescriptor {
+    final VArrayLogNode<?> logNode;
+    final int index;
+    final Object oldValue;
+    final Object newValue;
+
+    WriteDescriptor(VArrayLogNode<?> logNode, int index, Object oldValue, Object newValue) {
+        this.logNode = logNode;
+        this.index = index;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    <E> void complete(VArray<E> array) {
+        Object value = (array.log == logNode) ? newValue : oldValue;
+        array.values.compareAndSet(index, (E) this, (E) value);
+    }
+}
+
 public class VArray<E> {
+
+    /*
+     * The VArray's values must not be read directly from this field: a position may temporarily
+     * hold a WriteDescriptor, which is resolved by readValue(int).
+     */
     public final AtomicReferenceArray<E> values;
-    public int version;
+    public volatile int version;
     public final int length;
-    public VArrayLogNode<E> log;
+    public volatile VArrayLogNode<E> log;
+
+    /*
+     * Optional per-index version hints: for each position, the number of the most recent commit
+     * that wrote to it.  When a transaction reads a position of an array that has changed since
+     * the transaction started, the hint often shows that the position itself did not change,
+     * avoiding a search in the log.  Hints cost an int per position, so they are only kept when
+     * requested in the constructor.
+     */
+    final AtomicIntegerArray versionHints;
 
-    final ReentrantLock writebackLock = new ReentrantLock();
+    private static class Offsets {
+        // --- Setup to use Unsafe
+        private static final long versionOffset = UtilUnsafe.objectFieldOffset(VArray.class, "version");
+        private static final long logOffset = UtilUnsafe.objectFieldOffset(VArray.class, "log");
+    }
 
     public VArray(int size) {
+        this(size, false);
+    }
+
+    public VArray(int size, boolean keepVersionHints) {
         values = new AtomicReferenceArray<E>(size);
         length = size;
+        versionHints = keepVersionHints ? new AtomicIntegerArray(size) : null;
     }
 
     @SuppressWarnings("static-access")
@@ -289,36 +449,344 @@ public class VArray<E> {
         }
     }
 
+    /**
+     * Reads the positions [from, to) into dest, starting at dest[0].  Transactions register a
+     * single read-set entry for the whole range.
+     */
+    @SuppressWarnings("static-access")
+    public void getRange(int from, int to, E[] dest) {
+        rangeCheck(from, to);
+        if (dest.length < to - from) throw new IndexOutOfBoundsException();
+
+        Transaction tx = Transaction.current();
+        if (tx == null) {
+            tx = Transaction.begin(true);
+            tx.getArrayRange(this, from, to, dest);
+            tx.commit();
+        } else {
+            tx.getArrayRange(this, from, to, dest);
+        }
+    }
+
+    /**
+     * Writes src[0], src[1], ... into the positions [from, to).  Transactions register a single
+     * write-set entry for the whole range.
+     */
+    @SuppressWarnings("static-access")
+    public void putRange(int from, int to, E[] src) {
+        rangeCheck(from, to);
+        if (src.length < to - from) throw new IndexOutOfBoundsException();
+
+        Transaction tx = Transaction.current();
+        if (tx == null) {
+            tx = Transaction.begin();
+            tx.setArrayRange(this, from, to, src);
+            tx.commit();
+        } else {
+            tx.setArrayRange(this, from, to, src);
+        }
+    }
+
+    /**
+     * Copies the positions [from, to) of this array into dest, starting at position destFrom.
+     */
+    @SuppressWarnings({ "static-access", "unchecked" })
+    public void copyInto(int from, int to, VArray<E> dest, int destFrom) {
+        rangeCheck(from, to);
+        dest.rangeCheck(destFrom, destFrom + (to - from));
+
+        E[] buffer = (E[]) new Object[to - from];
+        Transaction tx = Transaction.current();
+        if (tx == null) {
+            tx = Transaction.begin();
+            tx.getArrayRange(this, from, to, buffer);
+            tx.setArrayRange(dest, destFrom, destFrom + (to - from), buffer);
+            tx.commit();
+        } else {
+            tx.getArrayRange(this, from, to, buffer);
+            tx.setArrayRange(dest, destFrom, destFrom + (to - from), buffer);
+        }
+    }
+
+    /**
+     * Invokes the visitor for each of the positions [from, to), in order.  The values are read as
+     * a single range, before the first invocation of the visitor.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(int from, int to, Visitor<? super E> visitor) {
+        E[] buffer = (E[]) new Object[to - from];
+        getRange(from, to, buffer);
+        for (int i = 0; i < buffer.length; i++) {
+            visitor.visit(from + i, buffer[i]);
+        }
+    }
+
+    public interface Visitor<E> {
+        void visit(int index, E value);
+    }
+
     private void rangeCheck(int index) {
         if (index < 0 || index >= length) throw new IndexOutOfBoundsException();
     }
 
+    private void rangeCheck(int from, int to) {
+        if (from < 0 || to > length || from > to) throw new IndexOutOfBoundsException();
+    }
+
+    /* Returns the latest value of the given position, helping to complete any write-back that
+     * may be in progress on that position. */
+    @SuppressWarnings("unchecked")
+    E readValue(int index) {
+        while (true) {
+            E value = values.get(index);
+            if (!(value instanceof WriteDescriptor)) {
+                return value;
+            }
+            ((WriteDescriptor) (Object) value).complete(this);
+        }
+    }
+
+    /* Reads the positions [from, to) as they were in version maxVersion into dest, starting at
+     * dest[0].  This follows the same steps as VArrayEntry.getValue, but for the whole range. */
     @SuppressWarnings("unchecked")
-    public GarbageCollectable commit(int txNumber, VArrayEntry[] writesToCommit, int[] logEntryIndexes) {
-        // Prepare arrays for log
-        E[] logEntryValues = (E[]) new Object[writesToCommit.length];
-
-        // Create and place log node
-        log = new VArrayLogNode<E>(logEntryIndexes, logEntryValues, txNumber - 1, log);
-        // Bump array version
-        version = txNumber;
-
-        // Proceed with normal writeback and populating log values
-        int i = 0;
-        for (VArrayEntry<E> entry : writesToCommit) {
-            // Read old value from the array, and copy it to the log
-            E oldValue = values.get(entry.index);
-            if (oldValue == null) oldValue = (E) NULL_VALUE;
-            logEntryValues[i++] = oldValue;
-
-            // Write the new value
-            // Using a lazySet because we don't need the new value to be seen by other threads
-            // as soon as possible. In fact, it would be nice if only threads with transactions
-            // created after we finish our commit see the new value.
-            // For more details see the java.util.concurrent.atomic package description javadoc.
-            values.lazySet(entry.index, entry.getWriteValue());    // Volatile write!
+    void readRange(int from, int to, Object[] dest, int maxVersion) {
+        // Read the values first, and only then the version
+        for (int i = from; i < to; i++) {
+            dest[i - from] = readValue(i);
         }
+        if (this.version <= maxVersion) {
+            return;
+        }
+
+        // Some positions may have changed: the oldest value found in the log, if any, is the one
+        VArrayLogNode<E> node = this.log;
+        while (node != null && node.version >= maxVersion) {
+            VArrayLogNode.VArrayLogNodeBody<E> nodeBody = node.body;
+            if (nodeBody == null) {
+                break;
+            }
+            int[] indexes = nodeBody.logEntryIndexes;
+            int pos = Arrays.binarySearch(indexes, from);
+            for (pos = (pos >= 0) ? pos : -(pos + 1); pos < indexes.length && indexes[pos] < to; pos++) {
+                // as in getLogValue, null means that the log is only partially initialized
+                Object logValue = nodeBody.logEntryValues[pos];
+                if (logValue != null) {
+                    dest[indexes[pos] - from] = (logValue == NULL_VALUE) ? null : logValue;
+                }
+            }
+            node = nodeBody.next;
+        }
+    }
+
+    /* Returns true if no commit more recent than readVersion wrote to the positions [from, to). */
+    boolean unchangedInRange(int from, int to, int readVersion) {
+        if (this.version <= readVersion) {
+            return true;
+        }
+        VArrayLogNode<E> node = this.log;
+        while (node != null && node.version >= readVersion) {
+            VArrayLogNode.VArrayLogNodeBody<E> nodeBody = node.body;
+            if (nodeBody == null) {
+                // should not happen while the reader is running, but we cannot tell
+                return false;
+            }
+            int[] indexes = nodeBody.logEntryIndexes;
+            int pos = Arrays.binarySearch(indexes, from);
+            if (pos >= 0 || (-(pos + 1) < indexes.length && indexes[-(pos + 1)] < to)) {
+                return false;
+            }
+            node = nodeBody.next;
+        }
+        return true;
+    }
+
+    /* Returns true if the position was not written by any commit more recent than maxVersion.
+     * Must be invoked after reading the value of the position. */
+    boolean unchangedSince(int index, int maxVersion) {
+        return versionHints != null && versionHints.get(index) <= maxVersion;
+    }
 
-        return log;
+    /* Must be invoked before installing the new value of the position.  Hints never go backwards,
+     * so a delayed helper of an older commit cannot hide a more recent write. */
+    void raiseVersionHint(int index, int txNumber) {
+        if (versionHints == null) {
+            return;
+        }
+        int current = versionHints.get(index);
+        while (current < txNumber) {
+            if (versionHints.compareAndSet(index, current, txNumber)) {
+                return;
+            }
+            current = versionHints.get(index);
+        }
+    }
+
+    private boolean CASlog(VArrayLogNode<E> expected, VArrayLogNode<E> newLog) {
+        return UNSAFE.compareAndSwapObject(this, Offsets.logOffset, expected, newLog);
+    }
+
+    private void bumpVersion(int txNumber) {
+        int current = this.version;
+        while (current < txNumber) {
+            if (UNSAFE.compareAndSwapInt(this, Offsets.versionOffset, current, txNumber)) {
+                return;
+            }
+            current = this.version;
+        }
+    }
+
+    /* Returns the log node of the commit with number txNumber, publishing it if no other helper
+     * did it already.  Returns null if a more recent commit already published its own log node,
+     * meaning that the write-back of txNumber is complete. */
+    @SuppressWarnings("unchecked")
+    VArrayLogNode<E> publishLog(int txNumber, int[] logEntryIndexes) {
+        int logVersion = txNumber - 1;
+        while (true) {
+            VArrayLogNode<E> current = this.log;
+            if (current != null && current.version >= logVersion) {
+                if (current.version > logVersion) {
+                    return null;
+                }
+                bumpVersion(txNumber);
+                return current;
+            }
+            VArrayLogNode<E> newLog = new VArrayLogNode<E>(logEntryIndexes, (E[]) new Object[logEntryIndexes.length], logVersion, current);
+            if (CASlog(current, newLog)) {
+                bumpVersion(txNumber);
+                return newLog;
+            }
+        }
+    }
+
+    /* Writes back the positions [min, max) of the logEntryIndexes of the commit that published
+     * logNode.  This may safely be invoked by several threads concurrently. */
+    void writeBack(VArrayLogNode<E> logNode, int[] logEntryIndexes, Object[] newValues, int min, int max) {
+        VArrayLogNode.VArrayLogNodeBody<E> logBody = logNode.body;
+        if (logBody == null) {
+            // the GC already collected this log node, so its write-back is long done
+            return;
+        }
+
+        for (int pos = min; pos < max; pos++) {
+            int index = logEntryIndexes[pos];
+
+            // Copy the old value to the log before changing the array
+            Object oldValue = logNode.getLogEntry(logBody, pos);
+            if (oldValue == null) {
+                Object value = readValue(index);
+                oldValue = logNode.initLogEntry(logBody, pos, (value == null) ? NULL_VALUE : value);
+            }
+            if (oldValue == NULL_VALUE) {
+                oldValue = null;
+            }
+
+            raiseVersionHint(index, logNode.version + 1);
+            writeBackValue(logNode, index, oldValue, newValues[pos]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeBackValue(VArrayLogNode<E> logNode, int index, Object oldValue, Object newValue) {
+        WriteDescriptor descriptor = null;
+        while (true) {
+            Object current = values.get(index);
+            if (current instanceof WriteDescriptor) {
+                ((WriteDescriptor) current).complete(this);
+                continue;
+            }
+            if (current != oldValue) {
+                // some other helper already wrote back this position
+                return;
+            }
+            if (descriptor == null) {
+                descriptor = new WriteDescriptor(logNode, index, oldValue, newValue);
+            }
+            if (values.compareAndSet(index, (E) oldValue, (E) (Object) descriptor)) {
+                descriptor.complete(this);
+                return;
+            }
+        }
+    }
+
+    /* Invoked by the GC to merge consecutive log nodes that no running transaction can tell apart:
+     * a transaction with number m reads from the log nodes with version >= m, so two nodes may be
+     * merged if there is no transaction with a number between the versions of both nodes.
+     * versionsInUse must be sorted, and contain the numbers of all the running transactions, as
+     * well as the number of the most recent commit when the running transactions were collected
+     * (no new transaction will ever use an older number).  The head of the log is never compacted,
+     * because it may be used by a commit that is still writing back.
+     */
+    void compactLog(int[] versionsInUse) {
+        int oldestInUse = versionsInUse[0];
+        int mostRecent = versionsInUse[versionsInUse.length - 1];
+
+        VArrayLogNode<E> previous = this.log;
+        while (previous != null) {
+            VArrayLogNode.VArrayLogNodeBody<E> previousBody = previous.body;
+            if (previousBody == null) {
+                return;
+            }
+            VArrayLogNode<E> first = previousBody.next;
+            if (first == null || first.version < oldestInUse) {
+                // the remaining nodes are no longer needed, and will be cleaned by the GC
+                return;
+            }
+            if (first.version >= mostRecent) {
+                previous = first;
+                continue;
+            }
+
+            int gap = versionsUpTo(versionsInUse, first.version);
+            VArrayLogNode<E> last = first;
+            while (true) {
+                VArrayLogNode.VArrayLogNodeBody<E> lastBody = last.body;
+                if (lastBody == null) {
+                    return;
+                }
+                VArrayLogNode<E> next = lastBody.next;
+                if (next == null || next.version < oldestInUse || versionsUpTo(versionsInUse, next.version) != gap) {
+                    break;
+                }
+                last = next;
+            }
+
+            if (last != first) {
+                VArrayLogNode<E> merged = VArrayLogNode.merge(first, last);
+                if (merged == null || !previous.CASbody(previousBody, VArrayLogNode.relink(previousBody, merged))) {
+                    return;
+                }
+                previous = merged;
+            } else {
+                previous = first;
+            }
+        }
+    }
+
+    // the number of versions in use that are <= version
+    private static int versionsUpTo(int[] versionsInUse, int version) {
+        int pos = Arrays.binarySearch(versionsInUse, version);
+        return (pos >= 0) ? pos + 1 : -(pos + 1);
+    }
+
+    /* The number of nodes that can still be reached from the log; used by the unit tests to check
+     * its compaction. */
+    int logLength() {
+        int length = 0;
+        VArrayLogNode<E> node = this.log;
+        while (node != null) {
+            length++;
+            VArrayLogNode.VArrayLogNodeBody<E> nodeBody = node.body;
+            node = (nodeBody == null) ? null : nodeBody.next;
+        }
+        return length;
+    }
+
+    /* Convenience method that does the whole write-back of a commit on the current thread. */
+    public GarbageCollectable commit(int txNumber, int[] logEntryIndexes, Object[] newValues) {
+        VArrayLogNode<E> logNode = publishLog(txNumber, logEntryIndexes);
+        if (logNode != null) {
+            writeBack(logNode, logEntryIndexes, newValues, 0, logEntryIndexes.length);
+        }
+        return logNode;
     }
 }
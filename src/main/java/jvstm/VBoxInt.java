@@ -25,7 +25,7 @@
  */
 package jvstm;
 
-public class VBoxInt extends VBox<Integer> {
+public class VBoxInt extends CommutativeVBox<Integer> {
 
     public VBoxInt() {
         this(0);
@@ -43,23 +43,37 @@ public class VBoxInt extends VBox<Integer> {
         super.put(newValue);
     }
 
+    /* Commutative updates: they register no read, so they do not conflict with each other (see CommutativeVBox) */
+
+    public void add(int delta) {
+        update(CommutativeOp.addInt(delta));
+    }
+
+    public void max(int value) {
+        update(CommutativeOp.max(value));
+    }
+
+    public void min(int value) {
+        update(CommutativeOp.min(value));
+    }
+
     @Atomic(canFail = false)
     public void inc() {
-        putInt(getInt() + 1);
+        add(1);
     }
 
     @Atomic(canFail = false)
     public void inc(int n) {
-        putInt(getInt() + n);
+        add(n);
     }
 
     @Atomic(canFail = false)
     public void dec() {
-        putInt(getInt() - 1);
+        add(-1);
     }
 
     @Atomic(canFail = false)
     public void dec(int n) {
-        putInt(getInt() - n);
+        add(-n);
     }
 }
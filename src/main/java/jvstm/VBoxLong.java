@@ -25,7 +25,7 @@
  */
 package jvstm;
 
-public class VBoxLong extends VBox<Long> {
+public class VBoxLong extends CommutativeVBox<Long> {
 
     public VBoxLong() {
         this(0);
@@ -43,4 +43,18 @@ public class VBoxLong extends VBox<Long> {
         super.put(newValue);
     }
 
+    /* Commutative updates: they register no read, so they do not conflict with each other (see CommutativeVBox) */
+
+    public void add(long delta) {
+        update(CommutativeOp.addLong(delta));
+    }
+
+    public void max(long value) {
+        update(CommutativeOp.max(value));
+    }
+
+    public void min(long value) {
+        update(CommutativeOp.min(value));
+    }
+
 }
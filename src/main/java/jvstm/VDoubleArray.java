@@ -0,0 +1,60 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm;
+
+import static jvstm.UtilUnsafe.UNSAFE;
+
+/** Transactional array of double values, kept unboxed: see VPrimitiveArray. **/
+public class VDoubleArray extends VPrimitiveArray {
+
+    private static final long ARRAY_BASE = UNSAFE.arrayBaseOffset(double[].class);
+    private static final int ARRAY_SHIFT = 31 - Integer.numberOfLeadingZeros(UNSAFE.arrayIndexScale(double[].class));
+
+    private final double[] values;
+
+    public VDoubleArray(int size) {
+        super(size);
+        values = new double[size];
+    }
+
+    public double get(int index) {
+        return Double.longBitsToDouble(getRaw(index));
+    }
+
+    public void put(int index, double value) {
+        putRaw(index, Double.doubleToRawLongBits(value));
+    }
+
+    @Override
+    long readRaw(int index) {
+        return Double.doubleToRawLongBits(UNSAFE.getDoubleVolatile(values, ARRAY_BASE + ((long) index << ARRAY_SHIFT)));
+    }
+
+    @Override
+    void writeRaw(int index, long value) {
+        UNSAFE.putDoubleVolatile(values, ARRAY_BASE + ((long) index << ARRAY_SHIFT), Double.longBitsToDouble(value));
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static jvstm.UtilUnsafe.UNSAFE;
+
+/** Base class of the transactional arrays of primitive values (VIntArray, VLongArray and
+ * VDoubleArray).
+ *
+ * These arrays follow the same design as VArray (see the notes there), but they keep their
+ * values, their log nodes and the read and write-sets of transactions in primitive arrays, so
+ * that neither reads nor commits need to box the values.  Internally, every value is handled as
+ * the bits of a long, and the subclasses convert them to and from their own type.
+ *
+ * Note that the write-back of a commit is not lock-free, as it is for VArray: a position of a
+ * primitive array cannot hold a WriteDescriptor, so a helper that stalled while writing back
+ * could not tell that a more recent commit already changed the position (possibly back to the
+ * value that it expects).  So, the old values of all the positions are copied to the log before
+ * it is published, each block of positions of a commit is then claimed by a single helper, which
+ * writes the new values back, and the other helpers write back the blocks that are still free
+ * and then wait for the claimed blocks to be done.
+ **/
+public abstract class VPrimitiveArray {
+
+    public final int length;
+    public volatile int version;
+    volatile PrimitiveArrayLogNode log;
+
+    private static class Offsets {
+        // --- Setup to use Unsafe
+        private static final long versionOffset = UtilUnsafe.objectFieldOffset(VPrimitiveArray.class, "version");
+        private static final long logOffset = UtilUnsafe.objectFieldOffset(VPrimitiveArray.class, "log");
+    }
+
+    VPrimitiveArray(int length) {
+        this.length = length;
+    }
+
+    /* Volatile read of the most recent value of the position. */
+    abstract long readRaw(int index);
+
+    /* Volatile write of the position.  Only used during write-back, and by the transactions that
+     * write in place (see UnsafeSingleThreadedTransaction). */
+    abstract void writeRaw(int index, long value);
+
+    @SuppressWarnings("static-access")
+    final long getRaw(int index) {
+        rangeCheck(index);
+
+        Transaction tx = Transaction.current();
+        if (tx == null) {
+            tx = Transaction.begin(true);
+            long value = tx.getPrimitiveArrayValue(this, index);
+            tx.commit();
+            return value;
+        } else {
+            return tx.getPrimitiveArrayValue(this, index);
+        }
+    }
+
+    @SuppressWarnings("static-access")
+    final void putRaw(int index, long value) {
+        rangeCheck(index);
+
+        Transaction tx = Transaction.current();
+        if (tx == null) {
+            tx = Transaction.begin();
+            tx.setPrimitiveArrayValue(this, index, value);
+            tx.commit();
+        } else {
+            tx.setPrimitiveArrayValue(this, index, value);
+        }
+    }
+
+    private void rangeCheck(int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException();
+    }
+
+    /* Reads the position as it was in version maxVersion.  As in VArrayEntry.getValue, the value
+     * is read before the version, and the oldest value logged by a more recent commit wins. */
+    long readRaw(int index, int maxVersion) {
+        long value = readRaw(index);
+        if (this.version <= maxVersion) {
+            return value;
+        }
+
+        PrimitiveArrayLogNode node = this.log;
+        while (node != null && node.version >= maxVersion) {
+            PrimitiveArrayLogNode.Body nodeBody = node.body;
+            if (nodeBody == null) {
+                break;
+            }
+            int pos = Arrays.binarySearch(nodeBody.logEntryIndexes, index);
+            if (pos >= 0) {
+                value = nodeBody.logEntryValues[pos];
+            }
+            node = nodeBody.next;
+        }
+        return value;
+    }
+
+    /* Returns true if no commit more recent than readVersion wrote to any of the first nIndexes
+     * positions of sortedIndexes. */
+    boolean unchangedSince(int[] sortedIndexes, int nIndexes, int readVersion) {
+        if (this.version <= readVersion) {
+            return true;
+        }
+        PrimitiveArrayLogNode node = this.log;
+        while (node != null && node.version >= readVersion) {
+            PrimitiveArrayLogNode.Body nodeBody = node.body;
+            if (nodeBody == null) {
+                // should not happen while the reader is running, but we cannot tell
+                return false;
+            }
+            int[] logEntryIndexes = nodeBody.logEntryIndexes;
+            if (nIndexes <= logEntryIndexes.length) {
+                for (int i = 0; i < nIndexes; i++) {
+                    if (Arrays.binarySearch(logEntryIndexes, sortedIndexes[i]) >= 0) {
+                        return false;
+                    }
+                }
+            } else {
+                for (int i = 0; i < logEntryIndexes.length; i++) {
+                    if (Arrays.binarySearch(sortedIndexes, 0, nIndexes, logEntryIndexes[i]) >= 0) {
+                        return false;
+                    }
+                }
+            }
+            node = nodeBody.next;
+        }
+        return true;
+    }
+
+    private boolean CASlog(PrimitiveArrayLogNode expected, PrimitiveArrayLogNode newLog) {
+        return UNSAFE.compareAndSwapObject(this, Offsets.logOffset, expected, newLog);
+    }
+
+    private void bumpVersion(int txNumber) {
+        int current = this.version;
+        while (current < txNumber) {
+            if (UNSAFE.compareAndSwapInt(this, Offsets.versionOffset, current, txNumber)) {
+                return;
+            }
+            current = this.version;
+        }
+    }
+
+    /* Same as VArray.publishLog, except that the old values are logged before the log node is
+     * published: until then, no helper writes back any position of this commit, and the previous
+     * commits are already written back. */
+    PrimitiveArrayLogNode publishLog(int txNumber, int[] logEntryIndexes) {
+        int logVersion = txNumber - 1;
+        while (true) {
+            PrimitiveArrayLogNode current = this.log;
+            if (current != null && current.version >= logVersion) {
+                if (current.version > logVersion) {
+                    return null;
+                }
+                bumpVersion(txNumber);
+                return current;
+            }
+            long[] logEntryValues = new long[logEntryIndexes.length];
+            for (int pos = 0; pos < logEntryIndexes.length; pos++) {
+                logEntryValues[pos] = readRaw(logEntryIndexes[pos]);
+            }
+            AtomicIntegerArray blockStates = new AtomicIntegerArray(PrimitiveArrayLogNode.blocksFor(logEntryIndexes.length));
+            PrimitiveArrayLogNode newLog = new PrimitiveArrayLogNode(logEntryIndexes, logEntryValues, blockStates,
+                    logVersion, current);
+            if (CASlog(current, newLog)) {
+                bumpVersion(txNumber);
+                return newLog;
+            }
+        }
+    }
+
+    /* Writes back the given block of the commit that published logNode, unless some other helper
+     * already claimed it. */
+    void writeBack(PrimitiveArrayLogNode logNode, int[] logEntryIndexes, long[] newValues, int block) {
+        PrimitiveArrayLogNode.Body logBody = logNode.body;
+        if (logBody == null || logBody.blockStates == null) {
+            // the GC already collected or compacted this log node, so its write-back is long done
+            return;
+        }
+        AtomicIntegerArray blockStates = logBody.blockStates;
+        if (!blockStates.compareAndSet(block, PrimitiveArrayLogNode.FREE, PrimitiveArrayLogNode.CLAIMED)) {
+            return;
+        }
+
+        int min = block * WriteSet.ARRAY_BLOCK_SIZE;
+        // max depends on whether this is the last block
+        int max = (block == blockStates.length() - 1) ? logEntryIndexes.length : (min + WriteSet.ARRAY_BLOCK_SIZE);
+
+        for (int pos = min; pos < max; pos++) {
+            writeRaw(logEntryIndexes[pos], newValues[pos]);
+        }
+        blockStates.set(block, PrimitiveArrayLogNode.DONE);
+    }
+
+    /* Waits until the blocks claimed by other helpers are done. */
+    void awaitWriteBack(PrimitiveArrayLogNode logNode) {
+        PrimitiveArrayLogNode.Body logBody = logNode.body;
+        if (logBody == null || logBody.blockStates == null) {
+            return;
+        }
+        AtomicIntegerArray blockStates = logBody.blockStates;
+        for (int block = 0; block < blockStates.length(); block++) {
+            while (blockStates.get(block) != PrimitiveArrayLogNode.DONE) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /* Same as VArray.compactLog */
+    void compactLog(int[] versionsInUse) {
+        int oldestInUse = versionsInUse[0];
+        int mostRecent = versionsInUse[versionsInUse.length - 1];
+
+        PrimitiveArrayLogNode previous = this.log;
+        while (previous != null) {
+            PrimitiveArrayLogNode.Body previousBody = previous.body;
+            if (previousBody == null) {
+                return;
+            }
+            PrimitiveArrayLogNode first = previousBody.next;
+            if (first == null || first.version < oldestInUse) {
+                // the remaining nodes are no longer needed, and will be cleaned by the GC
+                return;
+            }
+            if (first.version >= mostRecent) {
+                previous = first;
+                continue;
+            }
+
+            int gap = versionsUpTo(versionsInUse, first.version);
+            PrimitiveArrayLogNode last = first;
+            while (true) {
+                PrimitiveArrayLogNode.Body lastBody = last.body;
+                if (lastBody == null) {
+                    return;
+                }
+                PrimitiveArrayLogNode next = lastBody.next;
+                if (next == null || next.version < oldestInUse || versionsUpTo(versionsInUse, next.version) != gap) {
+                    break;
+                }
+                last = next;
+            }
+
+            if (last != first) {
+                PrimitiveArrayLogNode merged = PrimitiveArrayLogNode.merge(first, last);
+                if (merged == null || !previous.CASbody(previousBody, PrimitiveArrayLogNode.relink(previousBody, merged))) {
+                    return;
+                }
+                previous = merged;
+            } else {
+                previous = first;
+            }
+        }
+    }
+
+    // the number of versions in use that are <= version
+    private static int versionsUpTo(int[] versionsInUse, int version) {
+        int pos = Arrays.binarySearch(versionsInUse, version);
+        return (pos >= 0) ? pos + 1 : -(pos + 1);
+    }
+}
+
+/* The log node of a commit to a VPrimitiveArray.  Besides the old values, which are all logged
+ * before the node is published, it keeps the state of each block of positions of the commit. */
+final class PrimitiveArrayLogNode implements GarbageCollectable {
+
+    static final int FREE = 0;
+    static final int CLAIMED = 1;
+    static final int DONE = 2;
+
+    /* These fields are kept outside the PrimitiveArrayLogNode to allow the jvstm GC algorithm
+     * to unlink the body.
+     */
+    static final class Body {
+        final PrimitiveArrayLogNode next;
+        final int[] logEntryIndexes;
+        final long[] logEntryValues;
+        // null when all the blocks are known to be done, as in the nodes created by merge
+        final AtomicIntegerArray blockStates;
+
+        Body(PrimitiveArrayLogNode next, int[] logEntryIndexes, long[] logEntryValues, AtomicIntegerArray blockStates) {
+            this.next = next;
+            this.logEntryIndexes = logEntryIndexes;
+            this.logEntryValues = logEntryValues;
+            this.blockStates = blockStates;
+        }
+    }
+
+    private static class Offsets {
+        // --- Setup to use Unsafe
+        private static final long bodyOffset = UtilUnsafe.objectFieldOffset(PrimitiveArrayLogNode.class, "body");
+    }
+
+    final int version;
+    volatile Body body;
+
+    PrimitiveArrayLogNode(int[] logEntryIndexes, long[] logEntryValues, AtomicIntegerArray blockStates, int version,
+            PrimitiveArrayLogNode next) {
+        this.version = version;
+        this.body = new Body(next, logEntryIndexes, logEntryValues, blockStates);
+    }
+
+    // Blocks have the same size as the ones of VArray commits, and the last one takes the rest
+    static int blocksFor(int nEntries) {
+        int nBlocks = nEntries / WriteSet.ARRAY_BLOCK_SIZE;
+        return (nBlocks == 0) ? 1 : nBlocks;
+    }
+
+    boolean CASbody(Body expected, Body newBody) {
+        return UNSAFE.compareAndSwapObject(this, Offsets.bodyOffset, expected, newBody);
+    }
+
+    static Body relink(Body body, PrimitiveArrayLogNode next) {
+        return new Body(next, body.logEntryIndexes, body.logEntryValues, body.blockStates);
+    }
+
+    /* Same as VArrayLogNode.merge.  Only nodes whose write-back is done are ever merged. */
+    static PrimitiveArrayLogNode merge(PrimitiveArrayLogNode first, PrimitiveArrayLogNode last) {
+        Map<Integer, Long> merged = new HashMap<Integer, Long>();
+        PrimitiveArrayLogNode node = first;
+        Body nodeBody;
+        while (true) {
+            nodeBody = node.body;
+            if (nodeBody == null) {
+                return null;
+            }
+            for (int i = 0; i < nodeBody.logEntryIndexes.length; i++) {
+                // older nodes come later, so they overwrite the values of newer nodes
+                merged.put(nodeBody.logEntryIndexes[i], nodeBody.logEntryValues[i]);
+            }
+            if (node == last) {
+                break;
+            }
+            node = nodeBody.next;
+        }
+
+        int[] logEntryIndexes = new int[merged.size()];
+        int pos = 0;
+        for (Integer index : merged.keySet()) {
+            logEntryIndexes[pos++] = index;
+        }
+        Arrays.sort(logEntryIndexes);
+        long[] logEntryValues = new long[logEntryIndexes.length];
+        for (int i = 0; i < logEntryIndexes.length; i++) {
+            logEntryValues[i] = merged.get(logEntryIndexes[i]);
+        }
+        return new PrimitiveArrayLogNode(logEntryIndexes, logEntryValues, null, last.version, nodeBody.next);
+    }
+
+    public void clearPrevious() {
+        this.body = null;
+    }
+}
+
+/* The footprint of a transaction on a VPrimitiveArray: the positions read, which are validated
+ * against the log of the array, and the values written, kept in an open-addressing hash table
+ * (the keys are stored as index + 1, so that 0 marks a free slot). */
+final class PrimitiveArrayAccesses {
+    private static final int[] NO_READS = new int[0];
+
+    final VPrimitiveArray array;
+
+    private int[] reads = NO_READS;
+    private int nReads = 0;
+
+    private int[] writeKeys = null;
+    private long[] writeValues = null;
+    private int nWrites = 0;
+
+    PrimitiveArrayAccesses(VPrimitiveArray array) {
+        this.array = array;
+    }
+
+    void addRead(int index) {
+        if (nReads == reads.length) {
+            reads = Arrays.copyOf(reads, Math.max(16, nReads * 2));
+        }
+        reads[nReads++] = index;
+    }
+
+    boolean hasWrites() {
+        return nWrites > 0;
+    }
+
+    /* Returns the slot of the value written to the position, or -1 */
+    int findWrite(int index) {
+        if (nWrites == 0) {
+            return -1;
+        }
+        int mask = writeKeys.length - 1;
+        int slot = hash(index) & mask;
+        while (true) {
+            int key = writeKeys[slot];
+            if (key == index + 1) {
+                return slot;
+            } else if (key == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    long getWrite(int slot) {
+        return writeValues[slot];
+    }
+
+    void putWrite(int index, long value) {
+        if (writeKeys == null) {
+            writeKeys = new int[16];
+            writeValues = new long[16];
+        } else if ((nWrites + 1) * 4 > writeKeys.length * 3) {
+            resize();
+        }
+        int mask = writeKeys.length - 1;
+        int slot = hash(index) & mask;
+        while (true) {
+            int key = writeKeys[slot];
+            if (key == index + 1) {
+                writeValues[slot] = value;
+                return;
+            } else if (key == 0) {
+                writeKeys[slot] = index + 1;
+                writeValues[slot] = value;
+                nWrites++;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void resize() {
+        int[] oldKeys = writeKeys;
+        long[] oldValues = writeValues;
+        writeKeys = new int[oldKeys.length * 2];
+        writeValues = new long[oldKeys.length * 2];
+        nWrites = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                putWrite(oldKeys[i] - 1, oldValues[i]);
+            }
+        }
+    }
+
+    private static int hash(int index) {
+        int h = index * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /* Adds the reads and writes of a nested transaction that committed. */
+    void addAll(PrimitiveArrayAccesses other) {
+        for (int i = 0; i < other.nReads; i++) {
+            addRead(other.reads[i]);
+        }
+        if (other.writeKeys != null) {
+            for (int i = 0; i < other.writeKeys.length; i++) {
+                if (other.writeKeys[i] != 0) {
+                    putWrite(other.writeKeys[i] - 1, other.writeValues[i]);
+                }
+            }
+        }
+    }
+
+    /* Returns true if other wrote to any of the positions read */
+    boolean readsAnyWrittenBy(PrimitiveArrayAccesses other) {
+        for (int i = 0; i < nReads; i++) {
+            if (other.findWrite(reads[i]) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean validate(int readVersion) {
+        if (nReads == 0) {
+            return true;
+        }
+        Arrays.sort(reads, 0, nReads);
+        return array.unchangedSince(reads, nReads, readVersion);
+    }
+
+    /* Returns the sorted indexes written; the corresponding values are returned by
+     * sortedWriteValues. */
+    int[] sortedWriteIndexes() {
+        int[] indexes = new int[nWrites];
+        int pos = 0;
+        for (int i = 0; i < writeKeys.length; i++) {
+            if (writeKeys[i] != 0) {
+                indexes[pos++] = writeKeys[i] - 1;
+            }
+        }
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    long[] sortedWriteValues(int[] sortedIndexes) {
+        long[] values = new long[sortedIndexes.length];
+        for (int i = 0; i < sortedIndexes.length; i++) {
+            values[i] = writeValues[findWrite(sortedIndexes[i])];
+        }
+        return values;
+    }
+}
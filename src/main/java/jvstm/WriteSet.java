@@ -26,6 +26,7 @@
 package jvstm;
 
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -59,17 +60,24 @@ public class WriteSet {
      */
     protected static final int DEFAULT_BLOCK_SIZE = 10;
 
+    /*
+     * The number of VArray positions to include in the same block.  Writing back a position of a
+     * VArray is cheaper than writing back a VBox (no new body is created), so blocks are larger.
+     */
+    protected static final int ARRAY_BLOCK_SIZE = 64;
+
     protected BoxesToCommit normalWriteSet;
     protected BoxesToCommit perTxBoxesWriteSet = BoxesToCommit.EMPTY_BOXES;
 
     /* Support for VArray */
     protected final VArrayCommitState[] arrayCommitState;
+    protected final PrimitiveArrayCommitState[] primitiveArrayCommitState;
 
     protected WriteSet(ReadWriteTransaction committer) {
-        this(committer.boxesWrittenInPlace, committer.mergedTxs, committer.boxesWritten, committer.arrayWrites, committer.arrayWritesCount, committer, DEFAULT_BLOCK_SIZE);
+        this(committer.boxesWrittenInPlace, committer.mergedTxs, committer.boxesWritten, committer.arrayWrites, committer.arrayWritesCount, committer.arrayRangeWrites, committer.primitiveArrayAccesses, committer, DEFAULT_BLOCK_SIZE);
     }
 
-    protected WriteSet(Cons<VBox> boxesWrittenInPlace, Cons<ParallelNestedTransaction> mergedTxs, Map<VBox, Object> boxesWritten, Map<VArrayEntry<?>, VArrayEntry<?>> arrayWrites, Map<VArray<?>, Integer> arrayWritesCount, ReadWriteTransaction committer, int blockSize) {
+    protected WriteSet(Cons<VBox> boxesWrittenInPlace, Cons<ParallelNestedTransaction> mergedTxs, Map<VBox, Object> boxesWritten, Map<VArrayEntry<?>, VArrayEntry<?>> arrayWrites, Map<VArray<?>, Integer> arrayWritesCount, Cons<VArrayRangeWrite<?>> arrayRangeWrites, Map<VPrimitiveArray, PrimitiveArrayAccesses> primitiveArrayAccesses, ReadWriteTransaction committer, int blockSize) {
 
         int boxesWrittenInPlaceSize = boxesWrittenInPlace.size();
         for (ParallelNestedTransaction mergedTx : mergedTxs) {
@@ -108,16 +116,16 @@ public class WriteSet {
         int writeSetLength = pos;
         int nBlocksAux = writeSetLength / blockSize;
         int nBlocks = (nBlocksAux == 0 && writeSetLength > 0) ? 1 : nBlocksAux;
-        Cons<GarbageCollectable>[] bodiesPerBlock = new Cons[nBlocks + arrayWritesCount.size()];
+        this.arrayCommitState = prepareArrayWrites(arrayWrites, arrayWritesCount, arrayRangeWrites);
+        this.primitiveArrayCommitState = preparePrimitiveArrayWrites(primitiveArrayAccesses);
+
+        Cons<GarbageCollectable>[] bodiesPerBlock = new Cons[nBlocks + arrayCommitState.length + primitiveArrayCommitState.length];
         AtomicBoolean[] blocksDone = new AtomicBoolean[nBlocks];
         for (int i = 0; i < nBlocks; i++) {
             blocksDone[i] = new AtomicBoolean(false);
         }
 
         this.normalWriteSet = new BoxesToCommit(nBlocks, blockSize, vboxes, values, writeSetLength, bodiesPerBlock, blocksDone);
-
-        this.arrayCommitState = prepareArrayWrites(arrayWrites, arrayWritesCount);
-
     }
 
     protected void addPerTxBoxesWrites(Map<VBox, Object> perTxBoxesWrites) {
@@ -175,6 +183,7 @@ public class WriteSet {
         this.normalWriteSet = new BoxesToCommit(nBlocks, blockSize, vboxes, values, writeSetLength, bodiesPerBlock, blocksDone);
 
         this.arrayCommitState = new VArrayCommitState[0];
+        this.primitiveArrayCommitState = new PrimitiveArrayCommitState[0];
     }
 
     protected WriteSet(VBox[] allWrittenVBoxes, int blockSize) {
@@ -192,6 +201,7 @@ public class WriteSet {
         this.normalWriteSet = new BoxesToCommit(nBlocks, blockSize, allWrittenVBoxes, null, writeSetLength, bodiesPerBlock, blocksDone);
 
         this.arrayCommitState = new VArrayCommitState[0];
+        this.primitiveArrayCommitState = new PrimitiveArrayCommitState[0];
     }
 
     protected final void helpWriteBack(int newTxNumber) {
@@ -201,50 +211,21 @@ public class WriteSet {
         processBoxes(this.normalWriteSet, newTxNumber);
 
         // Writeback to arrays
-        // This uses locking, but locks are only used if the current transaction
-        // WROTE to an array
-        //
-        // Algorithm:
-        // - All threads tryLock each array: if they succeed, they writeback to
-        // the array, otherwise they
-        // move on to the other arrays.
-        // - Because no thread should leave this method until all arrays are
-        // written back, a second pass is
-        // done, locking each array again, and checking that writeback is
-        // complete -- it might not be, if
-        // tryLock failed because a thread helping an older commit was still
-        // holding the lock. This way,
-        // only after all arrays are written back can the thread continue.
+        // This is lock-free, and works much like the write-back of VBoxes: every helper publishes
+        // (or adopts) the log node of this commit, and then writes back the ranges of positions
+        // that are not yet done, starting at a random one.  See the VArray notes for the details.
         if (this.arrayCommitState.length > 0) {
             int nBlocks = this.normalWriteSet.nBlocks;
             Cons<GarbageCollectable>[] bodiesPerBlock = this.normalWriteSet.bodiesPerBlock;
             for (int i = 0; i < this.arrayCommitState.length; i++) {
-                VArrayCommitState cs = this.arrayCommitState[i];
-                if (cs.array.writebackLock.tryLock()) {
-                    try {
-                        if (cs.array.version >= newTxNumber) {
-                            continue;
-                        }
-                        bodiesPerBlock[nBlocks + i] = cs.doWriteback(newTxNumber);
-                    } finally {
-                        cs.array.writebackLock.unlock();
-                    }
-                }
+                this.arrayCommitState[i].helpWriteBack(newTxNumber, bodiesPerBlock, nBlocks + i);
             }
-
-            // This loop is SIMILAR but not THE SAME as the one above: it uses
-            // lock instead of tryLock
-            for (int i = 0; i < this.arrayCommitState.length; i++) {
-                VArrayCommitState cs = this.arrayCommitState[i];
-                cs.array.writebackLock.lock();
-                try {
-                    if (cs.array.version >= newTxNumber) {
-                        continue;
-                    }
-                    bodiesPerBlock[nBlocks + i] = cs.doWriteback(newTxNumber);
-                } finally {
-                    cs.array.writebackLock.unlock();
-                }
+        }
+        if (this.primitiveArrayCommitState.length > 0) {
+            int firstLogNodePos = this.normalWriteSet.nBlocks + this.arrayCommitState.length;
+            Cons<GarbageCollectable>[] bodiesPerBlock = this.normalWriteSet.bodiesPerBlock;
+            for (int i = 0; i < this.primitiveArrayCommitState.length; i++) {
+                this.primitiveArrayCommitState[i].helpWriteBack(newTxNumber, bodiesPerBlock, firstLogNodePos + i);
             }
         }
     }
@@ -308,32 +289,130 @@ public class WriteSet {
     }
 
     protected static WriteSet empty() {
-        return new WriteSet(Cons.<VBox>empty(), Cons.<ParallelNestedTransaction>empty(), ReadWriteTransaction.EMPTY_MAP, ReadWriteTransaction.EMPTY_MAP, ReadWriteTransaction.EMPTY_MAP, null, DEFAULT_BLOCK_SIZE);
+        return new WriteSet(Cons.<VBox>empty(), Cons.<ParallelNestedTransaction>empty(), ReadWriteTransaction.EMPTY_MAP, ReadWriteTransaction.EMPTY_MAP, ReadWriteTransaction.EMPTY_MAP, Cons.<VArrayRangeWrite<?>>empty(), ReadWriteTransaction.EMPTY_MAP, null, DEFAULT_BLOCK_SIZE);
     }
 
     static final class VArrayCommitState {
         final VArray<?> array;
-        final VArrayEntry<?>[] writesToCommit;
         final int[] logEntryIndexes;
+        final Object[] writeValues;
+        final int nBlocks;
+        final AtomicBoolean[] blocksDone;
+
+        VArrayCommitState(VArray<?> array, int[] logEntryIndexes, Object[] writeValues) {
+            this.array = array;
+            this.logEntryIndexes = logEntryIndexes;
+            this.writeValues = writeValues;
+            int nBlocksAux = logEntryIndexes.length / ARRAY_BLOCK_SIZE;
+            this.nBlocks = (nBlocksAux == 0) ? 1 : nBlocksAux;
+            this.blocksDone = new AtomicBoolean[nBlocks];
+            for (int i = 0; i < nBlocks; i++) {
+                blocksDone[i] = new AtomicBoolean(false);
+            }
+        }
+
+        private void helpWriteBack(int newTxNumber, Cons<GarbageCollectable>[] bodiesPerBlock, int logNodePos) {
+            helpWriteBack(array, newTxNumber, bodiesPerBlock, logNodePos);
+        }
+
+        private <E> void helpWriteBack(VArray<E> array, int newTxNumber, Cons<GarbageCollectable>[] bodiesPerBlock, int logNodePos) {
+            VArrayLogNode<E> logNode = array.publishLog(newTxNumber, logEntryIndexes);
+            if (logNode == null) {
+                // a more recent commit already published its log, so this write-back is done
+                return;
+            }
+            // the log node must be registered for the GC before any block is marked as done
+            bodiesPerBlock[logNodePos] = Cons.<GarbageCollectable>empty().cons(logNode);
+
+            int finalBlock = random.get().nextInt(nBlocks); // start at a random position
+            int currentBlock = finalBlock;
+            do {
+                if (!blocksDone[currentBlock].get()) {
+                    int min = currentBlock * ARRAY_BLOCK_SIZE;
+                    // max depends on whether this is the last block
+                    int max = (currentBlock == (nBlocks - 1)) ? logEntryIndexes.length : (min + ARRAY_BLOCK_SIZE);
+                    array.writeBack(logNode, logEntryIndexes, writeValues, min, max);
+                    blocksDone[currentBlock].set(true);
+                }
+                currentBlock = (currentBlock + 1) % nBlocks;
+            } while (currentBlock != finalBlock);
+        }
+    }
+
+    /* The write-back of a VPrimitiveArray, see the notes on VPrimitiveArray */
+    static final class PrimitiveArrayCommitState {
+        final VPrimitiveArray array;
+        final int[] logEntryIndexes;
+        final long[] writeValues;
 
-        VArrayCommitState(VArray<?> array, VArrayEntry<?>[] writesToCommit, int[] logEntryIndexes) {
+        PrimitiveArrayCommitState(VPrimitiveArray array, int[] logEntryIndexes, long[] writeValues) {
             this.array = array;
-            this.writesToCommit = writesToCommit;
             this.logEntryIndexes = logEntryIndexes;
+            this.writeValues = writeValues;
+        }
+
+        private void helpWriteBack(int newTxNumber, Cons<GarbageCollectable>[] bodiesPerBlock, int logNodePos) {
+            PrimitiveArrayLogNode logNode = array.publishLog(newTxNumber, logEntryIndexes);
+            if (logNode == null) {
+                // a more recent commit already published its log, so this write-back is done
+                return;
+            }
+            // the log node must be registered for the GC before the write-back is done
+            bodiesPerBlock[logNodePos] = Cons.<GarbageCollectable>empty().cons(logNode);
+
+            int nBlocks = PrimitiveArrayLogNode.blocksFor(logEntryIndexes.length);
+            int finalBlock = random.get().nextInt(nBlocks); // start at a random position
+            int currentBlock = finalBlock;
+            do {
+                array.writeBack(logNode, logEntryIndexes, writeValues, currentBlock);
+                currentBlock = (currentBlock + 1) % nBlocks;
+            } while (currentBlock != finalBlock);
+            array.awaitWriteBack(logNode);
         }
+    }
 
-        private Cons<GarbageCollectable> doWriteback(int newTxNumber) {
-            GarbageCollectable newLogNode = array.commit(newTxNumber, writesToCommit, logEntryIndexes);
-            return Cons.<GarbageCollectable> empty().cons(newLogNode);
+    private PrimitiveArrayCommitState[] preparePrimitiveArrayWrites(Map<VPrimitiveArray, PrimitiveArrayAccesses> primitiveArrayAccesses) {
+        int nArrays = 0;
+        for (PrimitiveArrayAccesses accesses : primitiveArrayAccesses.values()) {
+            if (accesses.hasWrites()) {
+                nArrays++;
+            }
+        }
+        PrimitiveArrayCommitState[] commitState = new PrimitiveArrayCommitState[nArrays];
+        int pos = 0;
+        for (PrimitiveArrayAccesses accesses : primitiveArrayAccesses.values()) {
+            if (accesses.hasWrites()) {
+                int[] logEntryIndexes = accesses.sortedWriteIndexes();
+                commitState[pos++] = new PrimitiveArrayCommitState(accesses.array, logEntryIndexes,
+                        accesses.sortedWriteValues(logEntryIndexes));
+            }
         }
+        return commitState;
     }
 
     private VArrayCommitState[] prepareArrayWrites(Map<VArrayEntry<?>, VArrayEntry<?>> arrayWrites,
-            Map<VArray<?>, Integer> arrayWritesCount) {
-        if (arrayWrites.isEmpty()) {
+            Map<VArray<?>, Integer> arrayWritesCount, Cons<VArrayRangeWrite<?>> arrayRangeWrites) {
+        if (arrayWrites.isEmpty() && arrayRangeWrites.isEmpty()) {
             return new VArrayCommitState[0];
         }
 
+        // Range writes never overlap the single-position writes, so they are simply merged into the
+        // write-back of their arrays
+        Map<VArray<?>, Cons<VArrayRangeWrite<?>>> rangeWritesPerArray = new IdentityHashMap<VArray<?>, Cons<VArrayRangeWrite<?>>>();
+        for (VArrayRangeWrite<?> rangeWrite : arrayRangeWrites) {
+            Cons<VArrayRangeWrite<?>> rangeWrites = rangeWritesPerArray.get(rangeWrite.array);
+            if (rangeWrites == null) {
+                rangeWrites = Cons.empty();
+            }
+            rangeWritesPerArray.put(rangeWrite.array, rangeWrites.cons(rangeWrite));
+        }
+        int nArrays = arrayWritesCount.size();
+        for (VArray<?> array : rangeWritesPerArray.keySet()) {
+            if (!arrayWritesCount.containsKey(array)) {
+                nArrays++;
+            }
+        }
+
         // During commit, arrayWritebacks keeps the write-set divided into
         // per-array lists
         Map<VArray<?>, Pair<VArrayEntry<?>[], Integer>> arrayWritebacks = new HashMap<VArray<?>, Pair<VArrayEntry<?>[], Integer>>(
@@ -345,7 +424,7 @@ public class WriteSet {
 
         VArray<?> lastArray = null;
         Pair<VArrayEntry<?>[], Integer> lastArrayEntries = null;
-        VArrayCommitState[] commitState = new VArrayCommitState[arrayWritesCount.size()];
+        VArrayCommitState[] commitState = new VArrayCommitState[nArrays];
         int nextCommitStatePos = 0;
 
         // Split array write-set into per-array lists
@@ -365,21 +444,55 @@ public class WriteSet {
             if (lastArrayEntries.first.length == pos + 1) { // We have all the
                                                             // writes for the
                                                             // current array
-                VArrayEntry<?>[] writesToCommit = lastArrayEntries.first;
+                commitState[nextCommitStatePos++] = makeArrayCommitState(array, lastArrayEntries.first,
+                        rangeWritesPerArray.remove(array));
+            }
+        }
 
-                // Sort entries
-                java.util.Arrays.sort(writesToCommit);
+        // Arrays written only with range writes
+        for (Map.Entry<VArray<?>, Cons<VArrayRangeWrite<?>>> entry : rangeWritesPerArray.entrySet()) {
+            commitState[nextCommitStatePos++] = makeArrayCommitState(entry.getKey(), new VArrayEntry<?>[0], entry.getValue());
+        }
 
-                // Create logEntryIndexes to be used in the log
-                int[] logEntryIndexes = new int[writesToCommit.length];
-                for (int i = 0; i < writesToCommit.length; i++) {
-                    logEntryIndexes[i] = writesToCommit[i].index;
-                }
+        return commitState;
+    }
 
-                commitState[nextCommitStatePos++] = new VArrayCommitState(array, writesToCommit, logEntryIndexes);
+    private static VArrayCommitState makeArrayCommitState(VArray<?> array, VArrayEntry<?>[] writesToCommit,
+            Cons<VArrayRangeWrite<?>> rangeWrites) {
+        // Sort entries
+        java.util.Arrays.sort(writesToCommit);
+
+        VArrayRangeWrite<?>[] ranges = new VArrayRangeWrite<?>[(rangeWrites == null) ? 0 : rangeWrites.size()];
+        int nWrites = writesToCommit.length;
+        if (rangeWrites != null) {
+            int pos = 0;
+            for (VArrayRangeWrite<?> rangeWrite : rangeWrites) {
+                ranges[pos++] = rangeWrite;
+                nWrites += rangeWrite.to - rangeWrite.from;
             }
+            java.util.Arrays.sort(ranges);
         }
 
-        return commitState;
+        // Create logEntryIndexes to be used in the log, and the corresponding new values
+        int[] logEntryIndexes = new int[nWrites];
+        Object[] writeValues = new Object[nWrites];
+        int pos = 0;
+        int nextEntry = 0;
+        int nextRange = 0;
+        while (pos < nWrites) {
+            if (nextRange == ranges.length
+                    || (nextEntry < writesToCommit.length && writesToCommit[nextEntry].index < ranges[nextRange].from)) {
+                logEntryIndexes[pos] = writesToCommit[nextEntry].index;
+                writeValues[pos++] = writesToCommit[nextEntry++].getWriteValue();
+            } else {
+                VArrayRangeWrite<?> range = ranges[nextRange++];
+                for (int index = range.from; index < range.to; index++) {
+                    logEntryIndexes[pos] = index;
+                    writeValues[pos++] = range.values[index - range.from];
+                }
+            }
+        }
+
+        return new VArrayCommitState(array, logEntryIndexes, writeValues);
     }
 }
@@ -31,4 +31,9 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 public @interface ParNest {
     boolean readOnly() default false;
+
+    /* How many calls to the annotated method are worth a parallel nested transaction.  When a
+     * ParallelSpawn makes no more calls than this, they run inline, in its transaction;
+     * otherwise they are grouped, at least this many per parallel nested transaction. */
+    int minBatch() default 1;
 }
@@ -34,7 +34,7 @@ import static org.objectweb.asm.Opcodes.ACONST_NULL;
 import static org.objectweb.asm.Opcodes.ALOAD;
 import static org.objectweb.asm.Opcodes.ARETURN;
 import static org.objectweb.asm.Opcodes.IRETURN;
-import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.ICONST_1;
 import static org.objectweb.asm.Opcodes.ASM4;
 import static org.objectweb.asm.Opcodes.ASTORE;
 import static org.objectweb.asm.Opcodes.DUP;
@@ -174,8 +174,10 @@ public class ProcessParNestAnnotations {
                                                                 callableClass = cn.name + "$unsafe$work$unit$" + uniqueMethodName;
                                                         }
                                                         callablesCreated.put(mn.name, callableClass);
-                                                        boolean readOnlyCallable = ( an.values == null ) ? false : (Boolean) an.values.get(1);
-                                                        generateCallable(classFile, cn.name, callableClass, mn, readOnlyCallable, unsafeSpawn);
+                                                        boolean readOnlyCallable = (Boolean) getAnnotationValue(an, "readOnly", false);
+                                                        int minBatch = (Integer) getAnnotationValue(an, "minBatch", 1);
+                                                        generateCallable(classFile, cn.name, callableClass, mn, readOnlyCallable, minBatch,
+                                                                        unsafeSpawn);
                                                         staticMethodsToAdd.add(generateStaticCallableCreation(cn, cn.name, callableClass, mn));
                                                         break;
                                                 } else if (an.desc.equals(COMBINER.getDescriptor())) {
@@ -347,6 +349,18 @@ public class ProcessParNestAnnotations {
                 }
         }
 
+        // an.values holds the name of each value followed by the value itself, and only those given explicitly
+        private static Object getAnnotationValue(AnnotationNode an, String name, Object defaultValue) {
+                if (an.values != null) {
+                        for (int i = 0; i < an.values.size(); i += 2) {
+                                if (name.equals(an.values.get(i))) {
+                                        return an.values.get(i + 1);
+                                }
+                        }
+                }
+                return defaultValue;
+        }
+
         private static boolean isStatic(MethodNode mn) {
                 return (mn.access & ACC_STATIC) > 0;
         }
@@ -407,7 +421,8 @@ public class ProcessParNestAnnotations {
                 return staticMethod;
         }
 
-        private static void generateCallable(File classFile, String className, String callableClass, MethodNode mn, boolean readOnly, boolean unsafe) {
+        private static void generateCallable(File classFile, String className, String callableClass, MethodNode mn, boolean readOnly,
+                        int minBatch, boolean unsafe) {
                 Type returnType = Type.getReturnType(mn.desc);
 
                 List<Type> arguments = new ArrayList<Type>(Arrays.asList(Type.getArgumentTypes(mn.desc)));
@@ -476,7 +491,7 @@ public class ProcessParNestAnnotations {
                         if (readOnly) {
                                 MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "isReadOnly", "()Z", null, null);
                                 mv.visitCode();
-                                mv.visitInsn(ICONST_0);
+                                mv.visitInsn(ICONST_1);
                                 mv.visitInsn(IRETURN);
                                 mv.visitMaxs(0, 0);
                                 mv.visitEnd();
@@ -484,9 +499,21 @@ public class ProcessParNestAnnotations {
                 }
 
                 /*    protected boolean isReadOnly() {
-        return false;
+        return true;
     }*/
 
+                // Create the getMinBatch method
+                {
+                        if (minBatch > 1) {
+                                MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "getMinBatch", "()I", null, null);
+                                mv.visitCode();
+                                mv.visitLdcInsn(minBatch);
+                                mv.visitInsn(IRETURN);
+                                mv.visitMaxs(0, 0);
+                                mv.visitEnd();
+                        }
+                }
+
                 // Write the callable class file in the same directory as the original
                 // class file
                 String callableFileName = callableClass.substring(Math.max(callableClass.lastIndexOf('/'), 0)) + ".class";
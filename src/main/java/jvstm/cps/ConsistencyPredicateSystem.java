@@ -36,6 +36,22 @@ public class ConsistencyPredicateSystem {
 
     // keeps a map of the consistency predicates for each class
     private final static Map<Class,Cons<Method>> PREDICATES_PER_CLASS = new ConcurrentHashMap<Class,Cons<Method>>();
+    // and of the invokers of those predicates, in the same order
+    private final static Map<Class,Cons<PredicateInvoker>> INVOKERS_PER_CLASS = new ConcurrentHashMap<Class,Cons<PredicateInvoker>>();
+    private final static Map<Method,PredicateInvoker> INVOKERS = new ConcurrentHashMap<Method,PredicateInvoker>();
+
+    static final String PARALLEL_CHECKS_PROP = "jvstm.cps.parallelChecks";
+    // a commit that has at least this many predicates to check evaluates them in parallel; off by default
+    private static volatile int parallelChecksThreshold = Integer.getInteger(PARALLEL_CHECKS_PROP, Integer.MAX_VALUE);
+
+    public static int getParallelChecksThreshold() {
+        return parallelChecksThreshold;
+    }
+
+    /* Integer.MAX_VALUE makes every commit check its predicates sequentially */
+    public static void setParallelChecksThreshold(int threshold) {
+        parallelChecksThreshold = Math.max(threshold, 2);
+    }
 
     public static Cons<Method> getPredicatesFor(Object obj) {
         Class objClass = obj.getClass();
@@ -47,6 +63,30 @@ public class ConsistencyPredicateSystem {
         return predicates;
     }
 
+    public static Cons<PredicateInvoker> getPredicateInvokersFor(Object obj) {
+        Class objClass = obj.getClass();
+        Cons<PredicateInvoker> invokers = INVOKERS_PER_CLASS.get(objClass);
+        if (invokers == null) {
+            invokers = Cons.empty();
+            for (Method predicate : getPredicatesFor(obj)) {
+                invokers = invokers.cons(getInvoker(predicate));
+            }
+            invokers = invokers.reverse();
+            INVOKERS_PER_CLASS.put(objClass, invokers);
+        }
+        return invokers;
+    }
+
+    public static PredicateInvoker getInvoker(Method predicate) {
+        PredicateInvoker invoker = INVOKERS.get(predicate);
+        if (invoker == null) {
+            invoker = PredicateInvoker.makeInvoker(predicate);
+            // two threads may create an invoker for the same predicate, but either of them will do
+            INVOKERS.put(predicate, invoker);
+        }
+        return invoker;
+    }
+
     private static Cons<Method> computePredicatesForClass(Class objClass) {
         if (objClass != null) {
             Cons<Method> predicates = computePredicatesForClass(objClass.getSuperclass());
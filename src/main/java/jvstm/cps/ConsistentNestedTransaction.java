@@ -50,6 +50,12 @@ public class ConsistentNestedTransaction extends NestedTransaction implements Co
         return newObjects;
     }
 
+    // see ConsistentTopLevelTransaction.defersCommutativeOps
+    @Override
+    protected boolean defersCommutativeOps() {
+        return false;
+    }
+
     @Override
     protected void tryCommit() {
         ((ConsistentTransaction)getParent()).registerNewObjects(newObjects);
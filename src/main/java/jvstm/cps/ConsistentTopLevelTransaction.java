@@ -29,20 +29,26 @@ import jvstm.VBox;
 import jvstm.Transaction;
 import jvstm.TopLevelTransaction;
 import jvstm.ActiveTransactionsRecord;
+import jvstm.TransactionalTask;
 
 import jvstm.util.Cons;
 
 import java.lang.reflect.Method;
-import java.lang.reflect.InvocationTargetException;
 
 import java.util.Set;
-import java.util.HashSet;
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 
 public class ConsistentTopLevelTransaction extends TopLevelTransaction implements ConsistentTransaction {
 
     protected Cons newObjects = Cons.empty();
-    protected Set alreadyChecked = null;
+    // the predicates already checked for each object, during the commit
+    protected Map<Object,Cons<Method>> alreadyChecked = null;
+    // reused by all the checks of this transaction (see makeConsistencyCheckTransaction)
+    private DefaultConsistencyCheckTransaction checkTx = null;
 
     public ConsistentTopLevelTransaction(ActiveTransactionsRecord record) {
         super(record);
@@ -65,19 +71,38 @@ public class ConsistentTopLevelTransaction extends TopLevelTransaction implement
         return new ConsistentNestedTransaction(this);
     }
 
+    /* The predicates checked at commit must see the commutative updates of a CommutativeVBox, and the boxes that
+     * they update must be rechecked, so these transactions apply them right away. */
+    @Override
+    protected boolean defersCommutativeOps() {
+        return false;
+    }
+
     @Override
     protected void tryCommit() {
         if (isWriteTransaction()) {
-            alreadyChecked = new HashSet();
+            alreadyChecked = new IdentityHashMap<Object,Cons<Method>>();
             checkConsistencyPredicates();
-            alreadyChecked = null; // allow gc of set
+            alreadyChecked = null; // allow gc of map
+            checkTx = null;
         }
         super.tryCommit();
     }
 
     protected void checkConsistencyPredicates() {
-        // recheck all consistency predicates that may have changed
         Iterator<DependenceRecord> depRecIter = getDependenceRecordsToRecheck();
+        if (checksPredicatesInParallel()) {
+            List<DependenceRecord> toRecheck = new ArrayList<DependenceRecord>();
+            while (depRecIter.hasNext()) {
+                toRecheck.add(depRecIter.next());
+            }
+            if (checkPredicatesInParallel(toRecheck)) {
+                return;
+            }
+            depRecIter = toRecheck.iterator();
+        }
+
+        // recheck all consistency predicates that may have changed
         while (depRecIter.hasNext()) {
             recheckDependenceRecord(depRecIter.next());
         }
@@ -88,6 +113,92 @@ public class ConsistentTopLevelTransaction extends TopLevelTransaction implement
         }
     }
 
+    /*
+     * Whether the predicates of this commit may be evaluated
+     * concurrently, by ParallelConsistencyCheckTransactions, which is
+     * off unless the parallelChecks threshold is set (see
+     * ConsistencyPredicateSystem).  Subclasses that make their own
+     * check transactions (see makeConsistencyCheckTransaction) should
+     * either override makeParallelConsistencyCheckTransaction as well,
+     * or return false here.
+     */
+    protected boolean checksPredicatesInParallel() {
+        return ConsistencyPredicateSystem.getParallelChecksThreshold() < Integer.MAX_VALUE;
+    }
+
+    /*
+     * Returns false, without checking anything, if there are fewer
+     * predicates to check than the parallelChecks threshold, in which
+     * case they are not worth the parallel nesting.  Otherwise,
+     * collects the same checks that the sequential version would make,
+     * in the same order, evaluates them in chunks of consecutive
+     * checks, each in a parallel nested read-only transaction of this
+     * one, and then updates the dependences in this thread, in that
+     * order.  So, the dependences that result are the same and, when
+     * several predicates fail, the exception thrown is the one of the
+     * first of them.
+     */
+    protected boolean checkPredicatesInParallel(List<DependenceRecord> toRecheck) {
+        int maxChecks = toRecheck.size();
+        for (Object obj : newObjects) {
+            maxChecks += ConsistencyPredicateSystem.getPredicateInvokersFor(obj).size();
+        }
+        if (maxChecks < ConsistencyPredicateSystem.getParallelChecksThreshold()) {
+            return false;
+        }
+
+        List<PredicateCheck> checks = new ArrayList<PredicateCheck>();
+        for (DependenceRecord dependence : toRecheck) {
+            addPredicateCheck(checks, dependence.getDependent(), ConsistencyPredicateSystem.getInvoker(dependence.getPredicate()), dependence);
+        }
+        for (Object obj : newObjects) {
+            for (PredicateInvoker invoker : ConsistencyPredicateSystem.getPredicateInvokersFor(obj)) {
+                addPredicateCheck(checks, obj, invoker, null);
+            }
+        }
+
+        int size = checks.size();
+        int maxChunks = Runtime.getRuntime().availableProcessors() * MAX_CHUNKS_PER_WORKER;
+        int chunkSize = (size + maxChunks - 1) / maxChunks;
+        List<PredicateChecksTask> tasks = new ArrayList<PredicateChecksTask>();
+        for (int from = 0; from < size; from += chunkSize) {
+            tasks.add(new PredicateChecksTask(checks.subList(from, Math.min(size, from + chunkSize))));
+        }
+
+        manageNestedParallelTxs(tasks);
+
+        for (PredicateChecksTask task : tasks) {
+            if (task.failure != null) {
+                throw task.failure;
+            }
+        }
+        int i = 0;
+        for (PredicateChecksTask task : tasks) {
+            for (Set<VBox> boxesRead : task.boxesRead) {
+                applyPredicateCheck(checks.get(i++), task.tx.getDepended(boxesRead));
+            }
+        }
+        return true;
+    }
+
+    private void addPredicateCheck(List<PredicateCheck> checks, Object obj, PredicateInvoker invoker, DependenceRecord dependence) {
+        if (markAsChecked(obj, invoker.getPredicate())) {
+            checks.add(new PredicateCheck(obj, invoker, dependence));
+        }
+    }
+
+    private void applyPredicateCheck(PredicateCheck check, Set<Depended> depended) {
+        if (check.dependence != null) {
+            updateDependenceRecord(check.dependence, depended);
+        } else {
+            addDependenceRecord(check.obj, check.invoker.getPredicate(), depended);
+        }
+    }
+
+    protected ParallelConsistencyCheckTransaction makeParallelConsistencyCheckTransaction() {
+        return new ParallelConsistencyCheckTransaction(this);
+    }
+
     protected void recheckDependenceRecord(DependenceRecord dependence) {
         Set<Depended> newDepended = checkOnePredicate(dependence.getDependent(), dependence.getPredicate());
 
@@ -96,6 +207,10 @@ public class ConsistentTopLevelTransaction extends TopLevelTransaction implement
             return;
         }
 
+        updateDependenceRecord(dependence, newDepended);
+    }
+
+    private static void updateDependenceRecord(DependenceRecord dependence, Set<Depended> newDepended) {
         Iterator<Depended> oldDeps = dependence.getDepended();
         while (oldDeps.hasNext()) {
             Depended dep = oldDeps.next();
@@ -117,13 +232,19 @@ public class ConsistentTopLevelTransaction extends TopLevelTransaction implement
     }
 
     protected void checkConsistencyPredicates(Object obj) {
-        for (Method predicate : ConsistencyPredicateSystem.getPredicatesFor(obj)) {
-            Set<Depended> depended = checkOnePredicate(obj, predicate);
-            if ((depended != null) && (! depended.isEmpty())) {
-                DependenceRecord dependence = makeDependenceRecord(obj, predicate, depended);
-                for (Depended dep : depended) {
-                    dep.addDependence(dependence);
-                }
+        for (PredicateInvoker invoker : ConsistencyPredicateSystem.getPredicateInvokersFor(obj)) {
+            Set<Depended> depended = checkOnePredicate(obj, invoker);
+            if (depended != null) {
+                addDependenceRecord(obj, invoker.getPredicate(), depended);
+            }
+        }
+    }
+
+    private void addDependenceRecord(Object obj, Method predicate, Set<Depended> depended) {
+        if (! depended.isEmpty()) {
+            DependenceRecord dependence = makeDependenceRecord(obj, predicate, depended);
+            for (Depended dep : depended) {
+                dep.addDependence(dependence);
             }
         }
     }
@@ -136,64 +257,98 @@ public class ConsistentTopLevelTransaction extends TopLevelTransaction implement
      * method returns null to indicate it.
      */
     protected Set<Depended> checkOnePredicate(Object obj, Method predicate) {
-        Pair toCheck = new Pair(obj, predicate);
+        return checkOnePredicate(obj, ConsistencyPredicateSystem.getInvoker(predicate));
+    }
 
-        if (alreadyChecked.contains(toCheck)) {
+    protected Set<Depended> checkOnePredicate(Object obj, PredicateInvoker invoker) {
+        if (! markAsChecked(obj, invoker.getPredicate())) {
             // returning null means that no check was actually done, because it is repeated
             return null;
         }
+        return evaluatePredicate(obj, invoker, makeConsistencyCheckTransaction(obj));
+    }
+
+    /* Returns false if the predicate was already checked for the object, during this commit */
+    private boolean markAsChecked(Object obj, Method predicate) {
+        Cons<Method> checked = alreadyChecked.get(obj);
+        if (checked == null) {
+            checked = Cons.empty();
+        } else if (checked.contains(predicate)) {
+            return false;
+        }
+        alreadyChecked.put(obj, checked.cons(predicate));
+        return true;
+    }
 
-        alreadyChecked.add(toCheck);
+    private static Set<Depended> evaluatePredicate(Object obj, PredicateInvoker invoker, ConsistencyCheckTransaction tx) {
+        runPredicate(obj, invoker, tx);
+        return tx.getDepended();
+    }
 
-        ConsistencyCheckTransaction tx = makeConsistencyCheckTransaction(obj);
+    /* Runs the predicate within tx, which is committed if the object is consistent, and aborted otherwise */
+    private static void runPredicate(Object obj, PredicateInvoker invoker, ConsistencyCheckTransaction tx) {
         tx.start();
 
         boolean finished = false;
 
-        Class<? extends ConsistencyException> excClass = predicate.getAnnotation(ConsistencyPredicate.class).value();
         try {
-            if (! ((Boolean)predicate.invoke(obj)).booleanValue()) {
-                ConsistencyException exc = excClass.newInstance();
-                exc.init(obj, predicate);
-                throw exc;
-            }
+            invokePredicate(obj, invoker);
 
             Transaction.commit();
 
             finished = true;
+        } finally {
+            if (! finished) {
+                Transaction.abort();
+            }
+        }
+    }
 
-            return tx.getDepended();
-        } catch (InvocationTargetException ite) {
-            Throwable cause = ite.getCause();
+    /* Throws a ConsistencyException if the object is not consistent according to the predicate */
+    private static void invokePredicate(Object obj, PredicateInvoker invoker) {
+        Method predicate = invoker.getPredicate();
 
+        boolean consistent;
+        try {
+            consistent = invoker.invoke(obj);
+        } catch (Throwable cause) {
             ConsistencyException exc;
 
             // only wrap the cause if it is not a ConsistencyException already
             if (cause instanceof ConsistencyException) {
                 exc = (ConsistencyException) cause;
             } else {
-                try {
-                    exc = excClass.newInstance();
-                } catch (Throwable t) {
-                    throw new Error(t);
-                }
+                exc = newConsistencyException(invoker);
                 exc.initCause(cause);
             }
 
             exc.init(obj, predicate);
             throw exc;
+        }
+
+        if (! consistent) {
+            ConsistencyException exc = newConsistencyException(invoker);
+            exc.init(obj, predicate);
+            throw exc;
+        }
+    }
+
+    private static ConsistencyException newConsistencyException(PredicateInvoker invoker) {
+        try {
+            return invoker.getExceptionClass().newInstance();
         } catch (Throwable t) {
-            // any other kind of throwable is an Error in the JVSTM that should be fixed
+            // any kind of throwable is an Error in the JVSTM that should be fixed
             throw new Error(t);
-        } finally {
-            if (! finished) {
-                Transaction.abort();
-            }
         }
     }
 
     protected ConsistencyCheckTransaction makeConsistencyCheckTransaction(Object obj) {
-        return new DefaultConsistencyCheckTransaction(this);
+        if (checkTx == null) {
+            checkTx = new DefaultConsistencyCheckTransaction(this);
+        } else {
+            checkTx.reset();
+        }
+        return checkTx;
     }
 
     protected DependenceRecord makeDependenceRecord(Object dependent, Method predicate, Set<Depended> depended) {
@@ -204,37 +359,84 @@ public class ConsistentTopLevelTransaction extends TopLevelTransaction implement
         Cons<Iterator<DependenceRecord>> iteratorsList = Cons.empty();
 
         for (VBox box : boxesWritten.keySet()) {
-            Depended dep = DependedVBoxes.getDependedForBoxIfExists(box);
-            if (dep != null) {
-                iteratorsList = iteratorsList.cons(dep.getDependenceRecords().iterator());
-            }
+            iteratorsList = addDependenceRecords(box, iteratorsList);
+        }
+        for (VBox box : boxesWrittenInPlace) {
+            iteratorsList = addDependenceRecords(box, iteratorsList);
         }
 
         return new ChainedIterator<DependenceRecord>(iteratorsList.iterator());
     }
 
+    private static Cons<Iterator<DependenceRecord>> addDependenceRecords(VBox box, Cons<Iterator<DependenceRecord>> iteratorsList) {
+        Depended dep = DependedVBoxes.getDependedForBoxIfExists(box);
+        if (dep != null) {
+            iteratorsList = iteratorsList.cons(dep.getDependenceRecords().iterator());
+        }
+        return iteratorsList;
+    }
+
+    private static final class PredicateCheck {
+        final Object obj;
+        final PredicateInvoker invoker;
+        // null for the predicates of new objects
+        final DependenceRecord dependence;
+
+        PredicateCheck(Object obj, PredicateInvoker invoker, DependenceRecord dependence) {
+            this.obj = obj;
+            this.invoker = invoker;
+            this.dependence = dependence;
+        }
+    }
+
+    /* Checks a chunk of consecutive predicates.  A failure is kept, rather than thrown, so that it does not cancel
+     * the other chunks, and the committing thread may throw the first failure of all. */
+    private final class PredicateChecksTask extends TransactionalTask<Void> {
+        private final List<PredicateCheck> checks;
 
-    static final class Pair {
-        final Object first;
-        final Object second;
+        ParallelConsistencyCheckTransaction tx;
+        // the boxes read by each of the checks, in order
+        List<Set<VBox>> boxesRead;
+        ConsistencyException failure;
 
-        Pair(Object first, Object second) {
-            this.first = first;
-            this.second = second;
+        PredicateChecksTask(List<PredicateCheck> checks) {
+            this.checks = checks;
         }
 
-        public int hashCode() {
-            return first.hashCode() + second.hashCode();
+        @Override
+        public Void call() throws Exception {
+            parent.start();
+            return execute();
         }
 
-        public boolean equals(Object other) {
-            if (other.getClass() != Pair.class) {
-                return false;
+        @Override
+        public Void execute() {
+            tx = makeParallelConsistencyCheckTransaction();
+            boxesRead = new ArrayList<Set<VBox>>(checks.size());
+            failure = null;
+
+            tx.start();
+            boolean finished = false;
+            try {
+                for (PredicateCheck check : checks) {
+                    invokePredicate(check.obj, check.invoker);
+                    boxesRead.add(tx.takeBoxesRead());
+                }
+                Transaction.commit();
+                finished = true;
+            } catch (ConsistencyException ce) {
+                failure = ce;
+            } finally {
+                if (! finished) {
+                    Transaction.abort();
+                }
             }
+            return null;
+        }
 
-            Pair p2 = (Pair)other;
-
-            return (p2.first == first) && (p2.second == second);
+        @Override
+        protected boolean isReadOnly() {
+            return true;
         }
     }
 }
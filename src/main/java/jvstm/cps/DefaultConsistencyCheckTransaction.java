@@ -41,6 +41,12 @@ public class DefaultConsistencyCheckTransaction extends ReadTransaction implemen
         super(parent);
     }
 
+    /* Prepares this transaction to be started again, for another check with the same parent */
+    protected void reset() {
+        boxesRead.clear();
+        numStarts = 0;
+    }
+
     public Transaction makeNestedTransaction() {
         return this;
     }
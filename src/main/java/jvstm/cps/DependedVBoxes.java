@@ -26,11 +26,10 @@
 package jvstm.cps;
 
 import jvstm.VBox;
+import jvstm.util.ConcurrentWeakIdentityMap;
 import jvstm.util.VLinkedSet;
 
 import java.util.Set;
-import java.util.Map;
-import java.util.WeakHashMap;
 
 public class DependedVBoxes {
 
@@ -53,15 +52,12 @@ public class DependedVBoxes {
     }
 
 
-    // this implementation is just for a proof-of-concept
+    // the depended-aspect of each VBox is kept in a concurrent map,
+    // which holds the boxes weakly, so that neither the checks of
+    // the consistency predicates nor the commits that look for the
+    // predicates to recheck serialize on a global lock
 
-    // the use of global-lock to access the map is not, most probably,
-    // the best choice for this, but it will do for now
-
-    // the use of a ConcurrentHashMap would be preferable, but I would need a
-    // ConcurrentWeakHashMap that does not exist yet...
-
-    private static final Map<VBox,Depended> DEPENDED = new WeakHashMap<VBox,Depended>();
+    private static final ConcurrentWeakIdentityMap<VBox,Depended> DEPENDED = new ConcurrentWeakIdentityMap<VBox,Depended>();
 
     public static Depended getDependedForBox(VBox box) {
         return getDependedForBox(box, true);
@@ -71,13 +67,17 @@ public class DependedVBoxes {
         return getDependedForBox(box, false);
     }
 
-    public synchronized static Depended getDependedForBox(VBox box, boolean create) {
+    public static Depended getDependedForBox(VBox box, boolean create) {
         Depended dep = DEPENDED.get(box);
 
         if ((dep == null) && create) {
-            // no depended exists yet, so create one and store it
-            dep = new DependedState();
-            DEPENDED.put(box, dep);
+            // no depended exists yet, so create one and store it,
+            // unless some other thread got ahead of us
+            Depended newDep = new DependedState();
+            dep = DEPENDED.putIfAbsent(box, newDep);
+            if (dep == null) {
+                dep = newDep;
+            }
         }
 
         return dep;
@@ -0,0 +1,83 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.cps;
+
+import java.util.Set;
+import java.util.HashSet;
+
+import jvstm.VBox;
+import jvstm.ReadWriteTransaction;
+import jvstm.ParallelNestedReadOnlyTransaction;
+
+/*
+ * The transaction in which a chunk of the consistency predicates of a
+ * commit is checked, when those checks run in parallel (see
+ * ConsistentTopLevelTransaction.checkPredicatesInParallel).  Unlike
+ * the DefaultConsistencyCheckTransaction, it does not read through
+ * its parent, whose read-set may not be shared among threads:
+ * instead, it is a parallel nested read-only transaction of the
+ * committing transaction, whose reads the parent validates once it
+ * sees this transaction in its mergedTxs.
+ *
+ * The reads of each predicate are kept apart (see takeBoxesRead), and
+ * the Depended of those boxes must be created by the committing
+ * transaction, after this one has committed.
+ */
+public class ParallelConsistencyCheckTransaction extends ParallelNestedReadOnlyTransaction {
+
+    protected HashSet<VBox> boxesRead = new HashSet<VBox>();
+
+    public ParallelConsistencyCheckTransaction(ReadWriteTransaction parent) {
+        super(parent);
+    }
+
+    @Override
+    public <T> T getBoxValue(VBox<T> vbox) {
+        boxesRead.add(vbox);
+        return super.getBoxValue(vbox);
+    }
+
+    /* Returns the boxes read since the previous call, by the predicate that was just checked */
+    public Set<VBox> takeBoxesRead() {
+        Set<VBox> read = boxesRead;
+        boxesRead = new HashSet<VBox>();
+        return read;
+    }
+
+    public Set<Depended> getDepended(Set<VBox> boxesRead) {
+        Set<Depended> depended = new HashSet<Depended>(boxesRead.size());
+
+        for (VBox box : boxesRead) {
+            depended.add(getDependedForBox(box));
+        }
+
+        return depended;
+    }
+
+    protected Depended getDependedForBox(VBox box) {
+        return DependedVBoxes.getDependedForBox(box);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.cps;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_6;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+/*
+ * Invokes one consistency predicate, without the cost of reflection whenever possible.
+ *
+ * For a public predicate of a public class, a subclass that calls the predicate directly is
+ * generated with ASM, and loaded by a class loader of its own, on top of the class loader of
+ * the predicate's class.  The other predicates (e.g., private ones) are invoked reflectively.
+ *
+ * The invokers are created and cached by ConsistencyPredicateSystem.
+ */
+public abstract class PredicateInvoker {
+
+    private static final String INVOKER_NAME = Type.getInternalName(PredicateInvoker.class);
+    private static final AtomicInteger generatedCount = new AtomicInteger();
+
+    protected final Method predicate;
+    protected final Class<? extends ConsistencyException> exceptionClass;
+
+    protected PredicateInvoker(Method predicate) {
+        this.predicate = predicate;
+        this.exceptionClass = predicate.getAnnotation(ConsistencyPredicate.class).value();
+    }
+
+    public Method getPredicate() {
+        return predicate;
+    }
+
+    public Class<? extends ConsistencyException> getExceptionClass() {
+        return exceptionClass;
+    }
+
+    /* Any exception thrown by the predicate itself is thrown as is, without wrapping. */
+    public abstract boolean invoke(Object obj) throws Throwable;
+
+    static PredicateInvoker makeInvoker(Method predicate) {
+        if (canBeGenerated(predicate)) {
+            try {
+                return generate(predicate);
+            } catch (Throwable t) {
+                // e.g., the class loader of the predicate's class cannot see jvstm: fall back to reflection
+            }
+        }
+        return new Reflective(predicate);
+    }
+
+    private static boolean canBeGenerated(Method predicate) {
+        Class<?> returnType = predicate.getReturnType();
+        return Modifier.isPublic(predicate.getModifiers()) && !Modifier.isStatic(predicate.getModifiers())
+                && Modifier.isPublic(predicate.getDeclaringClass().getModifiers())
+                && (returnType == boolean.class || returnType == Boolean.class);
+    }
+
+    private static PredicateInvoker generate(Method predicate) throws Exception {
+        String name = INVOKER_NAME + "$Generated$" + generatedCount.incrementAndGet();
+        String owner = Type.getInternalName(predicate.getDeclaringClass());
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_6, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, INVOKER_NAME, null);
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "(Ljava/lang/reflect/Method;)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitMethodInsn(INVOKESPECIAL, INVOKER_NAME, "<init>", "(Ljava/lang/reflect/Method;)V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // public boolean invoke(Object obj) { return ((Owner) obj).predicate(); }
+        mv = cw.visitMethod(ACC_PUBLIC, "invoke", "(Ljava/lang/Object;)Z", null, new String[] { "java/lang/Throwable" });
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, owner);
+        mv.visitMethodInsn(INVOKEVIRTUAL, owner, predicate.getName(), Type.getMethodDescriptor(predicate));
+        if (predicate.getReturnType() == Boolean.class) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z");
+        }
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        Class<?> invokerClass = new InvokerLoader(predicate.getDeclaringClass().getClassLoader()).define(
+                name.replace('/', '.'), cw.toByteArray());
+        return (PredicateInvoker) invokerClass.getConstructor(Method.class).newInstance(predicate);
+    }
+
+    private static final class InvokerLoader extends ClassLoader {
+        InvokerLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+
+    static final class Reflective extends PredicateInvoker {
+        Reflective(Method predicate) {
+            super(predicate);
+        }
+
+        @Override
+        public boolean invoke(Object obj) throws Throwable {
+            try {
+                return ((Boolean) predicate.invoke(obj)).booleanValue();
+            } catch (InvocationTargetException ite) {
+                throw ite.getCause();
+            }
+        }
+    }
+}
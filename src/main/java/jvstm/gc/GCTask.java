@@ -27,6 +27,7 @@ package jvstm.gc;
 
 // import java.util.concurrent.Executors;
 // import java.util.concurrent.ExecutorService;
+import java.util.Arrays;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -75,6 +76,8 @@ public class GCTask implements Runnable {
                 cleanersPool.execute(new MultipleCleanTask(this.lastCleanedRecord, rec));
                 this.lastCleanedRecord = rec;
             }
+
+            compactArrayLogs(rec);
         }
     }
 
@@ -90,11 +93,45 @@ public class GCTask implements Runnable {
             new MultipleCleanTask(this.lastCleanedRecord, rec).run();
             this.lastCleanedRecord = rec;
         }
+        compactArrayLogs(rec);
+    }
+
+    /* The logs of VArrays only need to keep the versions that some running transaction may read.
+     * When old transactions keep running while many commits go through, the log nodes between
+     * the versions in use are merged.
+     */
+    private void compactArrayLogs(ActiveTransactionsRecord oldestInUse) {
+        ActiveTransactionsRecord mostRecent = this.mostRecentCommittedAtBegin;
+        if (oldestInUse.transactionNumber >= mostRecent.transactionNumber) {
+            return;
+        }
+        ActiveTransactionsRecord.compactArrayLogs(oldestInUse, mostRecent, findVersionsInUse(mostRecent));
+    }
+
+    private int[] findVersionsInUse(ActiveTransactionsRecord mostRecent) {
+        int[] versions = new int[8];
+        int count = 0;
+        for (TxContext ctx = Transaction.allTxContexts; ctx != null; ctx = ctx.next) {
+            ActiveTransactionsRecord record = ctx.oldestRequiredVersion;
+            if (record != null && record.transactionNumber < mostRecent.transactionNumber) {
+                if (count == versions.length) {
+                    versions = Arrays.copyOf(versions, count * 2);
+                }
+                versions[count++] = record.transactionNumber;
+            }
+        }
+        versions = Arrays.copyOf(versions, count + 1);
+        versions[count] = mostRecent.transactionNumber;
+        Arrays.sort(versions);
+        return versions;
     }
 
     // used to pass state between two calls of findOldestRecordUpTo()
     private TxContext oldestContext = null;
 
+    // the most recent committed record seen by the last call to findOldestRecordInUse()
+    private ActiveTransactionsRecord mostRecentCommittedAtBegin;
+
     private ActiveTransactionsRecord findOldestRecordInUse() {
         // We use this in case there are no thread running, to know until where to clean.  If we
         // only read this after doing the search we might clean more than we should, because a new
@@ -105,6 +142,7 @@ public class GCTask implements Runnable {
              (next != null) && next.isCommitted(); next = next.getNext()) {
              mostRecentCommittedAtBegin = next;
         } // we could use this opportunity to advance Transaction.mostRecentCommittedRecord
+        this.mostRecentCommittedAtBegin = mostRecentCommittedAtBegin;
 
         // First pass.  Here we check all contexts to identify the oldest record in use.
         ActiveTransactionsRecord minRequiredRecord1 = findOldestRecordUpTo(null, Integer.MAX_VALUE);
@@ -140,6 +178,11 @@ public class GCTask implements Runnable {
                 continue;
             }
 
+            // a pooled context whose thread died in the middle of a transaction no longer requires any record
+            if (currentCtx.clearDeadHolder()) {
+                Transaction.reclaimContext(currentCtx);
+            }
+
             // we REALLY need this local variable, because of concurrent updates
             ActiveTransactionsRecord record = currentCtx.oldestRequiredVersion;
             if ((record != null) && (record.transactionNumber < minRequiredVersion)) {
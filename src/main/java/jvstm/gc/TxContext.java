@@ -30,16 +30,24 @@ import java.lang.reflect.Field;
 import java.lang.ref.WeakReference;
 
 import jvstm.ActiveTransactionsRecord;
+import jvstm.VBox;
+import jvstm.util.Cons;
 import static jvstm.UtilUnsafe.UNSAFE;
 
 public class TxContext {
     // --- Setup to use Unsafe
     private static final long nextOffset;
+    private static final long holderOffset;
     static {                      // <clinit>
         Field f = null;
-        try { f = TxContext.class.getDeclaredField("next"); }
+        Field h = null;
+        try {
+            f = TxContext.class.getDeclaredField("next");
+            h = TxContext.class.getDeclaredField("holder");
+        }
         catch (java.lang.NoSuchFieldException e) { throw new RuntimeException(e); }
         nextOffset = UNSAFE.objectFieldOffset(f);
+        holderOffset = UNSAFE.objectFieldOffset(h);
     }
 
     /** The oldest version that may be required by transactions running in this tx context is
@@ -49,15 +57,23 @@ public class TxContext {
      * atomic commitAndBegin operation, in which we need to finish a transaction but not let go of its current
      * transaction record, because we will want to use it later. */
     public boolean inCommitAndBegin = false;
+    /** Read-set arrays to be reused by the transactions running with this context (see ReadWriteTransaction).  Only
+     * accessed by the thread that holds the context. */
+    public Cons<VBox[]> readSetPool = Cons.empty();
+    public int readSetPoolSize = 0;
+    /** The thread that holds this pooled TxContext while it runs a top-level transaction, or null while the context is
+     * free.  If that thread dies without finishing its transaction, the GC reclaims the context (see clearDeadHolder). */
+    public volatile WeakReference<Thread> holder = null;
     /** A ref to the next TxContext */
     protected TxContext next = null;
     /*  The slot 'owner' is used to enable garbage collection of this TxContext when it is no longer necessary.  It
-     * holds a WeakReference to either a Thread or a Transaction.  In the normal case it is a Thread (because we reuse
-     * TxContexts for all transactions that run in the same Thread).  If a running transaction is suspended, we enqueue
-     * a TxContext specifically for that transaction, in which case the owner is the suspended transaction (not an
-     * instance of SuspendedTransaction, but an instance of Transaction!)
+     * holds a WeakReference to either the owner of the pooled TxContexts, which is never collected, or a Transaction.
+     * In the normal case it is the former (because TxContexts are reused by the top-level transactions, see
+     * Transaction.context()).  If a running transaction is suspended, we enqueue a TxContext specifically for that
+     * transaction, in which case the owner is the suspended transaction (not an instance of SuspendedTransaction, but
+     * an instance of Transaction!)
      */
-    /** The owner that needs this TxContext. Either a Thread or a Transaction */
+    /** The owner that needs this TxContext. Either the owner of the pooled TxContexts or a Transaction */
     public final WeakReference owner;
 
     public TxContext(Object owner) {
@@ -79,6 +95,20 @@ public class TxContext {
         }
     }
 
+    /** If the thread holding this TxContext died (or was collected) before releasing it, clears the holder and
+     * returns true.  Only one caller gets true for each dead holder, so the context is reclaimed only once. */
+    public boolean clearDeadHolder() {
+        WeakReference<Thread> holder = this.holder;
+        if (holder == null) {
+            return false;
+        }
+        Thread thread = holder.get();
+        if ((thread != null) && thread.isAlive()) {
+            return false;
+        }
+        return UNSAFE.compareAndSwapObject(this, holderOffset, holder, null);
+    }
+
     public TxContext next(){
         return next;
     } 
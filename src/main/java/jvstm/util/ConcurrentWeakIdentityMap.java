@@ -0,0 +1,129 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent map that compares its keys by identity and holds them weakly: an entry goes
+ * away once its key is garbage collected, as in a WeakHashMap.  It is backed by a
+ * ConcurrentHashMap, so readers never block, and the entries of collected keys are removed
+ * by the writers.
+ *
+ * The values should not refer to their keys, or else the keys are never collected.
+ */
+public class ConcurrentWeakIdentityMap<K, V> {
+
+    private final ConcurrentHashMap<Object, V> map = new ConcurrentHashMap<Object, V>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+    public V get(K key) {
+        return map.get(new LookupKey(key));
+    }
+
+    /* As in ConcurrentMap: returns the value already associated with key, if any, or else associates value with
+     * key and returns null. */
+    public V putIfAbsent(K key, V value) {
+        expungeStaleEntries();
+        return map.putIfAbsent(new WeakKey<K>(key, queue), value);
+    }
+
+    public V remove(K key) {
+        expungeStaleEntries();
+        return map.remove(new LookupKey(key));
+    }
+
+    public int size() {
+        expungeStaleEntries();
+        return map.size();
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends K> ref;
+        while ((ref = queue.poll()) != null) {
+            // a cleared WeakKey is only equal to itself
+            map.remove(ref);
+        }
+    }
+
+    /* The key of the entries stored */
+    private static final class WeakKey<K> extends WeakReference<K> {
+        private final int hash;
+
+        WeakKey(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            this.hash = System.identityHashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            Object key = get();
+            if (key == null) {
+                return false;
+            } else if (other instanceof WeakKey) {
+                return ((WeakKey<?>) other).get() == key;
+            } else if (other instanceof LookupKey) {
+                return ((LookupKey) other).key == key;
+            }
+            return false;
+        }
+    }
+
+    /* A short-lived key, used only to look up the entries */
+    private static final class LookupKey {
+        private final Object key;
+
+        LookupKey(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof WeakKey) {
+                return ((WeakKey<?>) other).get() == key;
+            } else if (other instanceof LookupKey) {
+                return ((LookupKey) other).key == key;
+            }
+            return false;
+        }
+    }
+}
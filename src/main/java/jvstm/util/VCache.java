@@ -0,0 +1,288 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import jvstm.Atomic;
+import jvstm.Transaction;
+
+/**
+ * A bounded transactional cache, for values derived from the contents of VBoxes.  Insertions
+ * and invalidations are transactional, so a value cached by a transaction that read some boxes is
+ * only visible if that transaction commits, and the transaction that changes those boxes may
+ * invalidate it atomically.  Hits, on the other hand, do not write anything transactional: the
+ * recency (for LRU) and frequency (for LFU) of an entry are plain fields, updated outside of the
+ * transaction, so a hit only conflicts with the insertions and invalidations of the same bucket.
+ *
+ * The entries are spread over several segments, each a VHashMap with its share of the capacity.
+ * When an insertion makes a segment exceed its share, it evicts the least recently (or least
+ * frequently) used entry among those of a few consecutive buckets of the segment, starting at a
+ * random one, with at least EVICTION_SAMPLE_SIZE entries.  So, eviction is approximate, as in the
+ * sampled LRU of Redis, but it only reads those buckets.  Whether a segment exceeds its share is
+ * told by an approximate count, which is not transactional either, because the transactional size
+ * of the segment conflicts with every insertion into it.  An attempt that aborts may leave that count
+ * a bit off, so it is replaced by the actual size once in a while (see RESYNC_PERIOD).
+ *
+ * LFU frequencies are halved whenever an entry is sampled by an eviction, so that entries that
+ * were popular long ago do not stay in the cache forever.  That only happens once the eviction
+ * commits: the entry inserted by the evicting transaction carries the entries to age, and the
+ * first transaction that sees that entry committed ages them (see CacheEntry.settle).
+ */
+public class VCache<K,V> {
+
+    public enum Policy { LRU, LFU }
+
+    /* Computes the value of a missing key (see getOrLoad) */
+    public interface Loader<K,V> {
+        V load(K key);
+    }
+
+    // how many entries, at least, are sampled to choose the entry to evict
+    protected static final int EVICTION_SAMPLE_SIZE = 5;
+    // on average, one in this many insertions into a segment reads its actual size
+    protected static final int RESYNC_PERIOD = 64;
+
+    private final Policy policy;
+    private final VHashMap<K,CacheEntry<V>>[] segments;
+    private final AtomicIntegerArray approximateSizes;
+    private final int segmentShift;
+    private final int segmentCapacity;
+
+    public VCache(int capacity) {
+        this(capacity, Policy.LRU);
+    }
+
+    public VCache(int capacity, Policy policy) {
+        this(capacity, policy, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public VCache(int capacity, Policy policy, int numSegments) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int length = 1;
+        int bits = 0;
+        while (length < numSegments && length < capacity) {
+            length <<= 1;
+            bits++;
+        }
+        this.policy = policy;
+        this.segments = new VHashMap[length];
+        this.segmentShift = 32 - bits;
+        this.segmentCapacity = (capacity + length - 1) / length;
+        this.approximateSizes = new AtomicIntegerArray(length);
+        for (int i = 0; i < length; i++) {
+            segments[i] = new VHashMap<K,CacheEntry<V>>(segmentCapacity);
+        }
+    }
+
+    /* Returns the cached value of the key, or null if it is not cached */
+    public V get(K key) {
+        CacheEntry<V> entry = segments[segmentIndex(key)].get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.settle();
+        entry.touch();
+        return entry.value;
+    }
+
+    /* Returns the cached value of the key, loading and caching it, in the current transaction, if it is missing */
+    @Atomic(canFail = false)
+    public V getOrLoad(K key, Loader<? super K, ? extends V> loader) {
+        V value = get(key);
+        if (value == null) {
+            value = loader.load(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Atomic(canFail = false)
+    public V put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int index = segmentIndex(key);
+        VHashMap<K,CacheEntry<V>> segment = segments[index];
+        CacheEntry<V> entry = new CacheEntry<V>(value);
+        CacheEntry<V> old = segment.put(key, entry);
+        if (old != null) {
+            return old.value;
+        }
+
+        int approximateSize = approximateSizes.incrementAndGet(index);
+        if (ThreadLocalRandom.current().nextInt(RESYNC_PERIOD) == 0) {
+            approximateSize = segment.size();
+            approximateSizes.set(index, approximateSize);
+        }
+        if (approximateSize > segmentCapacity && evict(segment, entry)) {
+            approximateSizes.decrementAndGet(index);
+        }
+        return null;
+    }
+
+    @Atomic(canFail = false)
+    public V invalidate(K key) {
+        int index = segmentIndex(key);
+        CacheEntry<V> old = segments[index].remove(key);
+        if (old == null) {
+            return null;
+        }
+        approximateSizes.decrementAndGet(index);
+        return old.value;
+    }
+
+    @Atomic(canFail = false)
+    public void invalidateAll() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].clear();
+            approximateSizes.set(i, 0);
+        }
+    }
+
+    @Atomic(readOnly = true)
+    public int size() {
+        int size = 0;
+        for (VHashMap<K,CacheEntry<V>> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public int capacity() {
+        return segmentCapacity * segments.length;
+    }
+
+    private int segmentIndex(Object key) {
+        if (segmentShift == 32) {
+            return 0;
+        }
+        // the buckets use the low bits of the hash, so the segments use the high bits of another mix of it
+        return (VHashMap.hash(key) * 0x9E3779B9) >>> segmentShift;
+    }
+
+    /* Should only be called from an Atomic context.  Returns false if there was nothing to evict. */
+    private boolean evict(VHashMap<K,CacheEntry<V>> segment, CacheEntry<V> inserted) {
+        List<Map.Entry<K,CacheEntry<V>>> sample = new ArrayList<Map.Entry<K,CacheEntry<V>>>();
+        // the inserted entry may be among them
+        segment.sampleEntries(1, EVICTION_SAMPLE_SIZE + 1, sample);
+
+        Map.Entry<K,CacheEntry<V>> victim = null;
+        for (Map.Entry<K,CacheEntry<V>> candidate : sample) {
+            CacheEntry<V> entry = candidate.getValue();
+            // never evict the entry that is being inserted
+            if (entry != inserted) {
+                entry.settle();
+                if (victim == null || isBetterVictim(entry, victim.getValue())) {
+                    victim = candidate;
+                }
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        segment.remove(victim.getKey());
+
+        if (policy == Policy.LFU) {
+            Cons<CacheEntry<?>> toAge = Cons.empty();
+            for (Map.Entry<K,CacheEntry<V>> candidate : sample) {
+                if (candidate != victim && candidate.getValue() != inserted) {
+                    toAge = toAge.cons(candidate.getValue());
+                }
+            }
+            inserted.toAge = toAge;
+        }
+        return true;
+    }
+
+    private boolean isBetterVictim(CacheEntry<V> entry, CacheEntry<V> other) {
+        if (policy == Policy.LFU && entry.frequency != other.frequency) {
+            return entry.frequency < other.frequency;
+        }
+        return entry.lastAccess < other.lastAccess;
+    }
+
+    /* The value is transactional, as the entry itself is replaced on each put, but the usage fields are not */
+    private static final class CacheEntry<V> {
+
+        private static final AtomicReferenceFieldUpdater<CacheEntry, Cons> TO_AGE =
+            AtomicReferenceFieldUpdater.newUpdater(CacheEntry.class, Cons.class, "toAge");
+
+        final V value;
+        volatile long lastAccess = System.nanoTime();
+        // updated racily: a lost increment only makes the eviction a bit less accurate
+        volatile int frequency = 1;
+        // the number of the transaction that inserted the entry, which only commits with a greater number
+        private final int insertedAt;
+        // the entries that the eviction made by the insertion of this one ages, once it commits (see settle)
+        volatile Cons<CacheEntry<?>> toAge = null;
+
+        CacheEntry(V value) {
+            this.value = value;
+            Transaction tx = Transaction.current();
+            this.insertedAt = (tx == null) ? Integer.MIN_VALUE : tx.getNumber();
+        }
+
+        void touch() {
+            lastAccess = System.nanoTime();
+            int f = frequency;
+            if (f < Integer.MAX_VALUE) {
+                frequency = f + 1;
+            }
+        }
+
+        void age() {
+            frequency = frequency >>> 1;
+        }
+
+        /* A transaction other than the one that inserted this entry only sees it if the insertion committed, and
+         * then the aging that it left pending is applied, only once. */
+        void settle() {
+            Cons<CacheEntry<?>> pending = toAge;
+            if (pending == null) {
+                return;
+            }
+            Transaction tx = Transaction.current();
+            if (tx != null && tx.getNumber() <= insertedAt) {
+                return;
+            }
+            if (TO_AGE.compareAndSet(this, pending, null)) {
+                for (CacheEntry<?> entry : pending) {
+                    entry.age();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.util;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jvstm.Atomic;
+import jvstm.VArray;
+
+/**
+ * Versioned list for concurrent appends.  Elements are kept in a chain of fixed-size chunks,
+ * each a VArray, and an append reserves the next free slot outside of any transaction, before
+ * writing the element into it.  So, concurrent appenders write to different slots, and commit in
+ * parallel: they only conflict with the transactions that read those slots.  The size is a
+ * VStripedCounter, which is updated with commutative adds.  Growing the list links a new chunk
+ * after the last one, and never copies the existing chunks, as VArrayList does.
+ *
+ * The price is that the position of an element is fixed when it is appended, not when its
+ * transaction commits: elements appended by concurrent transactions may appear in another order
+ * than that of their commits.  Slots whose appends aborted, and slots of removed elements, are
+ * left empty and skipped, so indexed access (get, set and remove by index) scans the list.
+ * This list is meant to be mostly appended and iterated.  It does not allow null elements.
+ */
+public class VChunkedList<E> extends AbstractList<E> {
+
+    protected static final int CHUNK_SIZE = 64;
+
+    private final Chunk<E> first = new Chunk<E>(0);
+    // the chunk of the last reserved slot, or one before it
+    private volatile Chunk<E> last = first;
+    private final AtomicLong reserved = new AtomicLong();
+    private final VStripedCounter size = new VStripedCounter();
+
+    public VChunkedList() {
+    }
+
+    public VChunkedList(Collection<? extends E> c) {
+        addAll(c);
+    }
+
+    @Override
+    public int size() {
+        return (int) size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public boolean add(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        long slot = reserved.getAndIncrement();
+        chunkFor(slot).slots.put((int) (slot % CHUNK_SIZE), e);
+        size.inc();
+        return true;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public boolean addAll(Collection<? extends E> c) {
+        int count = c.size();
+        if (count == 0) {
+            return false;
+        }
+
+        // reserve all the slots at once, so that the elements stay together
+        long slot = reserved.getAndAdd(count);
+        Chunk<E> chunk = chunkFor(slot);
+        int added = 0;
+        for (E e : c) {
+            if (e == null) {
+                throw new NullPointerException();
+            }
+            if (added == count) {
+                // the collection grew concurrently
+                break;
+            }
+            while (slot >= chunk.base + CHUNK_SIZE) {
+                chunk = chunk.next();
+            }
+            chunk.slots.put((int) (slot - chunk.base), e);
+            slot++;
+            added++;
+        }
+        size.add(added);
+        return added > 0;
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public E get(int index) {
+        Cursor<E> cursor = find(index);
+        return cursor.chunk.slots.get(cursor.offset);
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public E set(int index, E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        Cursor<E> cursor = find(index);
+        E old = cursor.chunk.slots.get(cursor.offset);
+        cursor.chunk.slots.put(cursor.offset, element);
+        return old;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public E remove(int index) {
+        Cursor<E> cursor = find(index);
+        E old = cursor.chunk.slots.get(cursor.offset);
+        cursor.chunk.slots.put(cursor.offset, null);
+        size.dec();
+        return old;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public void clear() {
+        for (Iterator<E> iter = iterator(); iter.hasNext(); ) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /* Iterates over the slots reserved when it was created, in order, skipping the empty ones.  Each chunk is read as
+     * a single range, when the iteration reaches it.  It must be used within the transaction that created it. */
+    @Override
+    public Iterator<E> iterator() {
+        return new VChunkedListIterator();
+    }
+
+    private Chunk<E> chunkFor(long slot) {
+        Chunk<E> chunk = last;
+        if (chunk.base > slot) {
+            chunk = first;
+        }
+        while (slot >= chunk.base + CHUNK_SIZE) {
+            chunk = chunk.next();
+        }
+        if (chunk.base > last.base) {
+            last = chunk;
+        }
+        return chunk;
+    }
+
+    /* Finds the slot of the element at the given index, scanning the list */
+    private Cursor<E> find(int index) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        VChunkedListIterator iter = new VChunkedListIterator();
+        for (int i = 0; i < index && iter.hasNext(); i++) {
+            iter.next();
+        }
+        if (!iter.hasNext()) {
+            throw new IndexOutOfBoundsException();
+        }
+        iter.next();
+        return new Cursor<E>(iter.lastChunk, iter.lastOffset);
+    }
+
+    private static final class Chunk<E> {
+        final long base;
+        final VArray<E> slots = new VArray<E>(CHUNK_SIZE);
+        // chunks are created when a slot is reserved, outside of transactions, and are never unlinked
+        private final AtomicReference<Chunk<E>> next = new AtomicReference<Chunk<E>>();
+
+        Chunk(long base) {
+            this.base = base;
+        }
+
+        Chunk<E> next() {
+            Chunk<E> chunk = next.get();
+            if (chunk == null) {
+                next.compareAndSet(null, new Chunk<E>(base + CHUNK_SIZE));
+                chunk = next.get();
+            }
+            return chunk;
+        }
+    }
+
+    private static final class Cursor<E> {
+        final Chunk<E> chunk;
+        final int offset;
+
+        Cursor(Chunk<E> chunk, int offset) {
+            this.chunk = chunk;
+            this.offset = offset;
+        }
+    }
+
+    private class VChunkedListIterator implements Iterator<E> {
+        private final long limit = reserved.get();
+        private Chunk<E> chunk = first;
+        private final E[] values = (E[]) new Object[CHUNK_SIZE];
+        private int offset = -1;
+        private E next = null;
+
+        private Chunk<E> lastChunk = null;
+        private int lastOffset = -1;
+
+        VChunkedListIterator() {
+            if (limit > 0) {
+                chunk.slots.getRange(0, CHUNK_SIZE, values);
+            }
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null) {
+                offset++;
+                if (chunk.base + offset >= limit) {
+                    return;
+                }
+                if (offset == CHUNK_SIZE) {
+                    chunk = chunk.next();
+                    chunk.slots.getRange(0, CHUNK_SIZE, values);
+                    offset = 0;
+                }
+                next = values[offset];
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public E next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            E result = next;
+            lastChunk = chunk;
+            lastOffset = offset;
+            advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            if (lastChunk == null) {
+                throw new IllegalStateException();
+            }
+            lastChunk.slots.put(lastOffset, null);
+            size.dec();
+            lastChunk = null;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jvstm.Atomic;
+import jvstm.VArray;
+import jvstm.VBox;
+
+/**
+ * Versioned hash map.  Each bucket is a position of a VArray, holding an immutable list of
+ * entries, so that transactions only conflict when they write to the same bucket, or when one
+ * of them reads a bucket that the other one writes.  The size is a VStripedCounter, which is
+ * updated with commutative adds, and thus only conflicts with the transactions that read it.
+ *
+ * The table doubles when an insertion finds a bucket with more than MAX_BUCKET_LENGTH entries,
+ * and the map holds more than 3/4 as many entries as buckets.
+ * The resize rehashes the whole map within the inserting transaction, so it conflicts with
+ * every concurrent update, but it only happens a logarithmic number of times.
+ */
+public class VHashMap<K,V> extends AbstractMap<K,V> {
+
+    protected static final int DEFAULT_CAPACITY = 16;
+    protected static final int MAX_CAPACITY = 1 << 30;
+    // the length of a bucket that makes an insertion resize the table
+    protected static final int MAX_BUCKET_LENGTH = 8;
+
+    private final VBox<VArray<Cons<Node<K,V>>>> table;
+    private final VStripedCounter size = new VStripedCounter();
+
+    private transient Set<Map.Entry<K,V>> entrySet = null;
+
+    public VHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public VHashMap(int initialCapacity) {
+        int capacity = 1;
+        while (capacity < initialCapacity && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        this.table = new VBox<VArray<Cons<Node<K,V>>>>(new VArray<Cons<Node<K,V>>>(capacity));
+    }
+
+    public VHashMap(Map<? extends K, ? extends V> m) {
+        this(Math.max(DEFAULT_CAPACITY, m.size() * 2));
+        putAll(m);
+    }
+
+    @Override
+    public int size() {
+        return (int) size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public V get(Object key) {
+        Node<K,V> node = getNode(table.get(), key);
+        return (node == null) ? null : node.value;
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public boolean containsKey(Object key) {
+        return getNode(table.get(), key) != null;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public V put(K key, V value) {
+        VArray<Cons<Node<K,V>>> buckets = table.get();
+        int hash = hash(key);
+        int index = hash & (buckets.length - 1);
+        Cons<Node<K,V>> bucket = bucketAt(buckets, index);
+
+        Cons<Node<K,V>> found = find(bucket, hash, key);
+        if (found != null) {
+            V oldValue = found.first().value;
+            if (oldValue != value) {
+                buckets.put(index, bucket.removeCons(found).cons(new Node<K,V>(hash, key, value)));
+            }
+            return oldValue;
+        }
+
+        bucket = bucket.cons(new Node<K,V>(hash, key, value));
+        buckets.put(index, bucket);
+        size.inc();
+
+        if (bucket.size() > MAX_BUCKET_LENGTH && buckets.length < MAX_CAPACITY && isOverloaded(buckets)) {
+            resize(buckets);
+        }
+        return null;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public V remove(Object key) {
+        VArray<Cons<Node<K,V>>> buckets = table.get();
+        int hash = hash(key);
+        int index = hash & (buckets.length - 1);
+        Cons<Node<K,V>> bucket = bucketAt(buckets, index);
+
+        Cons<Node<K,V>> found = find(bucket, hash, key);
+        if (found == null) {
+            return null;
+        }
+
+        buckets.put(index, bucket.removeCons(found));
+        size.dec();
+        return found.first().value;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public void clear() {
+        VArray<Cons<Node<K,V>>> buckets = table.get();
+        int removed = 0;
+        for (Cons<Node<K,V>> bucket : snapshot(buckets)) {
+            if (bucket != null) {
+                removed += bucket.size();
+            }
+        }
+        if (removed > 0) {
+            table.put(new VArray<Cons<Node<K,V>>>(buckets.length));
+            size.add(-removed);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        Set<Map.Entry<K,V>> es = entrySet;
+        if (es == null) {
+            es = new EntrySet();
+            entrySet = es;
+        }
+        return es;
+    }
+
+    /* Adds to the list the entries of numBuckets consecutive buckets, starting at a random one, and of as many more as
+     * needed to find at least minEntries entries, if there are that many.  Only those buckets are read, so that picking a few entries
+     * does not conflict with the updates to the rest of the map (see VCache). */
+    void sampleEntries(int numBuckets, int minEntries, List<Map.Entry<K,V>> into) {
+        VArray<Cons<Node<K,V>>> buckets = table.get();
+        int start = ThreadLocalRandom.current().nextInt(buckets.length);
+        for (int i = 0; i < buckets.length && (i < numBuckets || into.size() < minEntries); i++) {
+            Cons<Node<K,V>> bucket = buckets.get((start + i) & (buckets.length - 1));
+            if (bucket != null) {
+                for (Node<K,V> node : bucket) {
+                    into.add(node);
+                }
+            }
+        }
+    }
+
+    /* Only then is the size read, because reading it conflicts with every concurrent update.  Checking it keeps many
+     * keys with the same hash from doubling the table over and over. */
+    private boolean isOverloaded(VArray<Cons<Node<K,V>>> buckets) {
+        return size() > (buckets.length >> 1) + (buckets.length >> 2);
+    }
+
+    /* Should only be called from an Atomic context */
+    private void resize(VArray<Cons<Node<K,V>>> oldBuckets) {
+        int newLength = oldBuckets.length << 1;
+        VArray<Cons<Node<K,V>>> newBuckets = new VArray<Cons<Node<K,V>>>(newLength);
+
+        // the new array is still private to this transaction, so its positions are filled directly
+        Cons<Node<K,V>>[] newLists = new Cons[newLength];
+        for (Cons<Node<K,V>> bucket : snapshot(oldBuckets)) {
+            if (bucket != null) {
+                for (Node<K,V> node : bucket) {
+                    int index = node.hash & (newLength - 1);
+                    Cons<Node<K,V>> list = newLists[index];
+                    newLists[index] = (list == null) ? Cons.<Node<K,V>>empty().cons(node) : list.cons(node);
+                }
+            }
+        }
+        for (int i = 0; i < newLength; i++) {
+            newBuckets.values.lazySet(i, newLists[i]);
+        }
+
+        table.put(newBuckets);
+    }
+
+    static int hash(Object key) {
+        int h = (key == null) ? 0 : key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static <K,V> Cons<Node<K,V>> bucketAt(VArray<Cons<Node<K,V>>> buckets, int index) {
+        Cons<Node<K,V>> bucket = buckets.get(index);
+        return (bucket == null) ? Cons.<Node<K,V>>empty() : bucket;
+    }
+
+    /* Reads all the buckets as a single range of the array */
+    private static <K,V> Cons<Node<K,V>>[] snapshot(VArray<Cons<Node<K,V>>> buckets) {
+        Cons<Node<K,V>>[] result = new Cons[buckets.length];
+        buckets.getRange(0, buckets.length, result);
+        return result;
+    }
+
+    private static <K,V> Node<K,V> getNode(VArray<Cons<Node<K,V>>> buckets, Object key) {
+        int hash = hash(key);
+        Cons<Node<K,V>> found = find(bucketAt(buckets, hash & (buckets.length - 1)), hash, key);
+        return (found == null) ? null : found.first();
+    }
+
+    /* Returns the cons of the bucket whose node has the key, or null if there is none */
+    private static <K,V> Cons<Node<K,V>> find(Cons<Node<K,V>> bucket, int hash, Object key) {
+        for (Cons<Node<K,V>> cons = bucket; !cons.isEmpty(); cons = cons.rest()) {
+            Node<K,V> node = cons.first();
+            if (node.hash == hash && (node.key == key || (key != null && key.equals(node.key)))) {
+                return cons;
+            }
+        }
+        return null;
+    }
+
+    /* Entries are immutable, and are replaced when their key is put again */
+    private static final class Node<K,V> implements Map.Entry<K,V> {
+        final int hash;
+        final K key;
+        final V value;
+
+        Node(int hash, K key, V value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V newValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            return eq(key, e.getKey()) && eq(value, e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return ((key == null) ? 0 : key.hashCode()) ^ ((value == null) ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private static boolean eq(Object o1, Object o2) {
+        return (o1 == null) ? (o2 == null) : o1.equals(o2);
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return VHashMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            Node<K,V> node = getNode(table.get(), e.getKey());
+            return node != null && node.equals(e);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (contains(o)) {
+                VHashMap.this.remove(((Map.Entry<?,?>) o).getKey());
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void clear() {
+            VHashMap.this.clear();
+        }
+    }
+
+    /* Iterates over the buckets read when the iterator was created */
+    private class EntryIterator implements Iterator<Map.Entry<K,V>> {
+        private final Cons<Node<K,V>>[] buckets = snapshot(table.get());
+        private int nextBucket = 0;
+        private Cons<Node<K,V>> current = Cons.empty();
+        private Node<K,V> last = null;
+
+        @Override
+        public boolean hasNext() {
+            while (current.isEmpty()) {
+                if (nextBucket == buckets.length) {
+                    return false;
+                }
+                Cons<Node<K,V>> bucket = buckets[nextBucket++];
+                if (bucket != null) {
+                    current = bucket;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<K,V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = current.first();
+            current = current.rest();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            VHashMap.this.remove(last.key);
+            last = null;
+        }
+    }
+}
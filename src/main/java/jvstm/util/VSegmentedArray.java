@@ -0,0 +1,164 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.util;
+
+import jvstm.CommitException;
+import jvstm.Transaction;
+import jvstm.TransactionalCommand;
+import jvstm.VArray;
+
+/** Versioned array split into fixed-size segments, each of them a VArray.
+ *
+ * A VArray keeps a single version and log for all of its positions, so after a commit to any of
+ * its positions, the transactions that started earlier have to check the log on every read.
+ * Here, each segment has its own version and log: reads from segments that were not written
+ * since the transaction started take the fast path, and the write-back of a commit only touches
+ * the segments that it wrote.
+ **/
+public class VSegmentedArray<E> {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024;
+
+    public final int length;
+    public final int segmentSize;
+    private final VArray<E>[] segments;
+
+    public VSegmentedArray(int size) {
+        this(size, DEFAULT_SEGMENT_SIZE, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public VSegmentedArray(int size, int segmentSize, boolean keepVersionHints) {
+        if (size < 0) throw new NegativeArraySizeException();
+        if (segmentSize <= 0) throw new IllegalArgumentException("Segments must have at least one position");
+
+        this.length = size;
+        this.segmentSize = segmentSize;
+        int nSegments = (size + segmentSize - 1) / segmentSize;
+        this.segments = new VArray[nSegments];
+        for (int i = 0; i < nSegments; i++) {
+            int segmentLength = Math.min(segmentSize, size - i * segmentSize);
+            segments[i] = new VArray<E>(segmentLength, keepVersionHints);
+        }
+    }
+
+    public E get(int index) {
+        rangeCheck(index);
+        return segments[index / segmentSize].get(index % segmentSize);
+    }
+
+    public void put(int index, E newE) {
+        rangeCheck(index);
+        segments[index / segmentSize].put(index % segmentSize, newE);
+    }
+
+    /**
+     * Reads the positions [from, to) into dest, starting at dest[0], with a single range read
+     * per segment.
+     */
+    public void getRange(final int from, final int to, final E[] dest) {
+        rangeCheck(from, to);
+        if (dest.length < to - from) throw new IndexOutOfBoundsException();
+
+        inTransaction(true, new TransactionalCommand() {
+            public void doIt() {
+                int pos = from;
+                while (pos < to) {
+                    VArray<E> segment = segments[pos / segmentSize];
+                    int segmentFrom = pos % segmentSize;
+                    int segmentTo = Math.min(segment.length, segmentFrom + (to - pos));
+                    E[] buffer = newBuffer(segmentTo - segmentFrom);
+                    segment.getRange(segmentFrom, segmentTo, buffer);
+                    System.arraycopy(buffer, 0, dest, pos - from, buffer.length);
+                    pos += buffer.length;
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes src[0], src[1], ... into the positions [from, to), with a single range write per
+     * segment.
+     */
+    public void putRange(final int from, final int to, final E[] src) {
+        rangeCheck(from, to);
+        if (src.length < to - from) throw new IndexOutOfBoundsException();
+
+        inTransaction(false, new TransactionalCommand() {
+            public void doIt() {
+                int pos = from;
+                while (pos < to) {
+                    VArray<E> segment = segments[pos / segmentSize];
+                    int segmentFrom = pos % segmentSize;
+                    int segmentTo = Math.min(segment.length, segmentFrom + (to - pos));
+                    E[] buffer = newBuffer(segmentTo - segmentFrom);
+                    System.arraycopy(src, pos - from, buffer, 0, buffer.length);
+                    segment.putRange(segmentFrom, segmentTo, buffer);
+                    pos += buffer.length;
+                }
+            }
+        });
+    }
+
+    private void rangeCheck(int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException();
+    }
+
+    private void rangeCheck(int from, int to) {
+        if (from < 0 || to > length || from > to) throw new IndexOutOfBoundsException();
+    }
+
+    @SuppressWarnings("unchecked")
+    private E[] newBuffer(int size) {
+        return (E[]) new Object[size];
+    }
+
+    // Reads and writes that span several segments must use a single transaction (see Transaction.transactionallyDo)
+    @SuppressWarnings("static-access")
+    private static void inTransaction(boolean readOnly, TransactionalCommand command) {
+        if (Transaction.current() != null) {
+            command.doIt();
+            return;
+        }
+
+        while (true) {
+            Transaction tx = Transaction.begin(readOnly);
+            try {
+                command.doIt();
+                tx.commit();
+                tx = null;
+                return;
+            } catch (CommitException ce) {
+                tx.abort();
+                tx = null;
+            } finally {
+                if (tx != null) {
+                    tx.abort();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,663 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jvstm.Atomic;
+import jvstm.VBox;
+import jvstm.VBoxInt;
+
+/**
+ * Versioned sorted map, implemented as a skip list whose links and values are each kept in a
+ * VBox of their own.  So, a transaction only reads the links along the search paths of the keys
+ * that it looks up, and it only writes the links of the neighbours of the keys that it inserts
+ * or removes: updates to distant keys do not conflict (whereas keeping a persistent tree, such as
+ * RedBlackTree, in a single VBox would make every insertion conflict with every other).  Changing
+ * the value of a key that is already in the map only writes the box of its value.  The size is a
+ * VStripedCounter, as in VHashMap.
+ *
+ * Range iterators (see iterator(K, K) and the views returned by subMap, headMap and tailMap) are
+ * lazy: each step reads one link, so a transaction that stops scanning early only depends on the
+ * part of the range that it actually saw.  Iterators must be used within the transaction that
+ * created them.
+ *
+ * Null keys are not allowed.
+ */
+public class VSkipListMap<K,V> extends AbstractMap<K,V> implements SortedMap<K,V> {
+
+    protected static final int MAX_LEVEL = 32;
+
+    private final Comparator<? super K> comparator;
+    private final Node<K,V> head = new Node<K,V>(null, null, MAX_LEVEL);
+    // the number of levels in use, which only grows, except for split and join
+    private final VBoxInt levels = new VBoxInt(1);
+    private final VStripedCounter size = new VStripedCounter();
+
+    private transient Set<Map.Entry<K,V>> entrySet = null;
+
+    public VSkipListMap() {
+        this((Comparator<? super K>) null);
+    }
+
+    public VSkipListMap(Comparator<? super K> comparator) {
+        this.comparator = comparator;
+    }
+
+    public VSkipListMap(Map<? extends K, ? extends V> m) {
+        this((m instanceof SortedMap) ? ((SortedMap<K,? extends V>) m).comparator() : null);
+        putAll(m);
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return comparator;
+    }
+
+    @Override
+    public int size() {
+        return (int) size.get();
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public boolean isEmpty() {
+        return head.next[0].get() == null;
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public V get(Object key) {
+        Node<K,V> node = findNode(key);
+        return (node == null) ? null : node.value.get();
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public boolean containsKey(Object key) {
+        return findNode(key) != null;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public V put(K key, V value) {
+        return put(key, value, newPreds(), false);
+    }
+
+    /* When finger is true, the search starts from the predecessors found by the previous put, which must have been
+     * of a smaller key (see putAll) */
+    private V put(K key, V value, Node<K,V>[] preds, boolean finger) {
+        if (key == null) {
+            throw new NullPointerException();
+        }
+
+        Node<K,V> node = findLast(key, false, preds, finger).next[0].get();
+        if (node != null && compare(key, node.key) == 0) {
+            V oldValue = node.value.get();
+            if (oldValue != value) {
+                node.value.put(value);
+            }
+            return oldValue;
+        }
+
+        int level = randomLevel();
+        int currentLevels = levels.getInt();
+        if (level > currentLevels) {
+            for (int i = currentLevels; i < level; i++) {
+                preds[i] = head;
+            }
+            levels.putInt(level);
+        }
+
+        node = new Node<K,V>(key, value, level);
+        for (int i = 0; i < level; i++) {
+            node.next[i].put(preds[i].next[i].get());
+            preds[i].next[i].put(node);
+        }
+        size.inc();
+        return null;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public V remove(Object key) {
+        if (key == null) {
+            return null;
+        }
+
+        Node<K,V>[] preds = newPreds();
+        Node<K,V> node = findLast(key, false, preds, false).next[0].get();
+        if (node == null || compare(key, node.key) != 0) {
+            return null;
+        }
+
+        for (int i = 0; i < node.next.length; i++) {
+            preds[i].next[i].put(node.next[i].get());
+        }
+        size.dec();
+        return node.value.get();
+    }
+
+    /* A sorted map in the same order is inserted in a single pass, each search starting where the previous one
+     * ended, rather than at the head. */
+    @Override
+    @Atomic(canFail = false)
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if (!(m instanceof SortedMap) || !sameOrder(((SortedMap<?,?>) m).comparator())) {
+            super.putAll(m);
+            return;
+        }
+
+        Node<K,V>[] preds = newPreds();
+        boolean finger = false;
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue(), preds, finger);
+            finger = true;
+        }
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public void clear() {
+        long removed = size.get();
+        for (int i = 0; i < levels.getInt(); i++) {
+            head.next[i].put(null);
+        }
+        levels.putInt(1);
+        size.add(-removed);
+    }
+
+    /**
+     * Removes the keys greater than or equal to the given key from this map, and returns them in a
+     * new map, which takes over their nodes.  Only the links that cross the key are changed, but
+     * the moved entries are still scanned once, to count them.
+     */
+    @Atomic(canFail = false)
+    public VSkipListMap<K,V> split(K key) {
+        VSkipListMap<K,V> result = new VSkipListMap<K,V>(comparator);
+
+        Node<K,V>[] preds = newPreds();
+        findLast(key, false, preds, false);
+        int currentLevels = levels.getInt();
+        for (int i = 0; i < currentLevels; i++) {
+            Node<K,V> next = preds[i].next[i].get();
+            if (next != null) {
+                result.head.next[i].put(next);
+                preds[i].next[i].put(null);
+            }
+        }
+        result.levels.putInt(currentLevels);
+
+        int moved = 0;
+        for (Node<K,V> node = result.head.next[0].get(); node != null; node = node.next[0].get()) {
+            moved++;
+        }
+        size.add(-moved);
+        result.size.add(moved);
+        return result;
+    }
+
+    /**
+     * Moves all the entries of the other map, whose keys must all be greater than the keys of this
+     * one, to the end of this map, leaving the other one empty.
+     */
+    @Atomic(canFail = false)
+    public void join(VSkipListMap<K,V> other) {
+        if (other == this || !sameOrder(other.comparator)) {
+            throw new IllegalArgumentException();
+        }
+        Node<K,V> otherFirst = other.head.next[0].get();
+        if (otherFirst == null) {
+            return;
+        }
+
+        Node<K,V>[] preds = newPreds();
+        Node<K,V> last = findLast(otherFirst.key, false, preds, false);
+        if (last.next[0].get() != null) {
+            throw new IllegalArgumentException("The keys of the joined map must be greater than the keys of this map");
+        }
+
+        int currentLevels = levels.getInt();
+        int otherLevels = other.levels.getInt();
+        for (int i = currentLevels; i < otherLevels; i++) {
+            preds[i] = head;
+        }
+        for (int i = 0; i < otherLevels; i++) {
+            preds[i].next[i].put(other.head.next[i].get());
+            other.head.next[i].put(null);
+        }
+        if (otherLevels > currentLevels) {
+            levels.putInt(otherLevels);
+        }
+        other.levels.putInt(1);
+
+        long moved = other.size.get();
+        other.size.add(-moved);
+        size.add(moved);
+    }
+
+    /**
+     * Iterates, lazily, over the entries whose keys are in [from, to).  A null bound means that
+     * the range is unbounded on that side.
+     */
+    public Iterator<Map.Entry<K,V>> iterator(K from, K to) {
+        return new EntryIterator(from, to);
+    }
+
+    // Navigation, as in java.util.NavigableMap
+
+    @Atomic(readOnly = true)
+    public Map.Entry<K,V> firstEntry() {
+        return entryOf(head.next[0].get());
+    }
+
+    @Atomic(readOnly = true)
+    public Map.Entry<K,V> lastEntry() {
+        return entryOf(findLastNode());
+    }
+
+    @Atomic(readOnly = true)
+    public Map.Entry<K,V> lowerEntry(K key) {
+        return entryOf(findLastOrNull(key, false));
+    }
+
+    @Atomic(readOnly = true)
+    public Map.Entry<K,V> floorEntry(K key) {
+        return entryOf(findLastOrNull(key, true));
+    }
+
+    @Atomic(readOnly = true)
+    public Map.Entry<K,V> ceilingEntry(K key) {
+        return entryOf(findLast(key, false, null, false).next[0].get());
+    }
+
+    @Atomic(readOnly = true)
+    public Map.Entry<K,V> higherEntry(K key) {
+        return entryOf(findLast(key, true, null, false).next[0].get());
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public K firstKey() {
+        return keyOf(head.next[0].get());
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public K lastKey() {
+        return keyOf(findLastNode());
+    }
+
+    @Override
+    public SortedMap<K,V> subMap(K fromKey, K toKey) {
+        if (compare(fromKey, toKey) > 0) {
+            throw new IllegalArgumentException();
+        }
+        return new SubMap(fromKey, toKey);
+    }
+
+    @Override
+    public SortedMap<K,V> headMap(K toKey) {
+        if (toKey == null) {
+            throw new NullPointerException();
+        }
+        return new SubMap(null, toKey);
+    }
+
+    @Override
+    public SortedMap<K,V> tailMap(K fromKey) {
+        if (fromKey == null) {
+            throw new NullPointerException();
+        }
+        return new SubMap(fromKey, null);
+    }
+
+    @Override
+    public Set<Map.Entry<K,V>> entrySet() {
+        Set<Map.Entry<K,V>> es = entrySet;
+        if (es == null) {
+            es = new EntrySet(null, null);
+            entrySet = es;
+        }
+        return es;
+    }
+
+    // Internals
+
+    private int compare(Object k1, K k2) {
+        if (k1 == null) {
+            throw new NullPointerException();
+        }
+        return (comparator != null) ? comparator.compare((K) k1, k2) : ((Comparable<? super K>) k1).compareTo(k2);
+    }
+
+    private boolean sameOrder(Comparator<?> other) {
+        return (comparator == null) ? (other == null) : comparator.equals(other);
+    }
+
+    private Node<K,V>[] newPreds() {
+        return new Node[MAX_LEVEL];
+    }
+
+    private static int randomLevel() {
+        // each level has half the nodes of the level below it
+        int level = Integer.numberOfTrailingZeros(ThreadLocalRandom.current().nextInt()) + 1;
+        return Math.min(level, MAX_LEVEL);
+    }
+
+    /* Returns the last node whose key is smaller than the given key (or equal to it, if inclusive), or the head if
+     * there is none.  If preds is not null, it gets the last such node of each level in use.  When finger is true, the
+     * search of each level starts at preds, rather than at the head. */
+    private Node<K,V> findLast(Object key, boolean inclusive, Node<K,V>[] preds, boolean finger) {
+        int currentLevels = levels.getInt();
+        Node<K,V> x = head;
+        for (int i = currentLevels - 1; i >= 0; i--) {
+            if (finger && preds[i] != null && preds[i] != head && (x == head || compare(preds[i].key, x.key) > 0)) {
+                x = preds[i];
+            }
+            while (true) {
+                Node<K,V> next = x.next[i].get();
+                if (next == null) {
+                    break;
+                }
+                int cmp = compare(key, next.key);
+                if (cmp < 0 || (cmp == 0 && !inclusive)) {
+                    break;
+                }
+                x = next;
+            }
+            if (preds != null) {
+                preds[i] = x;
+            }
+        }
+        return x;
+    }
+
+    private Node<K,V> findLastOrNull(Object key, boolean inclusive) {
+        Node<K,V> node = findLast(key, inclusive, null, false);
+        return (node == head) ? null : node;
+    }
+
+    private Node<K,V> findNode(Object key) {
+        if (key == null) {
+            return null;
+        }
+        Node<K,V> node = findLast(key, false, null, false).next[0].get();
+        return (node != null && compare(key, node.key) == 0) ? node : null;
+    }
+
+    private Node<K,V> findLastNode() {
+        Node<K,V> x = head;
+        for (int i = levels.getInt() - 1; i >= 0; i--) {
+            for (Node<K,V> next = x.next[i].get(); next != null; next = x.next[i].get()) {
+                x = next;
+            }
+        }
+        return (x == head) ? null : x;
+    }
+
+    private static <K,V> Map.Entry<K,V> entryOf(Node<K,V> node) {
+        return (node == null) ? null : new AbstractMap.SimpleImmutableEntry<K,V>(node.key, node.value.get());
+    }
+
+    private static <K> K keyOf(Node<K,?> node) {
+        if (node == null) {
+            throw new NoSuchElementException();
+        }
+        return node.key;
+    }
+
+    private boolean inRange(Object key, K from, K to) {
+        return (from == null || compare(key, from) >= 0) && (to == null || compare(key, to) < 0);
+    }
+
+    private static final class Node<K,V> {
+        final K key;
+        final VBox<V> value;
+        final VBox<Node<K,V>>[] next;
+
+        Node(K key, V value, int level) {
+            this.key = key;
+            this.value = new VBox<V>(value);
+            this.next = new VBox[level];
+            for (int i = 0; i < level; i++) {
+                next[i] = new VBox<Node<K,V>>();
+            }
+        }
+    }
+
+    /* The first node with a key in [from, to), or null */
+    @Atomic(readOnly = true)
+    private Node<K,V> firstNodeIn(K from, K to) {
+        Node<K,V> node = (from == null) ? head.next[0].get() : findLast(from, false, null, false).next[0].get();
+        if (node != null && to != null && compare(node.key, to) >= 0) {
+            return null;
+        }
+        return node;
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<K,V>> {
+        private final K to;
+        private Node<K,V> next;
+        private Node<K,V> last = null;
+
+        EntryIterator(K from, K to) {
+            this.to = to;
+            this.next = firstNodeIn(from, to);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K,V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = next.next[0].get();
+            if (next != null && to != null && compare(next.key, to) >= 0) {
+                next = null;
+            }
+            return entryOf(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            VSkipListMap.this.remove(last.key);
+            last = null;
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>> {
+        private final K from;
+        private final K to;
+
+        EntrySet(K from, K to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Iterator<Map.Entry<K,V>> iterator() {
+            return new EntryIterator(from, to);
+        }
+
+        @Override
+        public int size() {
+            if (from == null && to == null) {
+                return VSkipListMap.this.size();
+            }
+            int count = 0;
+            for (Iterator<Map.Entry<K,V>> iter = iterator(); iter.hasNext(); iter.next()) {
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !iterator().hasNext();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            Object key = e.getKey();
+            if (key == null || !inRange(key, from, to)) {
+                return false;
+            }
+            Node<K,V> node = findNode(key);
+            return node != null && entryOf(node).equals(e);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (contains(o)) {
+                VSkipListMap.this.remove(((Map.Entry<?,?>) o).getKey());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /* The keys in [from, to) of the map, where a null bound means that the view is unbounded on that side */
+    private class SubMap extends AbstractMap<K,V> implements SortedMap<K,V> {
+        private final K from;
+        private final K to;
+        private final Set<Map.Entry<K,V>> entrySet;
+
+        SubMap(K from, K to) {
+            this.from = from;
+            this.to = to;
+            this.entrySet = new EntrySet(from, to);
+        }
+
+        @Override
+        public Set<Map.Entry<K,V>> entrySet() {
+            return entrySet;
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return comparator;
+        }
+
+        @Override
+        public V get(Object key) {
+            return (key != null && inRange(key, from, to)) ? VSkipListMap.this.get(key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key != null && inRange(key, from, to) && VSkipListMap.this.containsKey(key);
+        }
+
+        @Override
+        public V put(K key, V value) {
+            if (!inRange(key, from, to)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+            return VSkipListMap.this.put(key, value);
+        }
+
+        @Override
+        public V remove(Object key) {
+            return (key != null && inRange(key, from, to)) ? VSkipListMap.this.remove(key) : null;
+        }
+
+        @Override
+        @Atomic(readOnly = true)
+        public boolean isEmpty() {
+            return entrySet.isEmpty();
+        }
+
+        @Override
+        @Atomic(readOnly = true)
+        public K firstKey() {
+            Iterator<Map.Entry<K,V>> iter = entrySet.iterator();
+            if (!iter.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return iter.next().getKey();
+        }
+
+        @Override
+        @Atomic(readOnly = true)
+        public K lastKey() {
+            Node<K,V> node = (to == null) ? findLastNode() : findLastOrNull(to, false);
+            if (node == null || (from != null && compare(node.key, from) < 0)) {
+                throw new NoSuchElementException();
+            }
+            return node.key;
+        }
+
+        @Override
+        public SortedMap<K,V> subMap(K fromKey, K toKey) {
+            checkBound(fromKey);
+            checkBound(toKey);
+            if (compare(fromKey, toKey) > 0) {
+                throw new IllegalArgumentException();
+            }
+            return new SubMap(fromKey, toKey);
+        }
+
+        @Override
+        public SortedMap<K,V> headMap(K toKey) {
+            checkBound(toKey);
+            return new SubMap(from, toKey);
+        }
+
+        @Override
+        public SortedMap<K,V> tailMap(K fromKey) {
+            checkBound(fromKey);
+            return new SubMap(fromKey, to);
+        }
+
+        /* The bounds of a view of this view must be within [from, to] */
+        private void checkBound(K key) {
+            if ((from != null && compare(key, from) < 0) || (to != null && compare(key, to) > 0)) {
+                throw new IllegalArgumentException("key out of range");
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.util;
+
+import jvstm.VBoxLong;
+
+/**
+ * A transactional counter meant for heavy concurrent updating, in the spirit of
+ * java.util.concurrent.atomic.LongAdder.  Each update is a commutative add (see
+ * jvstm.CommutativeVBox) to one of several cells, chosen by the updating thread, so that
+ * updates never conflict with each other and the commits of different threads seldom write
+ * back to the same box.  Reading the counter reads all the cells, and thus conflicts with
+ * concurrent updates, as usual (outside of a transaction, each cell is read on its own, as in
+ * LongAdder.sum()).
+ */
+public class VStripedCounter {
+
+    private final VBoxLong[] cells;
+    private final int mask;
+
+    public VStripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public VStripedCounter(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.cells = new VBoxLong[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            cells[i] = new VBoxLong(0);
+        }
+    }
+
+    public void add(long delta) {
+        cells[(int) Thread.currentThread().getId() & mask].add(delta);
+    }
+
+    public void inc() {
+        add(1);
+    }
+
+    public void dec() {
+        add(-1);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (VBoxLong cell : cells) {
+            sum += cell.getLong();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.util;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import jvstm.Atomic;
+import jvstm.VBox;
+
+/**
+ * A transactional queue for many producers and consumers, which, unlike VQueue, does not make
+ * them all conflict with each other.  Elements are kept in several stripes, each a linked list of
+ * nodes whose links are in VBoxes, with a head and a tail box of its own.  Producers append to
+ * the stripe chosen by their thread, as in VStripedCounter, and consumers take from their own
+ * stripe first, and from the others when it is empty.  So, producers only conflict with producers
+ * of the same stripe; consumers only conflict with each other when they take the same element;
+ * and producers only conflict with consumers when the stripe was empty.  The size is a
+ * VStripedCounter, which is updated with commutative adds.
+ *
+ * The price is the order: the elements offered by a thread are taken in the order in which they
+ * were offered, but there is no order among the elements offered by different threads.
+ */
+public class VStripedQueue<E> extends AbstractQueue<E> {
+
+    private final Stripe<E>[] stripes;
+    private final int mask;
+    private final VStripedCounter size;
+
+    public VStripedQueue() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public VStripedQueue(int numStripes) {
+        int length = 1;
+        while (length < numStripes) {
+            length <<= 1;
+        }
+        this.stripes = new Stripe[length];
+        this.mask = length - 1;
+        for (int i = 0; i < length; i++) {
+            stripes[i] = new Stripe<E>();
+        }
+        this.size = new VStripedCounter(length);
+    }
+
+    public VStripedQueue(Collection<? extends E> c) {
+        this();
+        addAll(c);
+    }
+
+    @Override
+    public int size() {
+        return (int) size.get();
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public boolean isEmpty() {
+        for (Stripe<E> stripe : stripes) {
+            if (stripe.head.get().next.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public boolean offer(E o) {
+        if (o == null) {
+            throw new NullPointerException();
+        }
+
+        Stripe<E> stripe = stripes[stripeIndex()];
+        Node<E> node = new Node<E>(o);
+        stripe.tail.get().next.put(node);
+        stripe.tail.put(node);
+        size.inc();
+        return true;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public E poll() {
+        int start = stripeIndex();
+        for (int i = 0; i <= mask; i++) {
+            Stripe<E> stripe = stripes[(start + i) & mask];
+            Node<E> first = stripe.head.get().next.get();
+            if (first != null) {
+                // the first node becomes the new sentinel
+                stripe.head.put(first);
+                size.dec();
+                return first.value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @Atomic(readOnly = true)
+    public E peek() {
+        int start = stripeIndex();
+        for (int i = 0; i <= mask; i++) {
+            Node<E> first = stripes[(start + i) & mask].head.get().next.get();
+            if (first != null) {
+                return first.value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @Atomic(canFail = false)
+    public void clear() {
+        int removed = 0;
+        for (Stripe<E> stripe : stripes) {
+            Node<E> sentinel = stripe.head.get();
+            for (Node<E> node = sentinel.next.get(); node != null; node = node.next.get()) {
+                sentinel = node;
+                removed++;
+            }
+            stripe.head.put(sentinel);
+        }
+        size.add(-removed);
+    }
+
+    /* Iterates over each stripe in turn.  It must be used within the transaction that created it. */
+    @Override
+    public Iterator<E> iterator() {
+        return new VStripedQueueIterator();
+    }
+
+    private int stripeIndex() {
+        return (int) Thread.currentThread().getId() & mask;
+    }
+
+    private static final class Node<E> {
+        final E value;
+        final VBox<Node<E>> next = new VBox<Node<E>>();
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    /* The head always points to a sentinel, whose next is the first element of the stripe */
+    private static final class Stripe<E> {
+        final VBox<Node<E>> head;
+        final VBox<Node<E>> tail;
+
+        Stripe() {
+            Node<E> sentinel = new Node<E>(null);
+            this.head = new VBox<Node<E>>(sentinel);
+            this.tail = new VBox<Node<E>>(sentinel);
+        }
+    }
+
+    private class VStripedQueueIterator implements Iterator<E> {
+        private int stripe = 0;
+        private Node<E> next = stripes[0].head.get().next.get();
+
+        VStripedQueueIterator() {
+            advance();
+        }
+
+        private void advance() {
+            while (next == null && stripe < mask) {
+                stripe++;
+                next = stripes[stripe].head.get().next.get();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public E next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            E result = next.value;
+            next = next.next.get();
+            advance();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
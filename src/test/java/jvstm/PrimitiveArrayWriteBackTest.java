@@ -0,0 +1,92 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * A helper of a VPrimitiveArray commit that only gets to write back after a more recent commit
+ * restored the old value of the position must leave that position alone.
+ */
+public class PrimitiveArrayWriteBackTest {
+
+    private static final int THREADS = 4;
+    private static final int TXS_PER_THREAD = 2000;
+
+    @Test
+    public void testDelayedHelperAfterRestoringCommit() {
+        VIntArray array = new VIntArray(1);
+        array.put(0, 1);
+        PrimitiveArrayLogNode logNode = array.log;
+
+        // the next commit changes the position back to the value that was logged by the previous one
+        array.put(0, 0);
+
+        // a helper of the first commit that stalled before starting its write-back
+        array.writeBack(logNode, new int[] { 0 }, new long[] { 1 }, 0);
+        array.awaitWriteBack(logNode);
+
+        assertEquals(0, array.readRaw(0));
+        assertEquals(0, array.get(0));
+    }
+
+    /* Every commit toggles a flag, so that the flag keeps going back to a value that an older
+     * commit logged, and counts the toggles: the flag must end up matching the count. */
+    @Test
+    public void testConcurrentToggles() throws InterruptedException {
+        final VIntArray array = new VIntArray(2);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < TXS_PER_THREAD; i++) {
+                        Transaction.transactionallyDo(new TransactionalCommand() {
+                            public void doIt() {
+                                array.put(0, 1 - array.get(0));
+                                array.put(1, array.get(1) + 1);
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(THREADS * TXS_PER_THREAD, array.get(1));
+        assertEquals(array.get(1) % 2, array.get(0));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+/**
+ * Compacts the log of a VArray while older transactions are still running: they must keep
+ * reading the values of their own snapshot.  This test forces the GC to run, so it is only run
+ * with the GC task disabled (see the gc-disabled execution of surefire).
+ */
+public class VArrayLogCompactionTest {
+
+    @Test
+    public void testOldSnapshotsAfterLogCompaction() {
+        // GCTask.runGc must not run concurrently with the GC task
+        assumeTrue(Boolean.getBoolean(Transaction.GC_PROP));
+        for (boolean keepVersionHints : new boolean[] { false, true }) {
+            final VArray<Integer> array = new VArray<Integer>(10, keepVersionHints);
+
+            Transaction.begin(true);
+            SuspendedTransaction first = Transaction.suspend();
+            putInNewTransaction(array, 0, 1);
+            Transaction.begin(true);
+            SuspendedTransaction second = Transaction.suspend();
+
+            for (int i = 2; i < 20; i++) {
+                putInNewTransaction(array, i % 3, i);
+            }
+            assertEquals(19, array.logLength());
+            Transaction.gcTask.runGc();
+            // at most a node for each version in use: those of first, second and the most recent commit
+            assertTrue(array.logLength() <= 3);
+
+            Transaction.resume(first);
+            assertNull(array.get(0));
+            assertNull(array.get(1));
+            assertNull(array.get(9));
+            Transaction.commit();
+
+            Transaction.resume(second);
+            assertEquals(Integer.valueOf(1), array.get(0));
+            assertNull(array.get(1));
+            assertNull(array.get(2));
+            Transaction.commit();
+
+            Transaction.begin(true);
+            assertEquals(Integer.valueOf(18), array.get(0));
+            assertEquals(Integer.valueOf(19), array.get(1));
+            assertEquals(Integer.valueOf(17), array.get(2));
+            Transaction.commit();
+        }
+    }
+
+    private static void putInNewTransaction(final VArray<Integer> array, final int index, final int value) {
+        Transaction.transactionallyDo(new TransactionalCommand() {
+            public void doIt() {
+                array.put(index, value);
+            }
+        });
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.commutative;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import jvstm.CommutativeOp;
+import jvstm.CommutativeVBox;
+import jvstm.ParallelTask;
+import jvstm.Transaction;
+import jvstm.VBoxInt;
+import jvstm.VBoxLong;
+import jvstm.util.VStripedCounter;
+
+import org.junit.Test;
+
+public class CommutativeVBoxTest {
+
+    private static final int THREADS = 8;
+    private static final int TXS_PER_THREAD = 2000;
+
+    @Test
+    public void testUpdatesWithinTransaction() {
+        final VBoxInt box = new VBoxInt(10);
+
+        Transaction.begin();
+        box.add(5);
+        box.add(-2);
+        assertEquals(13, box.getInt());
+        box.add(1);
+        box.putInt(100);
+        box.add(1);
+        Transaction.commit();
+        assertEquals(101, box.getInt());
+
+        Transaction.begin();
+        box.max(50);
+        box.max(200);
+        box.max(150);
+        Transaction.commit();
+        assertEquals(200, box.getInt());
+
+        Transaction.begin();
+        box.min(20);
+        box.add(1); // of another kind, so the min is applied first
+        Transaction.commit();
+        assertEquals(21, box.getInt());
+
+        Transaction.begin();
+        box.add(5);
+        Transaction.abort();
+        assertEquals(21, box.getInt());
+    }
+
+    @Test
+    public void testUnion() {
+        CommutativeVBox<Set<String>> box = new CommutativeVBox<Set<String>>(new HashSet<String>(Arrays.asList("a")));
+
+        Transaction.begin();
+        box.update(CommutativeOp.union(Arrays.asList("b", "c")));
+        box.update(CommutativeOp.union(Arrays.asList("c", "d")));
+        Transaction.commit();
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c", "d")), box.get());
+    }
+
+    @Test
+    public void testNestedUpdates() {
+        VBoxLong box = new VBoxLong(0);
+
+        Transaction.begin();
+        box.add(1);
+        Transaction.begin();
+        box.add(10);
+        Transaction.abort();
+        Transaction.begin();
+        box.add(100);
+        Transaction.commit();
+        Transaction.commit();
+        assertEquals(101, box.getLong());
+    }
+
+    @Test
+    public void testParallelNestedUpdates() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        final VBoxInt box = new VBoxInt(0);
+
+        Transaction.begin();
+        box.add(1000);
+        List<ParallelTask<Void>> tasks = new ArrayList<ParallelTask<Void>>();
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(new ParallelTask<Void>() {
+                @Override
+                public Void execute() throws Throwable {
+                    for (int n = 0; n < 10; n++) {
+                        box.inc();
+                    }
+                    return null;
+                }
+            });
+        }
+        Transaction.current().manageNestedParallelTxs(tasks, pool);
+        assertEquals(1000 + THREADS * 10, box.getInt());
+        Transaction.commit();
+        pool.shutdown();
+
+        assertEquals(1000 + THREADS * 10, box.getInt());
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws InterruptedException {
+        final VBoxInt box = new VBoxInt(0);
+        final VStripedCounter counter = new VStripedCounter();
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < TXS_PER_THREAD; n++) {
+                        Transaction.begin();
+                        box.inc();
+                        counter.inc();
+                        Transaction.commit();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(THREADS * TXS_PER_THREAD, box.getInt());
+        Transaction.begin(true);
+        assertEquals(THREADS * TXS_PER_THREAD, counter.get());
+        Transaction.commit();
+    }
+}
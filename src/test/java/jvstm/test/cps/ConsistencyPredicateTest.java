@@ -0,0 +1,194 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.cps;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import jvstm.DefaultTransactionFactory;
+import jvstm.Transaction;
+import jvstm.VBox;
+import jvstm.VBoxInt;
+import jvstm.cps.ConsistencyException;
+import jvstm.cps.ConsistencyPredicate;
+import jvstm.cps.ConsistencyPredicateSystem;
+import jvstm.cps.PredicateInvoker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConsistencyPredicateTest {
+
+    public static class Account {
+        private final VBox<Integer> balance = new VBox<Integer>(0);
+
+        public Account() {
+            ConsistencyPredicateSystem.registerNewObject(this);
+        }
+
+        public void setBalance(int value) {
+            balance.put(value);
+        }
+
+        @ConsistencyPredicate
+        public boolean checkBalance() {
+            return balance.get() >= 0;
+        }
+
+        @ConsistencyPredicate
+        private Boolean checkLimit() {
+            return balance.get() <= 1000;
+        }
+    }
+
+    public static class Counter {
+        private final VBoxInt count = new VBoxInt(0);
+
+        public Counter() {
+            ConsistencyPredicateSystem.registerNewObject(this);
+        }
+
+        @ConsistencyPredicate
+        public boolean checkCount() {
+            return count.getInt() < 3;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        ConsistencyPredicateSystem.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        Transaction.setTransactionFactory(new DefaultTransactionFactory());
+        ConsistencyPredicateSystem.setParallelChecksThreshold(parallelChecksThreshold);
+    }
+
+    private final int parallelChecksThreshold = ConsistencyPredicateSystem.getParallelChecksThreshold();
+
+    @Test
+    public void testInvokers() throws Throwable {
+        Transaction.begin();
+        Account account = new Account();
+        int generated = 0;
+        for (PredicateInvoker invoker : ConsistencyPredicateSystem.getPredicateInvokersFor(account)) {
+            assertTrue(invoker.invoke(account));
+            if (invoker.getClass().getName().contains("$Generated$")) {
+                generated++;
+            }
+        }
+        Transaction.commit();
+        // only the public predicate can be invoked directly
+        assertEquals(1, generated);
+    }
+
+    @Test
+    public void testPredicatesAreChecked() {
+        Transaction.begin();
+        final Account account = new Account();
+        account.setBalance(10);
+        Transaction.commit();
+
+        for (int value : new int[] { -1, 1001 }) {
+            Transaction.begin();
+            account.setBalance(value);
+            try {
+                Transaction.commit();
+                fail("Committed an inconsistent balance of " + value);
+            } catch (ConsistencyException ce) {
+                Transaction.abort();
+            }
+        }
+
+        Transaction.begin();
+        account.setBalance(500);
+        Transaction.commit();
+        assertTrue(account.checkBalance());
+    }
+
+    @Test
+    public void testPredicatesAreCheckedInParallel() {
+        ConsistencyPredicateSystem.setParallelChecksThreshold(2);
+
+        Account[] accounts = new Account[20];
+        Transaction.begin();
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = new Account();
+            accounts[i].setBalance(i);
+        }
+        Transaction.commit();
+
+        // the dependences recorded by the parallel checks make each account be rechecked
+        for (int i = 0; i < accounts.length; i += 5) {
+            Transaction.begin();
+            for (Account account : accounts) {
+                account.setBalance(100);
+            }
+            accounts[i].setBalance(-1);
+            try {
+                Transaction.commit();
+                fail("Committed an inconsistent balance in account " + i);
+            } catch (ConsistencyException ce) {
+                Transaction.abort();
+            }
+        }
+
+        Transaction.begin();
+        for (Account account : accounts) {
+            account.setBalance(200);
+        }
+        Transaction.commit();
+        for (Account account : accounts) {
+            assertEquals(200, (int) account.balance.get());
+        }
+    }
+
+    @Test
+    public void testCommutativeUpdatesAreChecked() {
+        Transaction.begin();
+        Counter counter = new Counter();
+        Transaction.commit();
+
+        for (int i = 1; i < 3; i++) {
+            Transaction.begin();
+            counter.count.inc();
+            Transaction.commit();
+        }
+
+        Transaction.begin();
+        counter.count.inc();
+        try {
+            Transaction.commit();
+            fail("Committed an inconsistent count");
+        } catch (ConsistencyException ce) {
+            Transaction.abort();
+        }
+        assertEquals(2, counter.count.getInt());
+    }
+}
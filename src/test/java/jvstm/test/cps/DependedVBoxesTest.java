@@ -0,0 +1,99 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.cps;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import jvstm.VBox;
+import jvstm.cps.Depended;
+import jvstm.cps.DependedVBoxes;
+import jvstm.util.ConcurrentWeakIdentityMap;
+
+import org.junit.Test;
+
+public class DependedVBoxesTest {
+
+    private static final int THREADS = 8;
+    private static final int BOXES = 1000;
+
+    @Test
+    public void testConcurrentCreation() throws InterruptedException {
+        final VBox<?>[] boxes = new VBox<?>[BOXES];
+        for (int i = 0; i < BOXES; i++) {
+            boxes[i] = new VBox<Integer>(i);
+        }
+        final AtomicReferenceArray<Depended> seen = new AtomicReferenceArray<Depended>(BOXES);
+        final AtomicReferenceArray<String> errors = new AtomicReferenceArray<String>(THREADS);
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < BOXES; i++) {
+                        Depended dep = DependedVBoxes.getDependedForBox(boxes[i]);
+                        if (!seen.compareAndSet(i, null, dep) && seen.get(i) != dep) {
+                            errors.set(id, "two depended for box " + i);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int t = 0; t < THREADS; t++) {
+            assertNull(errors.get(t));
+        }
+        for (int i = 0; i < BOXES; i++) {
+            assertSame(seen.get(i), DependedVBoxes.getDependedForBoxIfExists(boxes[i]));
+        }
+        assertNull(DependedVBoxes.getDependedForBoxIfExists(new VBox<Integer>(0)));
+    }
+
+    @Test
+    public void testCollectedKeysAreRemoved() throws InterruptedException {
+        ConcurrentWeakIdentityMap<Object, String> map = new ConcurrentWeakIdentityMap<Object, String>();
+        Object kept = new Object();
+        map.putIfAbsent(kept, "kept");
+        map.putIfAbsent(new Object(), "collected");
+        assertEquals("kept", map.putIfAbsent(kept, "again"));
+
+        for (int i = 0; i < 50 && map.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, map.size());
+        assertEquals("kept", map.get(kept));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.gc;
+
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import jvstm.Transaction;
+import jvstm.VBox;
+import jvstm.gc.TxContext;
+
+import org.junit.Test;
+
+/**
+ * Runs transactions in many short-lived threads, one at a time: because the TxContexts are
+ * recycled when the transactions finish, the list scanned by the GC must not grow with the
+ * number of threads.  The context of a thread that dies in the middle of a transaction must be
+ * reclaimed by the GC.
+ */
+public class TxContextPoolTest {
+
+    private static final int THREADS = 200;
+
+    @Test
+    public void testContextsAreReusedAcrossThreads() throws InterruptedException {
+        final VBox<Integer> box = new VBox<Integer>(0);
+        int before = countContexts();
+
+        for (int i = 0; i < THREADS; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    Transaction.begin();
+                    box.put(box.get() + 1);
+                    Transaction.commit();
+                    Transaction.begin(true);
+                    box.get();
+                    Transaction.commit();
+                }
+            };
+            t.start();
+            t.join();
+        }
+
+        int after = countContexts();
+        assertTrue("TxContexts grew from " + before + " to " + after, after - before <= 1);
+    }
+
+    @Test
+    public void testContextOfDeadThreadIsReclaimed() throws InterruptedException {
+        // waits for the asynchronous GC task
+        assumeTrue(!Boolean.getBoolean("jvstm.gc.disabled"));
+        final TxContext[] held = new TxContext[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                // begins a transaction and never finishes it
+                Transaction.begin(true);
+                held[0] = Transaction.context();
+            }
+        };
+        t.start();
+        t.join();
+
+        for (int i = 0; (i < 100) && (held[0].oldestRequiredVersion != null); i++) {
+            Thread.sleep(100);
+        }
+        assertNull(held[0].oldestRequiredVersion);
+    }
+
+    private static int countContexts() {
+        int count = 0;
+        for (TxContext ctx = Transaction.allTxContexts.next(); ctx != null; ctx = ctx.next()) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.parnest;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import jvstm.ParallelTask;
+import jvstm.Transaction;
+import jvstm.VBox;
+
+import org.junit.Test;
+
+/**
+ * Runs a tree of parallel nested transactions that is much deeper and wider than the number of
+ * threads of the pool: with a fixed thread pool every thread would block waiting for its
+ * children, but the workers of a ForkJoinPool help running them instead.
+ */
+public class ForkJoinNestingTest extends ParallelNestingTestBase {
+
+    private static final int FAN_OUT = 3;
+    private static final int DEPTH = 4;
+    private static final int SIBLINGS = 32;
+
+    public ForkJoinNestingTest() {
+        super(2);
+    }
+
+    @Test
+    public void testDeepNestingOnSmallPool() {
+        int leaves = (int) Math.pow(FAN_OUT, DEPTH);
+        VBox<Integer>[] boxes = newBoxes(leaves);
+
+        Transaction.begin();
+        int sum = 0;
+        for (Integer result : Transaction.current().manageNestedParallelTxs(children(pool, boxes, 0, leaves), pool)) {
+            sum += result;
+        }
+        Transaction.commit();
+
+        assertEquals(leaves, sum);
+        Transaction.begin(true);
+        for (int i = 0; i < leaves; i++) {
+            assertEquals(Integer.valueOf(i), boxes[i].get());
+        }
+        Transaction.commit();
+    }
+
+    /* All the children write to the same box, so most of them fail and are re-executed together; the results must
+     * still be given in the order of the tasks. */
+    @Test
+    public void testConflictingSiblingsAreRescheduled() {
+        final VBox<Integer> counter = new VBox<Integer>(0);
+        Transaction.begin();
+        List<ParallelTask<Integer>> tasks = new ArrayList<ParallelTask<Integer>>();
+        for (int i = 0; i < SIBLINGS; i++) {
+            final int index = i;
+            tasks.add(new ParallelTask<Integer>() {
+                @Override
+                public Integer execute() throws Throwable {
+                    counter.put(counter.get() + 1);
+                    // keeps owning the write for a while, so that the siblings conflict with it
+                    Thread.sleep(5);
+                    return index;
+                }
+            });
+        }
+
+        List<Integer> results = Transaction.current().manageNestedParallelTxs(tasks, pool);
+        Transaction.commit();
+
+        for (int i = 0; i < SIBLINGS; i++) {
+            assertEquals(Integer.valueOf(i), results.get(i));
+        }
+        Transaction.begin(true);
+        assertEquals(Integer.valueOf(SIBLINGS), counter.get());
+        Transaction.commit();
+    }
+
+    private static List<ParallelTask<Integer>> children(final ForkJoinPool pool, final VBox<Integer>[] boxes, int from, int to) {
+        List<ParallelTask<Integer>> tasks = new ArrayList<ParallelTask<Integer>>();
+        final int childSize = (to - from) / FAN_OUT;
+        for (int i = 0; i < FAN_OUT; i++) {
+            final int childFrom = from + i * childSize;
+            tasks.add(new ParallelTask<Integer>() {
+                @Override
+                public Integer execute() throws Throwable {
+                    if (childSize == 1) {
+                        boxes[childFrom].put(childFrom);
+                        return 1;
+                    }
+                    int sum = 0;
+                    for (Integer result : Transaction.current().manageNestedParallelTxs(
+                            children(pool, boxes, childFrom, childFrom + childSize), pool)) {
+                        sum += result;
+                    }
+                    return sum;
+                }
+            });
+        }
+        return tasks;
+    }
+}
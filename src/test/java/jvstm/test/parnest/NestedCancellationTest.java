@@ -0,0 +1,103 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.parnest;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import jvstm.ParallelTask;
+import jvstm.Transaction;
+import jvstm.VBox;
+
+import org.junit.Test;
+
+/**
+ * One of the children fails right away, while its siblings would keep reading a box for a long
+ * time: they must be cancelled at their next read, so that the failure reaches the parent
+ * promptly.
+ */
+public class NestedCancellationTest {
+
+    private static final int SIBLINGS = 8;
+    private static final long SIBLING_RUNNING_TIME = 10000;
+
+    @Test
+    public void testForkJoinPool() {
+        ForkJoinPool pool = new ForkJoinPool(SIBLINGS);
+        checkSiblingsAreCancelled(pool);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testFixedThreadPool() {
+        ExecutorService pool = Executors.newFixedThreadPool(SIBLINGS);
+        checkSiblingsAreCancelled(pool);
+        pool.shutdown();
+    }
+
+    private void checkSiblingsAreCancelled(ExecutorService pool) {
+        final VBox<Integer> box = new VBox<Integer>(0);
+        long start = System.currentTimeMillis();
+        Transaction.begin();
+        // the tasks must be created within their parent
+        List<ParallelTask<Integer>> tasks = new ArrayList<ParallelTask<Integer>>();
+        for (int i = 0; i < SIBLINGS; i++) {
+            final boolean fails = (i == SIBLINGS / 2);
+            tasks.add(new ParallelTask<Integer>() {
+                @Override
+                public Integer execute() throws Throwable {
+                    if (fails) {
+                        throw new IllegalStateException("failed child");
+                    }
+                    long deadline = System.currentTimeMillis() + SIBLING_RUNNING_TIME;
+                    int sum = 0;
+                    while (System.currentTimeMillis() < deadline) {
+                        sum += box.get();
+                    }
+                    return sum;
+                }
+            });
+        }
+
+        try {
+            Transaction.current().manageNestedParallelTxs(tasks, pool);
+            fail("the failure of the child was not propagated");
+        } catch (IllegalStateException e) {
+            assertEquals("failed child", e.getMessage());
+        } finally {
+            Transaction.abort();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("siblings were not cancelled (took " + elapsed + "ms)", elapsed < SIBLING_RUNNING_TIME / 2);
+    }
+}
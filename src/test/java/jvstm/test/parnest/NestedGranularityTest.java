@@ -0,0 +1,123 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.parnest;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import jvstm.ParallelTask;
+import jvstm.Transaction;
+import jvstm.VBox;
+
+import org.junit.Test;
+
+/**
+ * Fine-grained children (see TransactionalTask.getMinBatch): few of them run inline, in the
+ * parent, whereas many of them are chunked into fewer parallel nested transactions.
+ */
+public class NestedGranularityTest extends ParallelNestingTestBase {
+
+    private static final int MIN_BATCH = 4;
+
+    public NestedGranularityTest() {
+        super(2);
+    }
+
+    @Test
+    public void testFewChildrenRunInline() {
+        Transaction.begin();
+        Transaction parent = Transaction.current();
+        Set<Transaction> seen = newIdentitySet();
+        List<Integer> results = parent.manageNestedParallelTxs(newTasks(MIN_BATCH, newBoxes(MIN_BATCH), seen));
+        Transaction.commit();
+
+        assertEquals(1, seen.size());
+        assertTrue(seen.contains(parent));
+        assertResults(results, MIN_BATCH);
+    }
+
+    @Test
+    public void testManyChildrenAreChunked() {
+        int children = 64;
+        VBox<Integer>[] boxes = newBoxes(children);
+        Set<Transaction> seen = newIdentitySet();
+
+        Transaction.begin();
+        Transaction parent = Transaction.current();
+        List<Integer> results = parent.manageNestedParallelTxs(newTasks(children, boxes, seen), pool);
+        Transaction.commit();
+
+        // with 2 workers, there are at most 8 chunks of 8 children each
+        assertTrue(seen.size() <= children / 8);
+        assertTrue(!seen.contains(parent));
+        assertResults(results, children);
+
+        Transaction.begin(true);
+        for (int i = 0; i < children; i++) {
+            assertEquals(Integer.valueOf(i), boxes[i].get());
+        }
+        Transaction.commit();
+    }
+
+    private static List<ParallelTask<Integer>> newTasks(int n, VBox<Integer>[] boxes, final Set<Transaction> seen) {
+        List<ParallelTask<Integer>> tasks = new ArrayList<ParallelTask<Integer>>();
+        for (int i = 0; i < n; i++) {
+            final VBox<Integer> box = boxes[i];
+            final int value = i;
+            tasks.add(new ParallelTask<Integer>() {
+                @Override
+                public Integer execute() throws Throwable {
+                    seen.add(Transaction.current());
+                    box.put(value);
+                    return value;
+                }
+
+                @Override
+                protected int getMinBatch() {
+                    return MIN_BATCH;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    private static void assertResults(List<Integer> results, int n) {
+        assertEquals(n, results.size());
+        for (int i = 0; i < n; i++) {
+            assertEquals(Integer.valueOf(i), results.get(i));
+        }
+    }
+
+    private static Set<Transaction> newIdentitySet() {
+        return Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Transaction, Boolean>()));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.parnest;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jvstm.ParallelTask;
+import jvstm.Transaction;
+import jvstm.VBox;
+
+import org.junit.Test;
+
+/**
+ * Transactions nested in a parallel nested transaction: an aborted one leaves its parent
+ * untouched, and a committed one is seen by its parent and, eventually, at top level.
+ */
+public class NestingInParallelTest extends ParallelNestingTestBase {
+
+    private static final int CHILDREN = 8;
+
+    @Test
+    public void testPartialRollback() {
+        final VBox<Integer>[] boxes = newBoxes(CHILDREN);
+
+        Transaction.begin();
+        List<ParallelTask<Integer>> tasks = new ArrayList<ParallelTask<Integer>>();
+        for (int i = 0; i < CHILDREN; i++) {
+            final VBox<Integer> box = boxes[i];
+            tasks.add(new ParallelTask<Integer>() {
+                @Override
+                public Integer execute() throws Throwable {
+                    box.put(1);
+
+                    Transaction.begin();
+                    box.put(100);
+                    Transaction.abort();
+                    assertEquals(Integer.valueOf(1), box.get());
+
+                    Transaction.begin();
+                    box.put(box.get() + 1);
+                    Transaction.commit();
+                    return box.get();
+                }
+            });
+        }
+        for (Integer result : Transaction.current().manageNestedParallelTxs(tasks, pool)) {
+            assertEquals(Integer.valueOf(2), result);
+        }
+        Transaction.commit();
+
+        Transaction.begin(true);
+        for (VBox<Integer> box : boxes) {
+            assertEquals(Integer.valueOf(2), box.get());
+        }
+        Transaction.commit();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.parnest;
+
+import java.util.concurrent.ForkJoinPool;
+
+import jvstm.Transaction;
+import jvstm.VBox;
+
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Fixture of the parallel nesting tests: each test gets its own pool, which is shut down even
+ * when the test fails, along with any transaction that the failure left open in this thread.
+ */
+public abstract class ParallelNestingTestBase {
+
+    private final int parallelism;
+    protected ForkJoinPool pool;
+
+    protected ParallelNestingTestBase() {
+        this(4);
+    }
+
+    protected ParallelNestingTestBase(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    @Before
+    public void createPool() {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @After
+    public void shutdownPool() {
+        while (Transaction.current() != null) {
+            Transaction.abort();
+        }
+        pool.shutdown();
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static VBox<Integer>[] newBoxes(int n) {
+        VBox<Integer>[] boxes = new VBox[n];
+        for (int i = 0; i < n; i++) {
+            boxes[i] = new VBox<Integer>(0);
+        }
+        return boxes;
+    }
+}
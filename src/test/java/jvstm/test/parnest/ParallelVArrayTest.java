@@ -0,0 +1,134 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.parnest;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jvstm.ParallelTask;
+import jvstm.Transaction;
+import jvstm.VArray;
+import jvstm.VIntArray;
+
+import org.junit.Test;
+
+/**
+ * VArray (and VPrimitiveArray) writes of parallel nested transactions: each child sees what its
+ * ancestors wrote before it started, and the parent sees every child's writes once they have all
+ * committed.
+ */
+public class ParallelVArrayTest extends ParallelNestingTestBase {
+
+    private static final int CHILDREN = 8;
+    private static final int PER_CHILD = 16;
+
+    @Test
+    public void testChildrenWritesReachParent() {
+        final VArray<Integer> array = new VArray<Integer>(CHILDREN * PER_CHILD);
+
+        Transaction.begin();
+        for (int i = 0; i < CHILDREN * PER_CHILD; i++) {
+            array.put(i, -i);
+        }
+        for (int round = 1; round <= 2; round++) {
+            final int delta = round * 1000;
+            List<ParallelTask<Integer>> tasks = new ArrayList<ParallelTask<Integer>>();
+            for (int c = 0; c < CHILDREN; c++) {
+                final int first = c * PER_CHILD;
+                tasks.add(new ParallelTask<Integer>() {
+                    @Override
+                    public Integer execute() throws Throwable {
+                        int sum = 0;
+                        for (int i = first; i < first + PER_CHILD; i++) {
+                            array.put(i, array.get(i) + delta);
+                            sum += array.get(i);
+                        }
+                        return sum;
+                    }
+                });
+            }
+            List<Integer> sums = Transaction.current().manageNestedParallelTxs(tasks, pool);
+            int base = round == 1 ? 1000 : 3000;
+            for (int c = 0; c < CHILDREN; c++) {
+                int expected = 0;
+                for (int i = c * PER_CHILD; i < (c + 1) * PER_CHILD; i++) {
+                    expected += base - i;
+                }
+                assertEquals(Integer.valueOf(expected), sums.get(c));
+            }
+            for (int i = 0; i < CHILDREN * PER_CHILD; i++) {
+                assertEquals(Integer.valueOf(base - i), array.get(i));
+            }
+        }
+        Transaction.commit();
+
+        Transaction.begin(true);
+        for (int i = 0; i < CHILDREN * PER_CHILD; i++) {
+            assertEquals(Integer.valueOf(3000 - i), array.get(i));
+        }
+        Transaction.commit();
+    }
+
+    @Test
+    public void testPrimitiveArrayWritesOfChildren() {
+        final VIntArray array = new VIntArray(CHILDREN * PER_CHILD + 1);
+
+        Transaction.begin();
+        for (int i = 0; i < CHILDREN * PER_CHILD; i++) {
+            array.put(i, -i);
+        }
+        List<ParallelTask<Void>> tasks = new ArrayList<ParallelTask<Void>>();
+        for (int c = 0; c < CHILDREN; c++) {
+            final int first = c * PER_CHILD;
+            tasks.add(new ParallelTask<Void>() {
+                @Override
+                public Void execute() throws Throwable {
+                    for (int i = first; i < first + PER_CHILD; i++) {
+                        array.put(i, array.get(i) + 1000);
+                    }
+                    // every child updates the last position, so they must not lose each other's updates
+                    array.put(CHILDREN * PER_CHILD, array.get(CHILDREN * PER_CHILD) + 1);
+                    return null;
+                }
+            });
+        }
+        Transaction.current().manageNestedParallelTxs(tasks, pool);
+        for (int i = 0; i < CHILDREN * PER_CHILD; i++) {
+            assertEquals(1000 - i, array.get(i));
+        }
+        assertEquals(CHILDREN, array.get(CHILDREN * PER_CHILD));
+        Transaction.commit();
+
+        Transaction.begin(true);
+        for (int i = 0; i < CHILDREN * PER_CHILD; i++) {
+            assertEquals(1000 - i, array.get(i));
+        }
+        assertEquals(CHILDREN, array.get(CHILDREN * PER_CHILD));
+        Transaction.commit();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.parnest;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jvstm.ParallelTask;
+import jvstm.PerTxBox;
+import jvstm.Transaction;
+import jvstm.VBox;
+
+import org.junit.Test;
+
+/**
+ * Parallel nested transactions increment a counter kept in a PerTxBox, which is committed to a
+ * VBox only by the top-level transaction.
+ */
+public class PerTxBoxNestingTest extends ParallelNestingTestBase {
+
+    private static final int CHILDREN = 16;
+    private static final int INCREMENTS = 50;
+
+    @Test
+    public void testMergedCounter() {
+        final VBox<Integer> total = new VBox<Integer>(0);
+        checkCounter(total, new PerTxBox<Integer>(0) {
+            @Override
+            public void commit(Integer value) {
+                total.put(total.get() + value);
+            }
+
+            @Override
+            public Integer mergeNested(Integer base, Integer parentValue, Integer childValue) {
+                return parentValue + childValue - base;
+            }
+        });
+    }
+
+    /* Without mergeNested, the children that find the counter changed by a sibling restart */
+    @Test
+    public void testConflictingCounter() {
+        final VBox<Integer> total = new VBox<Integer>(0);
+        checkCounter(total, new PerTxBox<Integer>(0) {
+            @Override
+            public void commit(Integer value) {
+                total.put(total.get() + value);
+            }
+        });
+    }
+
+    private void checkCounter(VBox<Integer> total, final PerTxBox<Integer> counter) {
+        Transaction.begin();
+        counter.put(CHILDREN);
+        List<ParallelTask<Void>> tasks = new ArrayList<ParallelTask<Void>>();
+        for (int i = 0; i < CHILDREN; i++) {
+            tasks.add(new ParallelTask<Void>() {
+                @Override
+                public Void execute() throws Throwable {
+                    for (int j = 0; j < INCREMENTS; j++) {
+                        counter.put(counter.get() + 1);
+                    }
+                    return null;
+                }
+            });
+        }
+        Transaction.current().manageNestedParallelTxs(tasks, pool);
+        assertEquals(Integer.valueOf(CHILDREN * (INCREMENTS + 1)), counter.get());
+        Transaction.commit();
+
+        Transaction.begin(true);
+        assertEquals(Integer.valueOf(CHILDREN * (INCREMENTS + 1)), total.get());
+        Transaction.commit();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.parnest;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import jvstm.Transaction;
+import jvstm.UnsafeParallelTask;
+import jvstm.VBox;
+
+import org.junit.Test;
+
+/**
+ * Writes of unsafe parallel transactions that cannot be made in place, because another
+ * transaction holds the boxes: they must reach the parent and, through it, the top level.
+ */
+public class UnsafeParallelWritesTest extends ParallelNestingTestBase {
+
+    private static final int CHILDREN = 8;
+
+    @Test
+    public void testFallbackWritesReachParent() throws InterruptedException {
+        final VBox<Integer>[] boxes = newBoxes(CHILDREN);
+        final CountDownLatch boxesTaken = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // holds the in-place slot of every box until it is released
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                Transaction.begin();
+                for (VBox<Integer> box : boxes) {
+                    box.put(-1);
+                }
+                boxesTaken.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                Transaction.abort();
+            }
+        };
+        holder.start();
+        boxesTaken.await();
+
+        Transaction.begin();
+        for (VBox<Integer> box : boxes) {
+            box.put(1);
+        }
+        List<UnsafeParallelTask<Integer>> tasks = new ArrayList<UnsafeParallelTask<Integer>>();
+        for (int i = 0; i < CHILDREN; i++) {
+            final VBox<Integer> box = boxes[i];
+            final int value = i + 10;
+            tasks.add(new UnsafeParallelTask<Integer>() {
+                @Override
+                public Integer execute() throws Throwable {
+                    int seen = box.get();
+                    box.put(value);
+                    return seen;
+                }
+            });
+        }
+        for (Integer seen : Transaction.current().manageNestedParallelTxs(tasks, pool)) {
+            assertEquals(Integer.valueOf(1), seen);
+        }
+        for (int i = 0; i < CHILDREN; i++) {
+            assertEquals(Integer.valueOf(i + 10), boxes[i].get());
+        }
+        release.countDown();
+        holder.join();
+        Transaction.commit();
+
+        Transaction.begin(true);
+        for (int i = 0; i < CHILDREN; i++) {
+            assertEquals(Integer.valueOf(i + 10), boxes[i].get());
+        }
+        Transaction.commit();
+    }
+}
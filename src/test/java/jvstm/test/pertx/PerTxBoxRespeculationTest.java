@@ -0,0 +1,94 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.pertx;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jvstm.PerTxBox;
+import jvstm.Transaction;
+import jvstm.VBox;
+
+import org.junit.Test;
+
+/**
+ * When the commit of a transaction is overtaken by others, only the PerTxBoxes that read
+ * some box written by them run their commit again.
+ */
+public class PerTxBoxRespeculationTest {
+
+    @Test
+    public void testOnlyStaleCommitsRunAgain() throws InterruptedException {
+        final VBox<Integer> contended = new VBox<Integer>(0);
+        final VBox<Integer> quiet = new VBox<Integer>(0);
+        final VBox<Integer> contendedCopy = new VBox<Integer>(0);
+        final VBox<Integer> quietCopy = new VBox<Integer>(0);
+        final AtomicInteger contendedRuns = new AtomicInteger();
+        final AtomicInteger quietRuns = new AtomicInteger();
+
+        // copies contended, and the first time gets overtaken by a transaction that writes it
+        PerTxBox<Boolean> first = new PerTxBox<Boolean>(false) {
+            @Override
+            public void commit(Boolean value) {
+                contendedCopy.put(contended.get());
+                if (contendedRuns.incrementAndGet() == 1) {
+                    Thread overtaker = new Thread() {
+                        @Override
+                        public void run() {
+                            Transaction.begin();
+                            contended.put(42);
+                            Transaction.commit();
+                        }
+                    };
+                    overtaker.start();
+                    try {
+                        overtaker.join();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        };
+        PerTxBox<Boolean> second = new PerTxBox<Boolean>(false) {
+            @Override
+            public void commit(Boolean value) {
+                quietRuns.incrementAndGet();
+                quietCopy.put(quiet.get() + 1);
+            }
+        };
+
+        Transaction.begin();
+        first.put(true);
+        second.put(true);
+        Transaction.commit();
+
+        assertEquals(2, contendedRuns.get());
+        assertEquals(1, quietRuns.get());
+        assertEquals(Integer.valueOf(42), contendedCopy.get());
+        assertEquals(Integer.valueOf(1), quietCopy.get());
+    }
+}
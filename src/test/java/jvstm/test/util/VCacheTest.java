@@ -0,0 +1,141 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import jvstm.Transaction;
+import jvstm.VBox;
+import jvstm.util.VCache;
+
+import org.junit.Test;
+
+public class VCacheTest {
+
+    @Test
+    public void testSizeIsBounded() {
+        VCache<Integer,String> cache = new VCache<Integer,String>(100, VCache.Policy.LRU, 4);
+
+        for (int i = 0; i < 1000; i++) {
+            Transaction.begin();
+            cache.put(i, "v" + i);
+            Transaction.commit();
+        }
+
+        Transaction.begin();
+        assertTrue(cache.size() <= cache.capacity());
+        assertTrue(cache.size() > cache.capacity() / 2);
+        assertEquals("v999", cache.get(999));
+        Transaction.commit();
+    }
+
+    @Test
+    public void testLoadAndInvalidateWithTheDerivedData() {
+        final VBox<Integer> base = new VBox<Integer>(10);
+        final VCache<String,Integer> cache = new VCache<String,Integer>(10);
+        VCache.Loader<String,Integer> doubler = new VCache.Loader<String,Integer>() {
+            public Integer load(String key) {
+                return base.get() * 2;
+            }
+        };
+
+        // a value cached by an aborted transaction is not visible
+        Transaction.begin();
+        assertEquals(20, (int) cache.getOrLoad("double", doubler));
+        Transaction.abort();
+        Transaction.begin();
+        assertNull(cache.get("double"));
+        Transaction.commit();
+
+        Transaction.begin();
+        assertEquals(20, (int) cache.getOrLoad("double", doubler));
+        Transaction.commit();
+
+        // the transaction that changes the base invalidates what was derived from it
+        Transaction.begin();
+        base.put(21);
+        cache.invalidate("double");
+        Transaction.commit();
+
+        Transaction.begin();
+        assertEquals(42, (int) cache.getOrLoad("double", doubler));
+        Transaction.commit();
+    }
+
+    @Test
+    public void testHitsDoNotConflict() throws Exception {
+        final VCache<Integer,Integer> cache = new VCache<Integer,Integer>(1000);
+        Transaction.begin();
+        cache.put(1, 1);
+        cache.put(2, 2);
+        Transaction.commit();
+
+        // a read-write transaction hits an entry ...
+        Transaction.begin();
+        assertEquals(1, (int) cache.get(1));
+        cache.put(3, 3);
+
+        // ... that another transaction hits as well
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                Transaction.begin();
+                cache.get(1);
+                cache.put(4, 4);
+                Transaction.commit();
+            }
+        };
+        other.start();
+        other.join();
+
+        Transaction.commit();
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testLfuKeepsTheFrequentEntries() {
+        VCache<Integer,Integer> cache = new VCache<Integer,Integer>(16, VCache.Policy.LFU, 1);
+
+        Transaction.begin();
+        cache.put(0, 0);
+        Transaction.commit();
+        for (int i = 1; i < 200; i++) {
+            Transaction.begin();
+            for (int hit = 0; hit < 3; hit++) {
+                cache.get(0);
+            }
+            cache.put(i, i);
+            Transaction.commit();
+        }
+
+        Transaction.begin();
+        assertEquals(0, (int) cache.get(0));
+        assertEquals(16, cache.size());
+        Transaction.commit();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jvstm.Transaction;
+import jvstm.util.VChunkedList;
+
+import org.junit.Test;
+
+public class VChunkedListTest {
+
+    @Test
+    public void testListOperations() {
+        VChunkedList<Integer> list = new VChunkedList<Integer>();
+        List<Integer> expected = new ArrayList<Integer>();
+
+        Transaction.begin();
+        for (int i = 0; i < 500; i++) {
+            list.add(i);
+            expected.add(i);
+        }
+        list.addAll(Arrays.asList(1000, 1001, 1002));
+        expected.addAll(Arrays.asList(1000, 1001, 1002));
+        Transaction.commit();
+
+        // an aborted append leaves an empty slot behind
+        Transaction.begin();
+        list.add(-1);
+        Transaction.abort();
+
+        Transaction.begin();
+        list.add(2000);
+        expected.add(2000);
+        assertEquals(expected, list);
+        assertEquals(Integer.valueOf(100), list.remove(100));
+        expected.remove(100);
+        assertEquals(Integer.valueOf(200), list.set(199, 7));
+        expected.set(199, 7);
+        Transaction.commit();
+
+        Transaction.begin();
+        assertEquals(expected.size(), list.size());
+        assertEquals(expected, list);
+        assertEquals(Integer.valueOf(2000), list.get(list.size() - 1));
+        list.clear();
+        assertTrue(list.isEmpty());
+        Transaction.commit();
+        assertEquals(0, list.size());
+    }
+
+    @Test
+    public void testConcurrentAppendsDoNotConflict() throws Exception {
+        final VChunkedList<Integer> list = new VChunkedList<Integer>();
+
+        Transaction.begin();
+        list.add(1);
+
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                Transaction.begin();
+                list.add(2);
+                list.add(3);
+                Transaction.commit();
+            }
+        };
+        other.start();
+        other.join();
+
+        Transaction.commit();
+
+        Transaction.begin();
+        List<Integer> elems = new ArrayList<Integer>(list);
+        Transaction.commit();
+        Collections.sort(elems);
+        assertEquals(Arrays.asList(1, 2, 3), elems);
+        assertEquals(3, list.size());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import jvstm.Transaction;
+import jvstm.util.VHashMap;
+import jvstm.util.VHashSet;
+
+import org.junit.Test;
+
+public class VHashMapTest {
+
+    private static final int KEYS = 5000;
+
+    @Test
+    public void testMapOperations() {
+        VHashMap<Integer,String> map = new VHashMap<Integer,String>();
+        Map<Integer,String> expected = new HashMap<Integer,String>();
+
+        Transaction.begin();
+        for (int i = 0; i < KEYS; i++) {
+            assertNull(map.put(i, "v" + i));
+            expected.put(i, "v" + i);
+        }
+        assertNull(map.put(null, "null"));
+        expected.put(null, "null");
+        Transaction.commit();
+
+        // the table grew, in the transaction above, and everything is still there
+        Transaction.begin();
+        assertEquals(expected, map);
+        for (int i = 0; i < KEYS; i += 2) {
+            assertEquals("v" + i, map.put(i, "w" + i));
+            expected.put(i, "w" + i);
+        }
+        for (int i = 1; i < KEYS; i += 4) {
+            assertEquals("v" + i, map.remove(i));
+            expected.remove(i);
+        }
+        assertNull(map.remove(KEYS));
+        Transaction.commit();
+
+        Transaction.begin();
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertEquals("null", map.get(null));
+        Iterator<Map.Entry<Integer,String>> iter = map.entrySet().iterator();
+        int removed = 0;
+        while (iter.hasNext()) {
+            Map.Entry<Integer,String> entry = iter.next();
+            if (entry.getKey() != null && entry.getKey() % 3 == 0) {
+                iter.remove();
+                expected.remove(entry.getKey());
+                removed++;
+            }
+        }
+        assertTrue(removed > 0);
+        Transaction.commit();
+
+        Transaction.begin();
+        assertEquals(expected, map);
+        map.clear();
+        assertTrue(map.isEmpty());
+        Transaction.commit();
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testUpdatesOfOtherBucketsDoNotConflict() throws Exception {
+        final VHashMap<Integer,Integer> map = new VHashMap<Integer,Integer>();
+        final VHashSet<Integer> set = new VHashSet<Integer>();
+
+        Transaction.begin();
+        map.put(1, 1);
+        set.add(1);
+        Transaction.commit();
+
+        // this transaction reads key 1, and writes keys 1 and 2 ...
+        Transaction.begin();
+        map.put(1, map.get(1) + 1);
+        map.put(2, 2);
+        set.add(2);
+
+        // ... while another one commits writes to keys 3 and 4
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                Transaction.begin();
+                map.put(3, 3);
+                map.remove(4);
+                set.add(3);
+                Transaction.commit();
+            }
+        };
+        other.start();
+        other.join();
+
+        Transaction.commit();
+
+        assertEquals(3, map.size());
+        assertEquals(2, (int) map.get(1));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(3));
+        assertFalse(set.contains(4));
+    }
+}
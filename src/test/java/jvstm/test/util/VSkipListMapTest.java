@@ -0,0 +1,188 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import jvstm.Transaction;
+import jvstm.util.VSkipListMap;
+
+import org.junit.Test;
+
+public class VSkipListMapTest {
+
+    private static final int OPS = 20000;
+    private static final int KEY_RANGE = 3000;
+
+    @Test
+    public void testAgainstTreeMap() {
+        VSkipListMap<Integer,Integer> map = new VSkipListMap<Integer,Integer>();
+        TreeMap<Integer,Integer> expected = new TreeMap<Integer,Integer>();
+        Random random = new Random(42);
+
+        for (int tx = 0; tx < 20; tx++) {
+            Transaction.begin();
+            for (int i = 0; i < OPS / 20; i++) {
+                int key = random.nextInt(KEY_RANGE);
+                if (random.nextInt(3) == 0) {
+                    assertEquals(expected.remove(key), map.remove(key));
+                } else {
+                    assertEquals(expected.put(key, i), map.put(key, i));
+                }
+            }
+            Transaction.commit();
+        }
+
+        Transaction.begin();
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertEquals(new ArrayList<Integer>(expected.keySet()), new ArrayList<Integer>(map.keySet()));
+        assertEquals(expected.firstKey(), map.firstKey());
+        assertEquals(expected.lastKey(), map.lastKey());
+        for (int key = -1; key <= KEY_RANGE; key += 7) {
+            assertEquals(expected.get(key), map.get(key));
+            assertEquals(expected.ceilingEntry(key), map.ceilingEntry(key));
+            assertEquals(expected.floorEntry(key), map.floorEntry(key));
+            assertEquals(expected.higherEntry(key), map.higherEntry(key));
+            assertEquals(expected.lowerEntry(key), map.lowerEntry(key));
+        }
+        assertEquals(expected.subMap(100, 900), map.subMap(100, 900));
+        assertEquals(expected.subMap(100, 900).lastKey(), map.subMap(100, 900).lastKey());
+        assertEquals(expected.headMap(500), map.headMap(500));
+        assertEquals(expected.tailMap(2500).tailMap(2700), map.tailMap(2500).tailMap(2700));
+        Transaction.commit();
+    }
+
+    @Test
+    public void testLazyRangeIteration() {
+        VSkipListMap<Integer,String> map = new VSkipListMap<Integer,String>();
+        Transaction.begin();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i * 2, "v" + i);
+        }
+        Transaction.commit();
+
+        Transaction.begin();
+        Iterator<Map.Entry<Integer,String>> iter = map.iterator(101, 121);
+        List<Integer> keys = new ArrayList<Integer>();
+        while (iter.hasNext()) {
+            Map.Entry<Integer,String> entry = iter.next();
+            keys.add(entry.getKey());
+            if (entry.getKey() % 4 == 0) {
+                iter.remove();
+            }
+        }
+        Transaction.commit();
+
+        assertEquals(10, keys.size());
+        assertEquals(102, (int) keys.get(0));
+        assertEquals(120, (int) keys.get(9));
+        assertNull(map.get(104));
+        assertEquals("v51", map.get(102));
+        assertEquals(995, map.size());
+    }
+
+    @Test
+    public void testBulkOperations() {
+        TreeMap<Integer,Integer> source = new TreeMap<Integer,Integer>();
+        for (int i = 0; i < 5000; i++) {
+            source.put(i, -i);
+        }
+
+        VSkipListMap<Integer,Integer> map = new VSkipListMap<Integer,Integer>();
+        Transaction.begin();
+        map.putAll(source);
+        Transaction.commit();
+        assertEquals(source, map);
+
+        Transaction.begin();
+        VSkipListMap<Integer,Integer> upper = map.split(3000);
+        Transaction.commit();
+        assertEquals(source.headMap(3000), map);
+        assertEquals(source.tailMap(3000), upper);
+        assertEquals(3000, map.size());
+        assertEquals(2000, upper.size());
+
+        Transaction.begin();
+        map.put(1000000, 0);
+        upper.put(-1, 0);
+        Transaction.commit();
+
+        Transaction.begin();
+        try {
+            map.join(upper);
+            throw new AssertionError("Joined overlapping maps");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+        map.remove(1000000);
+        upper.remove(-1);
+        map.join(upper);
+        Transaction.commit();
+
+        assertEquals(source, map);
+        assertEquals(5000, map.size());
+        assertTrue(upper.isEmpty());
+        assertEquals(0, upper.size());
+    }
+
+    @Test
+    public void testValueUpdatesDoNotConflict() throws Exception {
+        final VSkipListMap<Integer,Integer> map = new VSkipListMap<Integer,Integer>();
+        Transaction.begin();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, 0);
+        }
+        Transaction.commit();
+
+        Transaction.begin();
+        map.put(10, map.get(10) + 1);
+
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                Transaction.begin();
+                map.put(90, map.get(90) + 1);
+                Transaction.commit();
+            }
+        };
+        other.start();
+        other.join();
+
+        Transaction.commit();
+        assertEquals(1, (int) map.get(10));
+        assertEquals(1, (int) map.get(90));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import jvstm.CommitException;
+import jvstm.Transaction;
+import jvstm.util.VStripedQueue;
+
+import org.junit.Test;
+
+public class VStripedQueueTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int ELEMS_PER_PRODUCER = 2000;
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final VStripedQueue<Integer> queue = new VStripedQueue<Integer>(4);
+        final List<List<Integer>> taken = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int base = p * ELEMS_PER_PRODUCER;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < ELEMS_PER_PRODUCER; i++) {
+                        offer(queue, base + i);
+                    }
+                }
+            });
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    List<Integer> mine = new ArrayList<Integer>();
+                    for (int i = 0; i < ELEMS_PER_PRODUCER; i++) {
+                        Integer elem = poll(queue);
+                        if (elem != null) {
+                            mine.add(elem);
+                        }
+                    }
+                    taken.add(mine);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<Integer> rest = new ArrayList<Integer>();
+        Transaction.begin();
+        assertEquals(PRODUCERS * ELEMS_PER_PRODUCER, queue.size() + count(taken));
+        for (Integer elem = queue.poll(); elem != null; elem = queue.poll()) {
+            rest.add(elem);
+        }
+        assertTrue(queue.isEmpty());
+        Transaction.commit();
+        taken.add(rest);
+
+        // every element was taken once, and the elements of each producer were taken in order by each consumer
+        List<Integer> all = new ArrayList<Integer>();
+        for (List<Integer> elems : taken) {
+            int[] last = new int[PRODUCERS];
+            for (int i = 0; i < PRODUCERS; i++) {
+                last[i] = -1;
+            }
+            for (int elem : elems) {
+                int producer = elem / ELEMS_PER_PRODUCER;
+                assertTrue(elem > last[producer]);
+                last[producer] = elem;
+            }
+            all.addAll(elems);
+        }
+        Collections.sort(all);
+        assertEquals(PRODUCERS * ELEMS_PER_PRODUCER, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i, (int) all.get(i));
+        }
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testProducersOfOtherStripesDoNotConflict() throws Exception {
+        final VStripedQueue<Integer> queue = new VStripedQueue<Integer>(64);
+
+        Transaction.begin();
+        queue.offer(1);
+
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                Transaction.begin();
+                queue.offer(2);
+                Transaction.commit();
+            }
+        };
+        other.start();
+        other.join();
+
+        // the size is a commutative counter, and the other thread appended to another stripe
+        Transaction.commit();
+
+        Transaction.begin();
+        assertEquals(2, queue.size());
+        int sum = queue.poll() + queue.poll();
+        assertNull(queue.poll());
+        Transaction.commit();
+        assertEquals(3, sum);
+    }
+
+    private static void offer(VStripedQueue<Integer> queue, int elem) {
+        while (true) {
+            Transaction tx = Transaction.begin();
+            try {
+                queue.offer(elem);
+                tx.commit();
+                return;
+            } catch (CommitException ce) {
+                tx.abort();
+            }
+        }
+    }
+
+    private static Integer poll(VStripedQueue<Integer> queue) {
+        while (true) {
+            Transaction tx = Transaction.begin();
+            try {
+                Integer elem = queue.poll();
+                tx.commit();
+                return elem;
+            } catch (CommitException ce) {
+                tx.abort();
+            }
+        }
+    }
+
+    private static int count(List<List<Integer>> lists) {
+        int count = 0;
+        for (List<Integer> list : lists) {
+            count += list.size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.varray;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+import java.util.Random;
+
+import jvstm.CommitException;
+import jvstm.SuspendedTransaction;
+import jvstm.Transaction;
+import jvstm.TransactionalCommand;
+import jvstm.VArray;
+import jvstm.util.VSegmentedArray;
+
+import org.junit.Test;
+
+/**
+ * Checks the write-back of VArrays when several threads commit concurrently, and that
+ * transactions that started earlier keep reading the values of their own snapshot.
+ */
+public class VArrayTest {
+
+    private static final int ARRAY_SIZE = 200;
+    private static final int THREADS = 4;
+    private static final int TXS_PER_THREAD = 2000;
+
+    @Test
+    public void testConcurrentIncrements() throws InterruptedException {
+        final VArray<Integer> array = new VArray<Integer>(ARRAY_SIZE);
+        Transaction.transactionallyDo(new TransactionalCommand() {
+            public void doIt() {
+                for (int i = 0; i < ARRAY_SIZE; i++) {
+                    array.put(i, 0);
+                }
+            }
+        });
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    final Random random = new Random(seed);
+                    for (int n = 0; n < TXS_PER_THREAD; n++) {
+                        final int first = random.nextInt(ARRAY_SIZE);
+                        final int count = 1 + random.nextInt(100);
+                        Transaction.transactionallyDo(new TransactionalCommand() {
+                            public void doIt() {
+                                for (int i = 0; i < count; i++) {
+                                    int index = (first + i) % ARRAY_SIZE;
+                                    array.put(index, array.get(index) + 1);
+                                }
+                            }
+                        });
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        final int[] total = new int[1];
+        Transaction.transactionallyDo(new TransactionalCommand() {
+            public void doIt() {
+                for (int i = 0; i < ARRAY_SIZE; i++) {
+                    total[0] += array.get(i);
+                }
+            }
+        });
+
+        int expected = 0;
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(t);
+            for (int n = 0; n < TXS_PER_THREAD; n++) {
+                random.nextInt(ARRAY_SIZE);
+                expected += 1 + random.nextInt(100);
+            }
+        }
+        assertEquals(expected, total[0]);
+    }
+
+    @Test
+    public void testOldSnapshotReadsLoggedValues() {
+        final VArray<String> array = new VArray<String>(10);
+
+        Transaction.begin(true);
+        SuspendedTransaction reader = Transaction.suspend();
+
+        Transaction.transactionallyDo(new TransactionalCommand() {
+            public void doIt() {
+                array.put(3, "a");
+                array.put(7, "b");
+            }
+        });
+        Transaction.transactionallyDo(new TransactionalCommand() {
+            public void doIt() {
+                array.put(3, "c");
+            }
+        });
+
+        Transaction.resume(reader);
+        assertNull(array.get(3));
+        assertNull(array.get(7));
+        Transaction.commit();
+
+        Transaction.begin(true);
+        assertEquals("c", array.get(3));
+        assertEquals("b", array.get(7));
+        Transaction.commit();
+    }
+
+    @Test
+    public void testRangeReadsAndWrites() {
+        final VArray<Integer> array = new VArray<Integer>(20);
+        array.putRange(0, 5, new Integer[] { 0, 1, 2, 3, 4 });
+
+        Transaction.begin();
+        array.put(2, 20);
+        array.putRange(1, 4, new Integer[] { 10, null, 30 });
+        array.put(3, 300);
+        Integer[] values = new Integer[6];
+        array.getRange(0, 6, values);
+        assertEquals(Integer.valueOf(0), values[0]);
+        assertEquals(Integer.valueOf(10), values[1]);
+        assertNull(values[2]);
+        assertEquals(Integer.valueOf(300), values[3]);
+        assertEquals(Integer.valueOf(4), values[4]);
+        assertNull(values[5]);
+
+        // a nested transaction writing a range that overlaps the one of its parent
+        Transaction.begin();
+        array.putRange(3, 6, new Integer[] { 3000, 4000, 5000 });
+        array.copyInto(0, 5, array, 10);
+        Transaction.commit();
+        Transaction.commit();
+
+        Transaction.begin(true);
+        array.getRange(0, 6, values);
+        assertEquals(Integer.valueOf(10), values[1]);
+        assertNull(values[2]);
+        assertEquals(Integer.valueOf(3000), values[3]);
+        assertEquals(Integer.valueOf(5000), values[5]);
+        final int[] sum = new int[1];
+        array.forEach(10, 15, new VArray.Visitor<Integer>() {
+            public void visit(int index, Integer value) {
+                sum[0] += (value == null) ? 0 : value;
+            }
+        });
+        assertEquals(0 + 10 + 3000 + 4000, sum[0]);
+        Transaction.commit();
+    }
+
+    @Test
+    public void testRangeReadConflicts() {
+        final VArray<Integer> array = new VArray<Integer>(100);
+        final Integer[] values = new Integer[50];
+
+        // a write outside of the range read does not conflict
+        Transaction.begin();
+        array.getRange(10, 60, values);
+        array.put(0, 1);
+        SuspendedTransaction tx = Transaction.suspend();
+        putInNewTransaction(array, 60, 1);
+        Transaction.resume(tx);
+        Transaction.commit();
+
+        // a write inside of the range read does
+        Transaction.begin();
+        array.getRange(10, 60, values);
+        array.put(0, 2);
+        tx = Transaction.suspend();
+        putInNewTransaction(array, 59, 1);
+        Transaction.resume(tx);
+        try {
+            Transaction.commit();
+            fail("The range read should have been invalidated");
+        } catch (CommitException e) {
+            Transaction.abort();
+        }
+
+        // an old snapshot still reads the values of the range before the writes
+        Transaction.begin(true);
+        tx = Transaction.suspend();
+        array.putRange(50, 60, new Integer[] { 5, 5, 5, 5, 5, 5, 5, 5, 5, 5 });
+        Transaction.resume(tx);
+        array.getRange(10, 60, values);
+        assertEquals(Integer.valueOf(1), values[49]);
+        assertNull(values[48]);
+        Transaction.commit();
+    }
+
+    @Test
+    public void testSegmentedArray() {
+        final VSegmentedArray<Integer> array = new VSegmentedArray<Integer>(10, 4, false);
+        array.putRange(2, 9, new Integer[] { 2, 3, 4, 5, 6, 7, 8 });
+
+        Transaction.begin(true);
+        SuspendedTransaction reader = Transaction.suspend();
+        array.put(9, 9);
+        array.put(4, 40);
+
+        Transaction.resume(reader);
+        Integer[] values = new Integer[10];
+        array.getRange(0, 10, values);
+        assertNull(values[1]);
+        assertEquals(Integer.valueOf(4), values[4]);
+        assertNull(values[9]);
+        Transaction.commit();
+
+        array.getRange(0, 10, values);
+        assertEquals(Integer.valueOf(2), values[2]);
+        assertEquals(Integer.valueOf(40), values[4]);
+        assertEquals(Integer.valueOf(8), values[8]);
+        assertEquals(Integer.valueOf(9), array.get(9));
+
+        try {
+            array.getRange(0, 10, new Integer[9]);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // the buffer is checked before any transaction begins
+            assertNull(Transaction.current());
+        }
+    }
+
+    private static void putInNewTransaction(final VArray<Integer> array, final int index, final int value) {
+        Transaction.transactionallyDo(new TransactionalCommand() {
+            public void doIt() {
+                array.put(index, value);
+            }
+        });
+    }
+}
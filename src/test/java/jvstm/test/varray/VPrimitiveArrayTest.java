@@ -0,0 +1,179 @@
+/*
+ * JVSTM: a Java library for Software Transactional Memory
+ * Copyright (C) 2005 INESC-ID Software Engineering Group
+ * http://www.esw.inesc-id.pt
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ * Author's contact:
+ * INESC-ID Software Engineering Group
+ * Rua Alves Redol 9
+ * 1000 - 029 Lisboa
+ * Portugal
+ */
+package jvstm.test.varray;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+import java.util.Random;
+
+import jvstm.CommitException;
+import jvstm.SuspendedTransaction;
+import jvstm.Transaction;
+import jvstm.TransactionalCommand;
+import jvstm.VDoubleArray;
+import jvstm.VIntArray;
+import jvstm.VLongArray;
+
+import org.junit.Test;
+
+/**
+ * Checks the transactional arrays of primitive values: concurrent write-back, reads of older
+ * snapshots, nesting and validation of the positions read.
+ */
+public class VPrimitiveArrayTest {
+
+    private static final int ARRAY_SIZE = 300;
+    private static final int THREADS = 4;
+    private static final int TXS_PER_THREAD = 1000;
+
+    @Test
+    public void testConcurrentIncrements() throws InterruptedException {
+        final VIntArray array = new VIntArray(ARRAY_SIZE);
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    final Random random = new Random(seed);
+                    for (int n = 0; n < TXS_PER_THREAD; n++) {
+                        final int first = random.nextInt(ARRAY_SIZE);
+                        final int count = 1 + random.nextInt(150);
+                        Transaction.transactionallyDo(new TransactionalCommand() {
+                            public void doIt() {
+                                for (int i = 0; i < count; i++) {
+                                    int index = (first + i) % ARRAY_SIZE;
+                                    array.put(index, array.get(index) + 1);
+                                }
+                            }
+                        });
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int expected = 0;
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(t);
+            for (int n = 0; n < TXS_PER_THREAD; n++) {
+                random.nextInt(ARRAY_SIZE);
+                expected += 1 + random.nextInt(150);
+            }
+        }
+        int total = 0;
+        Transaction.begin(true);
+        for (int i = 0; i < ARRAY_SIZE; i++) {
+            total += array.get(i);
+        }
+        Transaction.commit();
+        assertEquals(expected, total);
+    }
+
+    @Test
+    public void testOldSnapshotsAndNesting() {
+        final VLongArray longs = new VLongArray(10);
+        final VDoubleArray doubles = new VDoubleArray(200);
+
+        Transaction.begin(true);
+        SuspendedTransaction reader = Transaction.suspend();
+
+        Transaction.begin();
+        longs.put(3, Long.MAX_VALUE);
+        for (int i = 0; i < doubles.length; i++) {
+            doubles.put(i, i / 2.0);
+        }
+        Transaction.begin();
+        longs.put(4, -1L);
+        assertEquals(Long.MAX_VALUE, longs.get(3));
+        Transaction.commit();
+        assertEquals(-1L, longs.get(4));
+        Transaction.commit();
+
+        Transaction.begin();
+        doubles.put(150, -0.5);
+        Transaction.begin();
+        doubles.put(151, -0.5);
+        Transaction.abort();
+        Transaction.commit();
+
+        Transaction.resume(reader);
+        assertEquals(0L, longs.get(3));
+        assertEquals(0.0, doubles.get(150));
+        Transaction.commit();
+
+        Transaction.begin(true);
+        assertEquals(Long.MAX_VALUE, longs.get(3));
+        assertEquals(-1L, longs.get(4));
+        assertEquals(-0.5, doubles.get(150));
+        assertEquals(75.5, doubles.get(151));
+        Transaction.commit();
+    }
+
+    @Test
+    public void testReadConflicts() {
+        final VIntArray array = new VIntArray(10);
+
+        // a write to a position that was not read does not conflict
+        Transaction.begin();
+        array.put(0, array.get(1) + 1);
+        SuspendedTransaction tx = Transaction.suspend();
+        putInNewTransaction(array, 2, 1);
+        Transaction.resume(tx);
+        Transaction.commit();
+
+        // a write to a position that was read does
+        Transaction.begin();
+        array.put(0, array.get(2) + 1);
+        tx = Transaction.suspend();
+        putInNewTransaction(array, 2, 2);
+        Transaction.resume(tx);
+        try {
+            Transaction.commit();
+            fail("The read of position 2 should have been invalidated");
+        } catch (CommitException e) {
+            Transaction.abort();
+        }
+
+        Transaction.begin(true);
+        assertEquals(1, array.get(0));
+        assertEquals(2, array.get(2));
+        Transaction.commit();
+    }
+
+    private static void putInNewTransaction(final VIntArray array, final int index, final int value) {
+        Transaction.transactionallyDo(new TransactionalCommand() {
+            public void doIt() {
+                array.put(index, value);
+            }
+        });
+    }
+}